@@ -0,0 +1,71 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * Fixed pool of pre-allocated direct ByteBuffers.
+ * The receive loop leases a buffer, receives a datagram into it and hands it to a
+ * consumer, which releases it back once done. Leasing and releasing never allocate,
+ * so a capture in steady state creates no garbage per packet.
+ */
+public class BufferPool {
+
+    // The kernel charges every queued datagram at least this much of the socket buffer (its sk_buff)
+    private static final int MIN_DATAGRAM_CHARGE = 768;
+    private static final int MIN_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 1024;
+
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+    private final int capacity;
+
+    public BufferPool(int capacity, int buffer_size) {
+        this.capacity = capacity;
+        this.bufferSize = buffer_size;
+        free = new ArrayBlockingQueue<>(capacity);
+
+        // One large allocation, sliced into equal buffers
+        ByteBuffer slab = ByteBuffer.allocateDirect(capacity * buffer_size);
+        for (int i = 0; i < capacity; i++) {
+            slab.limit((i + 1) * buffer_size).position(i * buffer_size);
+            free.add(slab.slice());
+        }
+    }
+
+    // Overloaded constructor: buffers large enough for any UDP datagram
+    public BufferPool(int capacity) {
+        this(capacity, 65535);
+    }
+
+    /**
+     * Capacity that can take over everything a socket receive buffer of the given size can queue:
+     * one buffer per datagram it has room for, between MIN_CAPACITY and MAX_CAPACITY.
+     */
+    public static int capacity_for(int socket_buffer_bytes) {
+        return Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, socket_buffer_bytes / MIN_DATAGRAM_CHARGE));
+    }
+
+    /**
+     * Lease a cleared buffer, or null when every buffer is in use.
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a leased buffer to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null) free.offer(buffer);
+    }
+
+    public int available() { return free.size(); }
+
+    public int get_capacity() { return capacity; }
+
+    public int get_buffer_size() { return bufferSize; }
+}
@@ -0,0 +1,76 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Byte level helpers for the receive path, so signals are matched without decoding packets.
+ * Payload bytes map one to one onto chars (ISO-8859-1), the same mapping the tshark hex decoding uses.
+ */
+public class Bytes {
+
+    /**
+     * Signal string to the bytes it is compared with on the wire (null stays null).
+     */
+    public static byte[] signal_bytes(String signal) {
+        return signal == null ? null : signal.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * True if the bytes between position and limit equal the signal.
+     */
+    public static boolean matches_signal(ByteBuffer data, byte[] signal) {
+        if (signal == null || data.remaining() != signal.length) return false;
+        int position = data.position();
+        for (int i = 0; i < signal.length; i++) {
+            if (data.get(position + i) != signal[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * True if data[offset, offset + length) equals the signal.
+     */
+    public static boolean matches_signal(byte[] data, int offset, int length, byte[] signal) {
+        if (signal == null || length != signal.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] != signal[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decode the bytes between position and limit, leaving the position untouched.
+     */
+    public static String to_string(ByteBuffer data) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), StandardCharsets.ISO_8859_1);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(data.position(), bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decode a tshark "-e data" field (hex digits, optionally colon separated) into the payload
+     * string, one char per byte. Returns null if the line is not a hex field.
+     */
+    public static String from_hex(String line) {
+        StringBuilder output = new StringBuilder(line.length() / 2);
+        int high = -1;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ':') continue;
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return null;
+            if (high < 0) {
+                high = digit;
+            } else {
+                output.append((char) (high << 4 | digit));
+                high = -1;
+            }
+        }
+        return high < 0 ? output.toString() : null;
+    }
+}
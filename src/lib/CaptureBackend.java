@@ -0,0 +1,105 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * How a capture between the start and stop signals is recorded into a pcap file.
+ * "tshark" runs an external tshark process, "tshark-live" one that also prints the payloads
+ * while capturing, "dumpcap" the lighter dumpcap process (no dissection while capturing) and
+ * "in-jvm" writes the datagrams seen by the control socket itself and "pool" switches a tshark
+ * process of a CaptureProcessPool, started ahead of time, into recording.
+ * A backend instance records one capture: start, stop, then read.
+ */
+public interface CaptureBackend {
+
+    String get_name();
+
+    /**
+     * The start signal, given before start. A backend that was already capturing before the
+     * trigger uses it to find where the capture begins.
+     */
+    default void set_start_signal(byte[] start_signal) {
+    }
+
+    /**
+     * True if the backend can apply capture filters (see set_filter). Backends that cannot see
+     * the packet headers return false.
+     */
+    default boolean supports_filter() { return false; }
+
+    /**
+     * Keep only the packets that pass the filter in the results, given before start. Only called
+     * when supports_filter() is true; other backends throw UnsupportedOperationException.
+     */
+    default void set_filter(PacketFilter filter) {
+        throw new UnsupportedOperationException("The " + get_name() + " capture backend does not support capture filters");
+    }
+
+    /**
+     * True if this JVM can read the capture file while the backend writes it (see
+     * CaptureFollower). Capture processes started through sudo write files only root can read.
+     */
+    default boolean supports_follow() { return false; }
+
+    /**
+     * Begin capturing host:port into output_file_path.
+     * External backends return as soon as the process is launched; see is_attached().
+     */
+    void start(String host, int port, String output_file_path) throws IOException;
+
+    /**
+     * True once packets are actually being recorded (an external process may still be opening
+     * the interface right after start).
+     */
+    boolean is_attached();
+
+    /**
+     * A datagram received by the control socket while capturing, stop signal included.
+     * Only the in-JVM backend records these; external backends see the packets on the interface.
+     */
+    default void on_datagram(ByteBuffer data, int src_ip, int src_port, long timestamp_nanos) throws IOException {
+    }
+
+    /**
+     * Ask the capture to stop. The future completes once the results can be read
+     * (for file based backends: once the capture file is complete).
+     */
+    CompletableFuture<Void> stop() throws IOException;
+
+    /**
+     * Payloads of the captured UDP packets, in capture order, decoded byte per char.
+     */
+    List<String> read_payloads() throws IOException;
+
+    /**
+     * Datagrams the control socket saw while the backend was attached that are missing from the
+     * results (the capture process lost them), known once stop has completed.
+     */
+    default long get_missing_packets() { return 0; }
+
+    /**
+     * CPU time used outside this JVM (capture processes), sampled when the capture stopped.
+     */
+    default long get_external_cpu_nanos() { return 0; }
+
+    /**
+     * Release everything after a failure; a running capture process is killed.
+     */
+    void abort();
+
+    /**
+     * Create the named backend.
+     */
+    static CaptureBackend create(String backend, boolean verbose) {
+        if (backend == null || backend.equals("tshark")) return new TsharkCaptureBackend(verbose);
+        if (backend.equals("tshark-live")) return new LiveTsharkCaptureBackend(verbose);
+        if (backend.equals("dumpcap")) return new DumpcapCaptureBackend(verbose);
+        if (backend.equals("in-jvm")) return new InProcessCaptureBackend(verbose);
+        if (backend.equals("pool")) throw new IllegalArgumentException("The pool backend needs a CaptureProcessPool (CaptureUDP.set_capture_pool)");
+        throw new IllegalArgumentException("Unknown capture backend: " + backend);
+    }
+}
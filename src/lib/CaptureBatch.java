@@ -0,0 +1,283 @@
+package lib;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Reprocesses many capture files in parallel: every file is decoded by its own PcapReader on a
+ * fork-join pool, while the results are delivered one file at a time in the order of the file
+ * list, whatever order the files finish in. At most a few files per thread are in flight, so
+ * memory does not grow with the number of files. A file that fails is reported in its place and
+ * does not stop the batch.
+ */
+public class CaptureBatch {
+
+    // Files in flight per thread: enough to keep every thread busy behind one slow file
+    private static final int FILES_IN_FLIGHT_PER_THREAD = 4;
+
+    private final int parallelism;
+    private final boolean verbose;
+
+    public CaptureBatch(int parallelism, boolean verbose) {
+        this.parallelism = Math.max(1, parallelism);
+        this.verbose = verbose;
+    }
+
+    // Overloaded constructor: one thread per core
+    public CaptureBatch() {
+        this(Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Work done on one capture file; called on a pool thread with a reader at the first packet.
+     */
+    @FunctionalInterface
+    public interface Processor<R> {
+        R process(PcapReader reader) throws IOException;
+    }
+
+    /**
+     * Processor decoding the UDP payloads of a file byte per char (fragments reassembled), keeping
+     * the packets that pass the filter (null: all).
+     */
+    public static Processor<List<String>> payloads(PacketFilter filter) {
+        return reader -> {
+            reader.set_filter(filter);
+            reader.set_reassembler(new FragmentReassembler());
+            List<String> payloads = new ArrayList<>();
+            while (reader.next()) {
+                ByteBuffer payload = reader.udp_payload();
+                if (payload != null) payloads.add(Bytes.to_string(payload));
+            }
+            return payloads;
+        };
+    }
+
+    /**
+     * Capture files under directory (subdirectories included), sorted by path: *.pcap and
+     * *.pcapng. Sidecar indexes, text exports and temporary files are left out.
+     */
+    public static List<Path> list_captures(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files
+                .filter(Files::isRegularFile)
+                .filter(file -> {
+                    String name = file.getFileName().toString();
+                    return name.endsWith(".pcap") || name.endsWith(".pcapng");
+                })
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Run processor over every file and hand each FileResult to onResult (may be null) in the
+     * order of files, on the calling thread. Returns the totals once every file is done.
+     */
+    public <R> CaptureBatchReport run(List<Path> files, Processor<R> processor, Consumer<FileResult<R>> onResult) {
+        long start = System.nanoTime();
+        long packets = 0;
+        long bytes = 0;
+        long cpuNanos = 0;
+        int failed = 0;
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Deque<CompletableFuture<FileResult<R>>> inFlight = new ArrayDeque<>();
+            int window = parallelism * FILES_IN_FLIGHT_PER_THREAD;
+            int next = 0;
+            for (int delivered = 0; delivered < files.size(); delivered++) {
+                while (next < files.size() && inFlight.size() < window) {
+                    int index = next++;
+                    inFlight.addLast(CompletableFuture.supplyAsync(() -> process_file(index, files.get(index), processor), pool));
+                }
+                FileResult<R> result = join(inFlight.removeFirst());
+                packets += result.get_packets();
+                bytes += result.get_bytes();
+                cpuNanos += result.get_cpu_nanos();
+                if (result.failed()) {
+                    failed++;
+                    if (verbose) System.out.println("Failed to reprocess " + result.get_file() + ": " + result.get_error().getMessage());
+                }
+                if (onResult != null) onResult.accept(result);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        CaptureBatchReport report = new CaptureBatchReport(files.size(), failed, packets, bytes, System.nanoTime() - start, cpuNanos, parallelism);
+        if (verbose) System.out.println("Reprocessed " + report);
+        return report;
+    }
+
+    /**
+     * Like run, but files with the same content (by the catalog's SHA-256) are processed once: a
+     * later copy is delivered in its place with the result of the first (see FileResult.get_copy_of),
+     * with no packets, time or CPU of its own. Files the catalog does not know, or that changed
+     * since it was refreshed, are processed as usual.
+     */
+    public <R> CaptureBatchReport run(List<Path> files, CaptureCatalog catalog, Processor<R> processor, Consumer<FileResult<R>> onResult) {
+        long start = System.nanoTime();
+        int[] source = new int[files.size()];    // Position of the file whose result each file gets
+        int[] lastCopy = new int[files.size()];  // Position of the last copy of a processed file, -1 for none
+        List<Integer> processed = new ArrayList<>();
+        Map<String, Integer> firstByHash = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            String hash = known_hash(catalog, files.get(i));
+            Integer first = hash == null ? null : firstByHash.putIfAbsent(hash, i);
+            source[i] = first == null ? i : first;
+            lastCopy[i] = -1;
+            if (first == null) {
+                processed.add(i);
+            } else {
+                lastCopy[first] = i;
+            }
+        }
+        List<Path> unique = new ArrayList<>(processed.size());
+        for (int position : processed) unique.add(files.get(position));
+
+        Map<Integer, FileResult<R>> shared = new HashMap<>();  // Results with copies still to deliver
+        CaptureBatchReport report = new CaptureBatch(parallelism, false).run(unique, processor, result -> {
+            int position = processed.get(result.get_index());
+            FileResult<R> own = new FileResult<>(position, result.get_file(), result.get_result(), result.get_packets(), result.get_bytes(),
+                result.get_nanos(), result.get_cpu_nanos(), result.get_error(), -1);
+            if (verbose && own.failed()) System.out.println("Failed to reprocess " + own.get_file() + ": " + own.get_error().getMessage());
+            if (onResult != null) onResult.accept(own);
+            if (lastCopy[position] >= 0) shared.put(position, own);
+
+            // The copies up to the next processed file: their first is at or before this one
+            int end = result.get_index() + 1 < processed.size() ? processed.get(result.get_index() + 1) : files.size();
+            for (int copy = position + 1; copy < end; copy++) {
+                FileResult<R> first = lastCopy[source[copy]] == copy ? shared.remove(source[copy]) : shared.get(source[copy]);
+                if (onResult != null) onResult.accept(new FileResult<>(copy, files.get(copy), first.get_result(), 0, 0, 0, 0, first.get_error(), source[copy]));
+            }
+        });
+
+        report = new CaptureBatchReport(files.size(), report.get_failed(), report.get_packets(), report.get_bytes(), System.nanoTime() - start,
+            report.get_cpu_nanos(), parallelism, files.size() - unique.size());
+        if (verbose) System.out.println("Reprocessed " + report);
+        return report;
+    }
+
+    // Content hash of a file if the catalog has it up to date
+    private static String known_hash(CaptureCatalog catalog, Path file) {
+        CatalogEntry entry = catalog.get(file);
+        if (entry == null) return null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return entry.matches(attributes.size(), attributes.lastModifiedTime().toMillis()) ? entry.get_sha256_hex() : null;
+        } catch (IOException e) {
+            return null;  // Processed, and reported failed if it is really gone
+        }
+    }
+
+    // Overloaded method: payloads of every file, filtered (null: all)
+    public CaptureBatchReport run(List<Path> files, PacketFilter filter, Consumer<FileResult<List<String>>> onResult) {
+        return run(files, payloads(filter), onResult);
+    }
+
+    private static <R> FileResult<R> join(CompletableFuture<FileResult<R>> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // process_file catches what the processor throws; this is an Error
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    // One file on a pool thread
+    private static <R> FileResult<R> process_file(int index, Path file, Processor<R> processor) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        long bytes = 0;
+        long packets = 0;
+        R result = null;
+        Exception error = null;
+        try (PcapReader reader = new PcapReader(file)) {
+            bytes = Files.size(file);
+            result = processor.process(reader);
+            packets = reader.packet_index() + 1;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        }
+        return new FileResult<>(index, file, result, packets, bytes, System.nanoTime() - start, threads.getCurrentThreadCpuTime() - cpuStart, error);
+    }
+
+    /**
+     * Outcome of one file: the processor's result, or the error that stopped it.
+     */
+    public static class FileResult<R> {
+
+        private final int index;
+        private final Path file;
+        private final R result;
+        private final long packets;
+        private final long bytes;
+        private final long nanos;
+        private final long cpuNanos;
+        private final Exception error;
+        private final int copyOf;
+
+        FileResult(int index, Path file, R result, long packets, long bytes, long nanos, long cpu_nanos, Exception error, int copy_of) {
+            this.index = index;
+            this.file = file;
+            this.result = result;
+            this.packets = packets;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.cpuNanos = cpu_nanos;
+            this.error = error;
+            this.copyOf = copy_of;
+        }
+
+        // Overloaded constructor: a file that was processed
+        FileResult(int index, Path file, R result, long packets, long bytes, long nanos, long cpu_nanos, Exception error) {
+            this(index, file, result, packets, bytes, nanos, cpu_nanos, error, -1);
+        }
+
+        // Position of the file in the batch
+        public int get_index() { return index; }
+
+        public Path get_file() { return file; }
+
+        // null if the file failed
+        public R get_result() { return result; }
+
+        // Packets the reader went through (up to where the processor stopped)
+        public long get_packets() { return packets; }
+
+        // File size
+        public long get_bytes() { return bytes; }
+
+        public long get_nanos() { return nanos; }
+
+        public long get_cpu_nanos() { return cpuNanos; }
+
+        public Exception get_error() { return error; }
+
+        public boolean failed() { return error != null; }
+
+        // Index of the earlier file with the same content whose result this is, -1 if the file was processed
+        public int get_copy_of() { return copyOf; }
+    }
+}
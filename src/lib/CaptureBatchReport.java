@@ -0,0 +1,72 @@
+package lib;
+
+
+/**
+ * Totals of one CaptureBatch run. Throughput is measured on the wall clock of the whole batch;
+ * cpu_nanos / wall_nanos shows how many threads were actually kept busy.
+ */
+public class CaptureBatchReport {
+
+    private final int files;
+    private final int failed;
+    private final long packets;
+    private final long bytes;
+    private final long wallNanos;
+    private final long cpuNanos;
+    private final int parallelism;
+    private final int duplicates;
+
+    public CaptureBatchReport(int files, int failed, long packets, long bytes, long wall_nanos, long cpu_nanos, int parallelism, int duplicates) {
+        this.files = files;
+        this.failed = failed;
+        this.packets = packets;
+        this.bytes = bytes;
+        this.wallNanos = wall_nanos;
+        this.cpuNanos = cpu_nanos;
+        this.parallelism = parallelism;
+        this.duplicates = duplicates;
+    }
+
+    // Overloaded constructor: every file processed
+    public CaptureBatchReport(int files, int failed, long packets, long bytes, long wall_nanos, long cpu_nanos, int parallelism) {
+        this(files, failed, packets, bytes, wall_nanos, cpu_nanos, parallelism, 0);
+    }
+
+    public int get_files() { return files; }
+
+    public int get_failed() { return failed; }
+
+    public long get_packets() { return packets; }
+
+    // Size of the files read
+    public long get_bytes() { return bytes; }
+
+    public long get_wall_nanos() { return wallNanos; }
+
+    // CPU time of the pool threads spent in the files
+    public long get_cpu_nanos() { return cpuNanos; }
+
+    public int get_parallelism() { return parallelism; }
+
+    // Files not processed because an earlier file had the same content
+    public int get_duplicates() { return duplicates; }
+
+    public double get_packets_per_second() {
+        return wallNanos == 0 ? 0 : packets * 1e9 / wallNanos;
+    }
+
+    public double get_megabytes_per_second() {
+        return wallNanos == 0 ? 0 : bytes * 1e9 / wallNanos / (1 << 20);
+    }
+
+    // Average number of busy threads
+    public double get_busy_threads() {
+        return wallNanos == 0 ? 0 : (double) cpuNanos / wallNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files (%d failed%s), %d packets, %d bytes in %.1f ms: %.0f packets/s, %.1f MB/s, %.1f of %d threads busy",
+            files, failed, duplicates == 0 ? "" : ", " + duplicates + " duplicates skipped", packets, bytes, wallNanos / 1e6, get_packets_per_second(), get_megabytes_per_second(), get_busy_threads(), parallelism);
+    }
+}
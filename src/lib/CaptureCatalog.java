@@ -0,0 +1,342 @@
+package lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+
+/**
+ * Inventory of a captures directory: one CatalogEntry per capture file, kept in a small binary
+ * store (<directory>/captures.catalog) so listing and selecting files needs no capture to be opened.
+ * refresh() rescans only the files that are new or whose size or modification time changed, in
+ * parallel, and drops the entries of files that are gone. Failed files (not a capture) are left
+ * out and tried again on the next refresh.
+ */
+public class CaptureCatalog {
+
+    public static final String FILE_NAME = "captures.catalog";
+    public static final int MAGIC = 0x55445043;  // "UDPC"
+    public static final int VERSION = 1;
+
+    // Flows kept per file; the busiest ones are kept
+    public static final int MAX_FLOWS = 4096;
+
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final Path store;
+    private final int parallelism;
+    private final boolean verbose;
+    private final TreeMap<String, CatalogEntry> entries = new TreeMap<>();  // By path
+
+    /**
+     * Catalog of the directory as last saved (empty if there is none); call refresh() to bring it up to date.
+     */
+    public CaptureCatalog(Path directory, int parallelism, boolean verbose) throws IOException {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.store = this.directory.resolve(FILE_NAME);
+        this.parallelism = parallelism;
+        this.verbose = verbose;
+        load();
+    }
+
+    // Overloaded constructor: one scanning thread per core, quiet
+    public CaptureCatalog(Path directory) throws IOException {
+        this(directory, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Catalog of the directory, refreshed.
+     */
+    public static CaptureCatalog open(Path directory) throws IOException {
+        CaptureCatalog catalog = new CaptureCatalog(directory);
+        catalog.refresh();
+        return catalog;
+    }
+
+    /**
+     * Scan new and changed captures, forget deleted ones and save the store if anything changed.
+     * Returns the number of files scanned.
+     */
+    public synchronized int refresh() throws IOException {
+        List<Path> changed = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        for (Path file : CaptureBatch.list_captures(directory)) {
+            String name = relative(file);
+            present.add(name);
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            CatalogEntry entry = entries.get(name);
+            if (entry == null || !entry.matches(attributes.size(), attributes.lastModifiedTime().toMillis())) changed.add(file);
+        }
+        int before = entries.size();
+        entries.keySet().retainAll(present);
+        boolean modified = entries.size() != before;
+
+        if (!changed.isEmpty()) {
+            CaptureBatchReport report = new CaptureBatch(parallelism, false).run(changed, reader -> scan(reader, relative(reader.get_file())), result -> {
+                String name = relative(result.get_file());
+                if (result.failed()) {
+                    entries.remove(name);
+                    if (verbose) System.out.println("Not cataloged: " + name + ": " + result.get_error().getMessage());
+                } else {
+                    entries.put(name, result.get_result());
+                }
+            });
+            if (verbose) System.out.println("Cataloged " + report);
+            modified = true;
+        }
+        if (modified) save();
+        return changed.size();
+    }
+
+    // One capture file, on a CaptureBatch thread
+    private static CatalogEntry scan(PcapReader reader, String name) throws IOException {
+        Path file = reader.get_file();
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);  // Before reading: a later change is seen as one
+        reader.set_reassembler(new FragmentReassembler());
+
+        Map<FlowKey, long[]> flows = new HashMap<>();  // packets, payload bytes, first, last
+        FlowKey probe = new FlowKey();
+        long payloadBytes = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        while (reader.next()) {
+            long timestamp = reader.timestamp_nanos();
+            if (timestamp < first) first = timestamp;
+            if (timestamp > last) last = timestamp;
+            ByteBuffer payload = reader.udp_payload();
+            if (payload == null) continue;
+            payloadBytes += payload.remaining();
+
+            probe.set(reader.src_ip(), reader.src_port(), reader.dst_ip(), reader.dst_port());
+            long[] flow = flows.get(probe);
+            if (flow == null) {
+                flow = new long[] { 0, 0, timestamp, timestamp };
+                flows.put(probe.copy(), flow);
+            }
+            flow[0]++;
+            flow[1] += payload.remaining();
+            if (timestamp < flow[2]) flow[2] = timestamp;
+            if (timestamp > flow[3]) flow[3] = timestamp;
+        }
+        long packets = reader.packet_index() + 1;
+
+        List<CatalogEntry.Flow> flowList = new ArrayList<>(flows.size());
+        for (Map.Entry<FlowKey, long[]> flow : flows.entrySet()) {
+            FlowKey key = flow.getKey();
+            long[] counts = flow.getValue();
+            flowList.add(new CatalogEntry.Flow(key.srcIp, key.srcPort, key.dstIp, key.dstPort, counts[0], counts[1], counts[2], counts[3]));
+        }
+        flowList.sort((a, b) -> Long.compare(b.get_packets(), a.get_packets()));
+        boolean truncated = flowList.size() > MAX_FLOWS;
+        if (truncated) flowList = new ArrayList<>(flowList.subList(0, MAX_FLOWS));
+
+        return new CatalogEntry(name, attributes.size(), attributes.lastModifiedTime().toMillis(), packets, payloadBytes,
+            packets == 0 ? 0 : first, packets == 0 ? 0 : last, sha256(file), flowList, truncated);
+    }
+
+    /**
+     * SHA-256 of a file's content.
+     */
+    public static byte[] sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);  // Required of every Java platform
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    // ---- Queries ----
+
+    /**
+     * Every entry, in path order.
+     */
+    public synchronized List<CatalogEntry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Entries the condition holds for, in path order.
+     */
+    public synchronized List<CatalogEntry> select(Predicate<CatalogEntry> condition) {
+        List<CatalogEntry> selected = new ArrayList<>();
+        for (CatalogEntry entry : entries.values()) {
+            if (condition.test(entry)) selected.add(entry);
+        }
+        return selected;
+    }
+
+    /**
+     * Files with traffic to or from the port between from_nanos and to_nanos (inclusive).
+     * Files with more flows than the catalog lists are always candidates.
+     */
+    public List<CatalogEntry> with_port(int port, long from_nanos, long to_nanos) {
+        return select(entry -> entry.overlaps(from_nanos, to_nanos) && (entry.flows_truncated() || entry.has_port(port, from_nanos, to_nanos)));
+    }
+
+    /**
+     * Files with packets between from_nanos and to_nanos (inclusive).
+     */
+    public List<CatalogEntry> in_time_range(long from_nanos, long to_nanos) {
+        return select(entry -> entry.overlaps(from_nanos, to_nanos));
+    }
+
+    /**
+     * Files whose content has the given SHA-256.
+     */
+    public List<CatalogEntry> with_hash(byte[] sha256) {
+        return select(entry -> entry.has_hash(sha256));
+    }
+
+    /**
+     * Entry of a file of the directory, null if it is not cataloged.
+     */
+    public synchronized CatalogEntry get(Path file) {
+        return entries.get(relative(file.toAbsolutePath()));
+    }
+
+    // Path of an entry's file
+    public Path resolve(CatalogEntry entry) {
+        return directory.resolve(entry.get_path());
+    }
+
+    public Path get_directory() { return directory; }
+
+    public synchronized int size() { return entries.size(); }
+
+    private String relative(Path file) {
+        return directory.relativize(file.toAbsolutePath().normalize()).toString().replace('\\', '/');
+    }
+
+    // ---- Store ----
+
+    private void load() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(store), 1 << 16))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                if (verbose) System.out.println("Ignoring " + store + ": not a catalog of this version");
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                long size = input.readLong();
+                long modified = input.readLong();
+                long packets = input.readLong();
+                long payloadBytes = input.readLong();
+                long first = input.readLong();
+                long last = input.readLong();
+                byte[] hash = new byte[32];
+                input.readFully(hash);
+                boolean truncated = input.readBoolean();
+                int flowCount = input.readInt();
+                List<CatalogEntry.Flow> flows = new ArrayList<>(flowCount);
+                for (int f = 0; f < flowCount; f++) {
+                    flows.add(new CatalogEntry.Flow(input.readInt(), input.readUnsignedShort(), input.readInt(), input.readUnsignedShort(),
+                        input.readLong(), input.readLong(), input.readLong(), input.readLong()));
+                }
+                entries.put(path, new CatalogEntry(path, size, modified, packets, payloadBytes, first, last, hash, flows, truncated));
+            }
+        } catch (NoSuchFileException e) {
+            // New catalog
+        } catch (IOException e) {
+            // Damaged store: rebuild it on the next refresh
+            entries.clear();
+            if (verbose) System.out.println("Ignoring " + store + ": " + e.getMessage());
+        }
+    }
+
+    private void save() throws IOException {
+        Path temporary = directory.resolve(FILE_NAME + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+            for (CatalogEntry entry : entries.values()) {
+                output.writeUTF(entry.get_path());
+                output.writeLong(entry.get_size());
+                output.writeLong(entry.get_modified_millis());
+                output.writeLong(entry.get_packets());
+                output.writeLong(entry.get_payload_bytes());
+                output.writeLong(entry.get_first_nanos());
+                output.writeLong(entry.get_last_nanos());
+                output.write(entry.get_sha256());
+                output.writeBoolean(entry.flows_truncated());
+                output.writeInt(entry.get_flows().size());
+                for (CatalogEntry.Flow flow : entry.get_flows()) {
+                    output.writeInt(flow.get_src_ip());
+                    output.writeShort(flow.get_src_port());
+                    output.writeInt(flow.get_dst_ip());
+                    output.writeShort(flow.get_dst_port());
+                    output.writeLong(flow.get_packets());
+                    output.writeLong(flow.get_payload_bytes());
+                    output.writeLong(flow.get_first_nanos());
+                    output.writeLong(flow.get_last_nanos());
+                }
+            }
+        }
+        Files.move(temporary, store, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Flow identity while scanning; one probe per scan, copied for new flows only
+    private static final class FlowKey {
+        private int srcIp;
+        private int srcPort;
+        private int dstIp;
+        private int dstPort;
+
+        void set(int src_ip, int src_port, int dst_ip, int dst_port) {
+            this.srcIp = src_ip;
+            this.srcPort = src_port;
+            this.dstIp = dst_ip;
+            this.dstPort = dst_port;
+        }
+
+        FlowKey copy() {
+            FlowKey key = new FlowKey();
+            key.set(srcIp, srcPort, dstIp, dstPort);
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof FlowKey)) return false;
+            FlowKey key = (FlowKey) other;
+            return key.srcIp == srcIp && key.srcPort == srcPort && key.dstIp == dstIp && key.dstPort == dstPort;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((srcIp * 31 + dstIp) * 31 + srcPort) * 31 + dstPort;
+        }
+    }
+}
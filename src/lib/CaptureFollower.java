@@ -0,0 +1,161 @@
+package lib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+
+/**
+ * Reads a capture file while it is still being written, like tail -f: every complete record is
+ * read as soon as it lands, a record the writer is still in the middle of is read once the rest
+ * arrives. The file is polled every poll interval, which bounds the delay between a packet
+ * reaching the file and next() returning it. Call stop() once the writer is done: next() then
+ * reads what is left and returns false. The file need not exist yet when following starts.
+ */
+public class CaptureFollower implements Closeable {
+
+    public static final long DEFAULT_POLL_MILLIS = 10;
+
+    private final Path file;
+    private final long pollNanos;
+    private final long idleTimeoutNanos;  // 0: wait for stop()
+    private PcapReader reader = null;
+    private PacketFilter filter = null;
+    private FragmentReassembler reassembler = null;
+    private volatile boolean stopping = false;
+    private volatile boolean closed = false;
+    private long lastGrowth = System.nanoTime();
+    private long packets = 0;
+
+    /**
+     * Follow file, looking for new records every poll_millis. Without growth for
+     * idle_timeout_millis (0: no limit) the capture counts as finished, as after stop().
+     */
+    public CaptureFollower(Path file, long poll_millis, long idle_timeout_millis) {
+        if (poll_millis <= 0) throw new IllegalArgumentException("Poll interval must be positive: " + poll_millis);
+        if (idle_timeout_millis < 0) throw new IllegalArgumentException("Idle timeout must not be negative: " + idle_timeout_millis);
+        this.file = file;
+        this.pollNanos = TimeUnit.MILLISECONDS.toNanos(poll_millis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idle_timeout_millis);
+    }
+
+    // Overloaded constructor: default poll interval, follow until stop()
+    public CaptureFollower(Path file) {
+        this(file, DEFAULT_POLL_MILLIS, 0);
+    }
+
+    // Keep only the packets that pass the filter (see PcapReader.set_filter)
+    public synchronized void set_filter(PacketFilter filter) {
+        this.filter = filter;
+        if (reader != null) reader.set_filter(filter);
+    }
+
+    // Reassemble fragmented datagrams (see PcapReader.set_reassembler)
+    public synchronized void set_reassembler(FragmentReassembler reassembler) {
+        this.reassembler = reassembler;
+        if (reader != null) reader.set_reassembler(reassembler);
+    }
+
+    /**
+     * Wait for the next packet (that passes the filter). Returns false once stop() was called and
+     * everything written before it has been read, after the idle timeout, or after close().
+     * A record cut short by a writer that was killed is left unread.
+     */
+    public synchronized boolean next() throws IOException {
+        while (!closed) {
+            if (reader != null && reader.next()) {
+                packets++;
+                return true;
+            }
+            boolean finished = stopping;  // Read before looking at the file: what was written before stop() is seen below
+            if (reader == null ? open() : reader.refresh()) {
+                lastGrowth = System.nanoTime();
+                continue;
+            }
+            if (finished) return false;
+            if (idleTimeoutNanos > 0 && System.nanoTime() - lastGrowth > idleTimeoutNanos) return false;
+            LockSupport.parkNanos(pollNanos);
+            if (Thread.interrupted()) throw new IOException("Interrupted while following " + file);
+        }
+        return false;
+    }
+
+    // Open the file once its header is complete; false while it is missing or shorter than a header
+    private boolean open() throws IOException {
+        try {
+            if (Files.size(file) < PcapWriter.GLOBAL_HEADER_LENGTH) return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!Files.isReadable(file)) throw new AccessDeniedException(file.toString(), null, "Capture file not readable by this process (written through sudo?)");
+        reader = new PcapReader(file);
+        reader.set_filter(filter);
+        reader.set_reassembler(reassembler);
+        return true;
+    }
+
+    /**
+     * Call onPacket with the reader positioned on every packet until next() returns false.
+     * Returns the number of packets.
+     */
+    public long follow(Consumer<PcapReader> onPacket) throws IOException {
+        long count = 0;
+        while (next()) {
+            onPacket.accept(reader);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * follow() on a daemon thread of its own; the future completes with the number of packets
+     * once the capture is finished, or with the error that ended it.
+     */
+    public CompletableFuture<Long> follow_async(Consumer<PcapReader> onPacket) {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        Thread follower = new Thread(() -> {
+            try {
+                done.complete(follow(onPacket));
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            }
+        }, "capture-follower-" + file.getFileName());
+        follower.setDaemon(true);
+        follower.start();
+        return done;
+    }
+
+    /**
+     * The writer is done: next() returns false once what is in the file has been read.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    // The reader positioned on the packet next() returned (see PcapReader for its accessors)
+    public synchronized PcapReader reader() { return reader; }
+
+    // Packets returned by next() so far
+    public synchronized long get_packets() { return packets; }
+
+    public Path get_file() { return file; }
+
+    /**
+     * Stop following at once; a next() in progress returns false at its next poll.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            if (reader != null) reader.close();
+            reader = null;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * Sparse packet index of one capture file. An entry is made every stride packets and whenever the
+ * packet time enters a new bucket of bucket_nanos; it holds the packet's ordinal, the file offset
+ * of its record, the latest timestamp of all packets before it and the earliest timestamp of the
+ * packets up to the next entry.
+ * Readers jump to an entry and scan at most stride packets to reach a packet number. For a time
+ * range they binary search the running maximum to find where the range can begin, and stop at the
+ * first entry from which on every packet is later than the range, also when timestamps are not
+ * strictly ordered. The index also holds the packet count and the first/last timestamps.
+ * PcapNgWriter stores it in the file; other captures get a sidecar file, <capture>.idx.
+ */
+public class CaptureIndex {
+
+    public static final int MAGIC = 0x55445058;          // "UDPX"
+    public static final int SIDECAR_MAGIC = 0x55445049;  // "UDPI"
+    public static final int VERSION = 2;
+    public static final int DEFAULT_STRIDE = 256;
+    public static final long DEFAULT_BUCKET_NANOS = 10_000_000L;  // 10 ms
+
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 8 + 8 + 8 + 8;
+    private static final int ENTRY_LENGTH = 8 + 8 + 8 + 8;
+    private static final int VERSION_1_HEADER_LENGTH = 4 + 4 + 4 + 4 + 8 + 8 + 8;
+    private static final int VERSION_1_ENTRY_LENGTH = 8 + 8 + 8;
+    private static final int SIDECAR_HEADER_LENGTH = 4 + 4 + 8 + 8;
+
+    private final int stride;
+    private final long bucketNanos;
+    private long[] ordinals = new long[16];
+    private long[] offsets = new long[16];
+    private long[] latestBefore = new long[16];
+    private long[] earliestIn = new long[16];
+    private long[] earliestFrom = null;  // Suffix minimum of earliestIn, built on first use
+    private int entries = 0;
+    private long packetCount = 0;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private long lastBucket = Long.MIN_VALUE;
+
+    public CaptureIndex(int stride, long bucket_nanos) {
+        this.stride = Math.max(1, stride);
+        this.bucketNanos = Math.max(0, bucket_nanos);
+    }
+
+    // Overloaded constructor: entries by packet count only
+    public CaptureIndex(int stride) {
+        this(stride, 0);
+    }
+
+    public CaptureIndex() {
+        this(DEFAULT_STRIDE, DEFAULT_BUCKET_NANOS);
+    }
+
+    /**
+     * Account for the next packet, whose record starts at the given file offset.
+     */
+    public void add(long offset, long timestamp_nanos) {
+        long bucket = bucketNanos == 0 ? 0 : Math.floorDiv(timestamp_nanos, bucketNanos);
+        if (entries == 0 || packetCount - ordinals[entries - 1] >= stride || bucket != lastBucket) {
+            if (entries == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, entries * 2);
+                offsets = Arrays.copyOf(offsets, entries * 2);
+                latestBefore = Arrays.copyOf(latestBefore, entries * 2);
+                earliestIn = Arrays.copyOf(earliestIn, entries * 2);
+            }
+            ordinals[entries] = packetCount;
+            offsets[entries] = offset;
+            latestBefore[entries] = maxTimestamp;
+            earliestIn[entries] = timestamp_nanos;
+            entries++;
+        } else if (timestamp_nanos < earliestIn[entries - 1]) {
+            earliestIn[entries - 1] = timestamp_nanos;
+        }
+        lastBucket = bucket;
+        earliestFrom = null;
+        packetCount++;
+        if (timestamp_nanos < minTimestamp) minTimestamp = timestamp_nanos;
+        if (timestamp_nanos > maxTimestamp) maxTimestamp = timestamp_nanos;
+    }
+
+    /**
+     * Entry to start from to reach the packet with the given ordinal, -1 if there is none.
+     */
+    public int entry_for_packet(long ordinal) {
+        if (entries == 0 || ordinal < 0 || ordinal >= packetCount) return -1;
+        int low = 0;
+        int high = entries - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (ordinals[middle] <= ordinal) low = middle;
+            else high = middle - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Last entry before which every packet is older than timestamp_nanos: no packet at or after
+     * that time comes earlier in the file. -1 if there are no entries.
+     */
+    public int entry_for_time(long timestamp_nanos) {
+        if (entries == 0) return -1;
+        int low = 0;
+        int high = entries - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (latestBefore[middle] < timestamp_nanos) low = middle;
+            else high = middle - 1;
+        }
+        return low;
+    }
+
+    /**
+     * First entry from which on every packet is later than timestamp_nanos: a scan for packets up
+     * to that time can stop there. get_entry_count() if the scan has to run to the end of the file.
+     */
+    public int entry_after_time(long timestamp_nanos) {
+        if (earliestFrom == null) {
+            earliestFrom = new long[entries];
+            long earliest = Long.MAX_VALUE;
+            for (int i = entries - 1; i >= 0; i--) {
+                earliest = Math.min(earliest, earliestIn[i]);
+                earliestFrom[i] = earliest;
+            }
+        }
+        int low = 0;
+        int high = entries;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (earliestFrom[middle] > timestamp_nanos) high = middle;
+            else low = middle + 1;
+        }
+        return low;
+    }
+
+    public long get_entry_ordinal(int entry) { return ordinals[entry]; }
+
+    public long get_entry_offset(int entry) { return offsets[entry]; }
+
+    public int get_entry_count() { return entries; }
+
+    public int get_stride() { return stride; }
+
+    public long get_bucket_nanos() { return bucketNanos; }
+
+    public long get_packet_count() { return packetCount; }
+
+    // First and last capture time, Long.MAX_VALUE / Long.MIN_VALUE for an empty file
+    public long get_min_timestamp() { return minTimestamp; }
+
+    public long get_max_timestamp() { return maxTimestamp; }
+
+    /**
+     * Encoded length of the index in bytes.
+     */
+    public int encoded_length() {
+        return HEADER_LENGTH + entries * ENTRY_LENGTH;
+    }
+
+    /**
+     * Encode the index at the buffer position (little endian).
+     */
+    public void encode(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(stride).putInt(entries);
+        buffer.putLong(bucketNanos).putLong(packetCount).putLong(minTimestamp).putLong(maxTimestamp);
+        for (int i = 0; i < entries; i++) {
+            buffer.putLong(ordinals[i]).putLong(offsets[i]).putLong(latestBefore[i]).putLong(earliestIn[i]);
+        }
+        buffer.order(order);
+    }
+
+    /**
+     * Decode an index written by encode, reading from the buffer position.
+     */
+    public static CaptureIndex decode(ByteBuffer buffer) throws IOException {
+        ByteBuffer input = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (input.remaining() < VERSION_1_HEADER_LENGTH || input.getInt() != MAGIC) throw new IOException("Not a capture index");
+        int version = input.getInt();
+        if (version != 1 && version != VERSION) throw new IOException("Unsupported capture index version " + version);
+        int stride = input.getInt();
+        int entries = input.getInt();
+        int entryLength = version == 1 ? VERSION_1_ENTRY_LENGTH : ENTRY_LENGTH;
+        long bucket = version == 1 ? 0 : input.getLong();
+        if (entries < 0 || input.remaining() < 24 + (long) entries * entryLength) throw new IOException("Truncated capture index");
+
+        CaptureIndex index = new CaptureIndex(stride, bucket);
+        index.packetCount = input.getLong();
+        index.minTimestamp = input.getLong();
+        index.maxTimestamp = input.getLong();
+        int capacity = Math.max(entries, 1);
+        index.ordinals = new long[capacity];
+        index.offsets = new long[capacity];
+        index.latestBefore = new long[capacity];
+        index.earliestIn = new long[capacity];
+        for (int i = 0; i < entries; i++) {
+            index.ordinals[i] = input.getLong();
+            index.offsets[i] = input.getLong();
+            index.latestBefore[i] = input.getLong();
+            index.earliestIn[i] = version == 1 ? Long.MIN_VALUE : input.getLong();  // Unknown: never stop early
+        }
+        index.entries = entries;
+        index.lastBucket = Long.MAX_VALUE;  // Appending after decoding starts a new entry
+        return index;
+    }
+
+    /**
+     * Sidecar index file of a capture: <capture>.idx
+     */
+    public static Path sidecar_path(Path capture) {
+        return capture.resolveSibling(capture.getFileName() + ".idx");
+    }
+
+    /**
+     * Write this index as the sidecar of the capture, stamped with the capture's current size
+     * and modification time so a later change of the capture makes it stale.
+     */
+    public void write_sidecar(Path capture) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIDECAR_HEADER_LENGTH + encoded_length()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(SIDECAR_MAGIC).putInt(VERSION);
+        buffer.putLong(Files.size(capture)).putLong(Files.getLastModifiedTime(capture).toMillis());
+        encode(buffer);
+        buffer.flip();
+        Path temporary = capture.resolveSibling(capture.getFileName() + ".idx.tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        Files.move(temporary, sidecar_path(capture), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The capture's sidecar index, null if there is none or the capture changed since it was written.
+     */
+    public static CaptureIndex read_sidecar(Path capture) throws IOException {
+        Path sidecar = sidecar_path(capture);
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(sidecar)).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (buffer.remaining() < SIDECAR_HEADER_LENGTH || buffer.getInt() != SIDECAR_MAGIC || buffer.getInt() != VERSION) return null;
+        long size = buffer.getLong();
+        long modified = buffer.getLong();
+        if (size != Files.size(capture) || modified != Files.getLastModifiedTime(capture).toMillis()) return null;
+        try {
+            return decode(buffer);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Index a capture in one pass.
+     */
+    public static CaptureIndex build(Path capture, int stride, long bucket_nanos) throws IOException {
+        CaptureIndex index = new CaptureIndex(stride, bucket_nanos);
+        try (PcapReader reader = new PcapReader(capture)) {
+            while (reader.next()) index.add(reader.record_offset(), reader.timestamp_nanos());
+        }
+        return index;
+    }
+
+    /**
+     * The capture's index: the one stored in the file or a current sidecar, otherwise built in one
+     * pass and saved as sidecar (when the directory is writable).
+     */
+    public static CaptureIndex load(Path capture) throws IOException {
+        try (PcapReader reader = new PcapReader(capture)) {
+            CaptureIndex index = reader.index();
+            if (index != null) return index;
+        }
+        CaptureIndex index = build(capture, DEFAULT_STRIDE, DEFAULT_BUCKET_NANOS);
+        try {
+            index.write_sidecar(capture);
+        } catch (IOException e) {
+            // Read-only capture directory: use it without saving
+        }
+        return index;
+    }
+}
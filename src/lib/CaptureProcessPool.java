@@ -0,0 +1,182 @@
+package lib;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * tshark processes started ahead of time for configured interface/filter pairs, so a START
+ * trigger does not pay for the process launch, dissector loading and interface attach.
+ * acquire hands out an attached process, release puts it back; processes are retired after
+ * max_uses recordings (or when they die) and the pool refills in the background.
+ */
+public class CaptureProcessPool {
+
+    private final int processesPerFilter;
+    private final int maxUses;
+    private final boolean verbose;
+
+    private final Map<String, Deque<WarmCaptureProcess>> idle = new HashMap<>();  // Key: interface + filter
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "capture-pool-refill");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean shutdown = false;
+
+    public CaptureProcessPool(int processes_per_filter, int max_uses, boolean verbose) {
+        this.processesPerFilter = Math.max(1, processes_per_filter);
+        this.maxUses = Math.max(1, max_uses);
+        this.verbose = verbose;
+    }
+
+    // Overloaded constructor: one warm process per filter, retired after 100 captures
+    public CaptureProcessPool() {
+        this(1, 100, false);
+    }
+
+    /**
+     * Interface CaptureUDP captures on: loopback on Linux, interface 1 on Windows.
+     */
+    public static String default_interface() {
+        return System.getProperty("os.name").toLowerCase().contains("win") ? "1" : "lo";
+    }
+
+    /**
+     * Capture filter CaptureUDP uses for host:port. BPF only sees the ports in the first fragment
+     * of a datagram, so the later fragments of the host are captured too; the port is checked
+     * again once FragmentReassembler has put a datagram together (see port_filter).
+     */
+    public static String capture_filter(String host, int port) {
+        return String.format("host %s and (port %d or ip[6:2] & 0x1fff != 0)", host, port);
+    }
+
+    /**
+     * The port part of capture_filter, applied to the decoded (reassembled) datagrams, combined
+     * with an optional capture filter of the user.
+     */
+    public static PacketFilter port_filter(int port, PacketFilter filter) {
+        PacketFilter ports = PacketFilter.compile("port " + port);
+        return filter == null ? ports : ports.and(filter);
+    }
+
+    /**
+     * Start warm processes for the interface/filter pair in the background.
+     */
+    public void prewarm(String capture_interface, String capture_filter) {
+        synchronized (this) {
+            idle.computeIfAbsent(key(capture_interface, capture_filter), k -> new ArrayDeque<>());
+        }
+        refill(capture_interface, capture_filter);
+    }
+
+    // Overloaded: the pair listen_and_capture_udp uses for host:port
+    public void prewarm(String host, int port) {
+        prewarm(default_interface(), capture_filter(host, port));
+    }
+
+    /**
+     * An idle, live process for the pair. Without one a process is launched on the spot (cold start).
+     */
+    public WarmCaptureProcess acquire(String capture_interface, String capture_filter) throws IOException {
+        WarmCaptureProcess process = null;
+        synchronized (this) {
+            Deque<WarmCaptureProcess> queue = idle.computeIfAbsent(key(capture_interface, capture_filter), k -> new ArrayDeque<>());
+            while (!queue.isEmpty() && process == null) {
+                WarmCaptureProcess candidate = queue.pollFirst();
+                if (candidate.is_alive()) process = candidate;
+            }
+        }
+        if (process == null) {
+            if (verbose) System.out.println("No warm capture process for \"" + capture_filter + "\", starting one now.");
+            process = WarmCaptureProcess.launch(capture_interface, capture_filter, verbose, this::evict);
+        }
+        refill(capture_interface, capture_filter);
+        return process;
+    }
+
+    /**
+     * Give a process back after a recording; worn out or dead processes are retired and replaced.
+     */
+    public void release(WarmCaptureProcess process) {
+        process.count_use();
+        boolean keep = !shutdown && process.is_alive() && process.get_uses() < maxUses;
+        if (keep) {
+            synchronized (this) {
+                idle.computeIfAbsent(key(process.get_capture_interface(), process.get_capture_filter()), k -> new ArrayDeque<>()).addLast(process);
+            }
+            return;
+        }
+        if (verbose) System.out.println("Retiring capture process " + process.get_pid() + " after " + process.get_uses() + " uses.");
+        process.terminate();
+        refill(process.get_capture_interface(), process.get_capture_filter());
+    }
+
+    // The stream of a process ended: drop it from the idle processes at once and start a replacement
+    private void evict(WarmCaptureProcess process) {
+        boolean removed;
+        synchronized (this) {
+            Deque<WarmCaptureProcess> queue = idle.get(key(process.get_capture_interface(), process.get_capture_filter()));
+            removed = queue != null && queue.remove(process);
+        }
+        if (!removed) return;  // Recording (release retires it) or already gone
+        if (verbose) System.out.println("Capture process " + process.get_pid() + " stopped streaming, replacing it.");
+        refill(process.get_capture_interface(), process.get_capture_filter());
+    }
+
+    /**
+     * Idle processes ready for the pair.
+     */
+    public synchronized int idle_count(String capture_interface, String capture_filter) {
+        Deque<WarmCaptureProcess> queue = idle.get(key(capture_interface, capture_filter));
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Terminate every idle process; processes still recording are terminated when released.
+     */
+    public void shutdown() {
+        shutdown = true;
+        refiller.shutdownNow();
+        List<WarmCaptureProcess> all = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<WarmCaptureProcess> queue : idle.values()) all.addAll(queue);
+            idle.clear();
+        }
+        for (WarmCaptureProcess process : all) process.terminate();
+    }
+
+    // Top the pair up to processes_per_filter idle processes
+    private void refill(String capture_interface, String capture_filter) {
+        if (shutdown) return;
+        refiller.execute(() -> {
+            while (!shutdown) {
+                synchronized (this) {
+                    Deque<WarmCaptureProcess> queue = idle.computeIfAbsent(key(capture_interface, capture_filter), k -> new ArrayDeque<>());
+                    queue.removeIf(process -> !process.is_alive());
+                    if (queue.size() >= processesPerFilter) return;
+                }
+                try {
+                    WarmCaptureProcess process = WarmCaptureProcess.launch(capture_interface, capture_filter, verbose, this::evict);
+                    synchronized (this) {
+                        idle.get(key(capture_interface, capture_filter)).addLast(process);
+                    }
+                } catch (IOException e) {
+                    if (verbose) System.out.println("Could not start a warm capture process: " + e.getMessage());
+                    return;
+                }
+            }
+        });
+    }
+
+    private static String key(String capture_interface, String capture_filter) {
+        return capture_interface + "\u0000" + capture_filter;
+    }
+}
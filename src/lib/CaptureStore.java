@@ -0,0 +1,505 @@
+package lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Content-addressed store of capture files. Every distinct file is kept once, under the SHA-256 of
+ * its content, as a recipe: the bytes of the file with the UDP payloads replaced by references to
+ * payload blocks, compressed. Payload blocks are kept once for the whole store, so a payload sent
+ * in many sessions takes its space once. Session names are references to a hash: storing a file
+ * whose content is already there only adds the name. restore() rebuilds the file byte for byte and
+ * checks its hash.
+ *
+ *   <root>/refs            name, hash and size of every stored session, one per line
+ *   <root>/objects/<hash>  recipe of one capture
+ *   <root>/blocks.pack     payload blocks, appended
+ *   <root>/blocks.idx      hash, offset and length of every block, appended
+ *
+ * A store is used by one process at a time. The blocks of removed captures are not reclaimed.
+ */
+public class CaptureStore implements Closeable {
+
+    public static final int MAGIC = 0x55445053;  // "UDPS"
+    public static final int VERSION = 1;
+
+    // Payloads are cut into blocks of at most BLOCK_SIZE; pieces under MIN_BLOCK_SIZE stay in the recipe
+    public static final int BLOCK_SIZE = 4096;
+    public static final int MIN_BLOCK_SIZE = 32;
+
+    private static final int INDEX_RECORD_LENGTH = 32 + 8 + 4;  // hash, offset, length
+    private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+    private final Path root;
+    private final Path objects;
+    private final Path refsFile;
+    private final FileChannel pack;
+    private final FileChannel index;
+    private final MessageDigest blockDigest = sha256_digest();
+    private final Map<BlockKey, Integer> blockIds = new HashMap<>();
+    private long[] blockOffsets = new long[1024];
+    private int[] blockLengths = new int[1024];
+    private int blockCount = 0;
+    private final TreeMap<String, Ref> refs = new TreeMap<>();  // By name
+
+    /**
+     * Open the store at root, creating it if needed.
+     */
+    public CaptureStore(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.objects = this.root.resolve("objects");
+        this.refsFile = this.root.resolve("refs");
+        Files.createDirectories(objects);
+        pack = FileChannel.open(this.root.resolve("blocks.pack"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(this.root.resolve("blocks.idx"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            load_blocks();
+            load_refs();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // ---- Storing ----
+
+    /**
+     * Store a capture file under name (replacing what the name referred to). The file is read only
+     * if its content is not in the store yet. Returns the SHA-256 of the content, in hex.
+     */
+    public synchronized String put(Path file, String name) throws IOException {
+        String hash = put_object(file, name, hex(CaptureCatalog.sha256(file)));
+        save_refs();
+        return hash;
+    }
+
+    // Overloaded method: named after the file
+    public String put(Path file) throws IOException {
+        return put(file, file.getFileName().toString());
+    }
+
+    /**
+     * Store every file of a catalog, named by its path in the catalog. The catalog's hashes are
+     * used, so a file whose content is already stored is not read at all. Returns the number of
+     * new contents stored.
+     */
+    public synchronized int put_all(CaptureCatalog catalog) throws IOException {
+        int stored = 0;
+        try {
+            for (CatalogEntry entry : catalog.entries()) {
+                Ref ref = refs.get(entry.get_path());
+                String hash = entry.get_sha256_hex();
+                if (ref != null && ref.hash.equals(hash)) continue;
+                if (!Files.exists(objects.resolve(hash))) stored++;
+                put_object(catalog.resolve(entry), entry.get_path(), hash);
+            }
+        } finally {
+            save_refs();
+        }
+        return stored;
+    }
+
+    // Point name at the content, writing its recipe if the store does not have it
+    private String put_object(Path file, String name, String hash) throws IOException {
+        if (name.isEmpty() || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Invalid capture name: \"" + name + "\"");
+        }
+        if (!Files.exists(objects.resolve(hash))) hash = write_object(file);  // The content may have changed since it was hashed
+        refs.put(name, new Ref(hash, object_size(hash)));
+        return hash;
+    }
+
+    // Recipe of a file, named by the hash of what was actually read
+    private String write_object(Path file) throws IOException {
+        long[] payloads = payload_ranges(file);
+        Path temporary = Files.createTempFile(objects, "recipe", ".tmp");
+        MessageDigest fileDigest = sha256_digest();
+        try {
+            try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ);
+                 DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), COPY_BUFFER_SIZE))) {
+                long size = input.size();
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(size);
+                DataOutputStream ops = new DataOutputStream(new DeflaterOutputStream(output));
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                long position = 0;
+                for (int i = 0; i < payloads.length; i += 2) {
+                    long start = payloads[i];
+                    long end = Math.min(start + payloads[i + 1], size);
+                    position = copy_literal(input, position, start, ops, buffer, fileDigest);
+                    for (; position < end; position += Math.min(BLOCK_SIZE, end - position)) {
+                        int length = (int) Math.min(BLOCK_SIZE, end - position);
+                        read_fully(input, ByteBuffer.wrap(buffer, 0, length), position);
+                        fileDigest.update(buffer, 0, length);
+                        if (length < MIN_BLOCK_SIZE) {
+                            write_literal(ops, buffer, length);
+                        } else {
+                            write_varint(ops, ((long) add_block(buffer, length) << 1) | 1);
+                        }
+                    }
+                }
+                copy_literal(input, position, size, ops, buffer, fileDigest);
+                ops.close();  // Finishes the compressed stream
+            }
+            pack.force(false);  // Blocks on disk before a recipe refers to them
+            index.force(false);
+            String hash = hex(fileDigest.digest());
+            Files.move(temporary, objects.resolve(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return hash;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // File offset and length of the UDP payloads worth a block, in file order; none if the file is not a capture
+    private static long[] payload_ranges(Path file) {
+        long[] ranges = new long[64];
+        int count = 0;
+        try (PcapReader reader = new PcapReader(file)) {
+            while (reader.next()) {
+                int udp = PacketDecoder.udp_offset(reader.frame(), reader.linktype());
+                if (udp < 0) continue;
+                int length = reader.udp_payload().remaining();
+                if (length < MIN_BLOCK_SIZE) continue;
+                if (count == ranges.length) ranges = Arrays.copyOf(ranges, count * 2);
+                ranges[count++] = reader.frame_offset() + udp + 8;
+                ranges[count++] = length;
+            }
+        } catch (IOException e) {
+            return new long[0];  // Kept as it is, compressed
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    private static long copy_literal(FileChannel input, long position, long end, DataOutputStream ops, byte[] buffer, MessageDigest digest) throws IOException {
+        while (position < end) {
+            int length = (int) Math.min(buffer.length, end - position);
+            read_fully(input, ByteBuffer.wrap(buffer, 0, length), position);
+            digest.update(buffer, 0, length);
+            write_literal(ops, buffer, length);
+            position += length;
+        }
+        return position;
+    }
+
+    private static void write_literal(DataOutputStream ops, byte[] buffer, int length) throws IOException {
+        write_varint(ops, (long) length << 1);
+        ops.write(buffer, 0, length);
+    }
+
+    // Id of a block with this content, appended to the pack if it is new
+    private int add_block(byte[] data, int length) throws IOException {
+        blockDigest.reset();
+        blockDigest.update(data, 0, length);
+        byte[] hash = blockDigest.digest();
+        BlockKey key = new BlockKey(hash);
+        Integer id = blockIds.get(key);
+        if (id != null) return id;
+
+        long offset = pack.size();
+        write_fully(pack, ByteBuffer.wrap(data, 0, length), offset);
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_LENGTH);
+        record.put(hash).putLong(offset).putInt(length).flip();
+        write_fully(index, record, (long) blockCount * INDEX_RECORD_LENGTH);
+        return remember_block(key, offset, length);
+    }
+
+    private int remember_block(BlockKey key, long offset, int length) {
+        if (blockCount == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+            blockLengths = Arrays.copyOf(blockLengths, blockCount * 2);
+        }
+        blockOffsets[blockCount] = offset;
+        blockLengths[blockCount] = length;
+        blockIds.put(key, blockCount);
+        return blockCount++;
+    }
+
+    // ---- Reading ----
+
+    /**
+     * Rebuild the capture stored under name (or a content hash) into output. Throws an IOException
+     * if the rebuilt file does not have the stored hash.
+     */
+    public synchronized void restore(String name, Path output) throws IOException {
+        String hash = resolve(name);
+        if (hash == null) throw new NoSuchFileException(name, null, "not in the capture store " + root);
+        MessageDigest fileDigest = sha256_digest();
+        boolean restored = false;
+        try (DataInputStream recipe = new DataInputStream(new BufferedInputStream(Files.newInputStream(objects.resolve(hash)), COPY_BUFFER_SIZE));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), COPY_BUFFER_SIZE)) {
+            if (recipe.readInt() != MAGIC || recipe.readInt() != VERSION) throw new IOException("Not a capture recipe of this version: " + hash);
+            long size = recipe.readLong();
+            DataInputStream ops = new DataInputStream(new InflaterInputStream(recipe));
+            byte[] buffer = new byte[Math.max(COPY_BUFFER_SIZE, BLOCK_SIZE)];
+            for (long written = 0; written < size; ) {
+                long op = read_varint(ops);
+                int length;
+                if ((op & 1) == 0) {
+                    length = (int) (op >>> 1);
+                    if (length > buffer.length) throw new IOException("Damaged capture recipe: " + hash);
+                    ops.readFully(buffer, 0, length);
+                } else {
+                    long id = op >>> 1;
+                    if (id >= blockCount) throw new IOException("Capture recipe " + hash + " refers to a missing block");
+                    length = blockLengths[(int) id];
+                    read_fully(pack, ByteBuffer.wrap(buffer, 0, length), blockOffsets[(int) id]);
+                }
+                out.write(buffer, 0, length);
+                fileDigest.update(buffer, 0, length);
+                written += length;
+            }
+            restored = true;
+        } finally {
+            if (!restored) Files.deleteIfExists(output);
+        }
+        if (!hex(fileDigest.digest()).equals(hash)) {
+            Files.deleteIfExists(output);
+            throw new IOException("Restored capture " + name + " does not match its hash " + hash);
+        }
+    }
+
+    /**
+     * Hash a name refers to; a stored hash is returned as it is. null if neither.
+     */
+    public synchronized String resolve(String name) {
+        Ref ref = refs.get(name);
+        if (ref != null) return ref.hash;
+        return name.matches("[0-9a-f]{64}") && Files.exists(objects.resolve(name)) ? name : null;
+    }
+
+    public synchronized boolean contains(String name) {
+        return resolve(name) != null;
+    }
+
+    // Stored names, sorted
+    public synchronized List<String> names() {
+        return new ArrayList<>(refs.keySet());
+    }
+
+    /**
+     * Forget a name. The recipe goes too when no other name refers to it. Returns false if the
+     * name was not stored.
+     */
+    public synchronized boolean remove(String name) throws IOException {
+        Ref ref = refs.remove(name);
+        if (ref == null) return false;
+        save_refs();
+        for (Ref other : refs.values()) {
+            if (other.hash.equals(ref.hash)) return true;
+        }
+        Files.deleteIfExists(objects.resolve(ref.hash));
+        return true;
+    }
+
+    // ---- Statistics ----
+
+    // Size of the files the names refer to, each name counted
+    public synchronized long get_logical_bytes() {
+        long bytes = 0;
+        for (Ref ref : refs.values()) bytes += ref.size;
+        return bytes;
+    }
+
+    // Space the store takes on disk
+    public synchronized long get_stored_bytes() throws IOException {
+        long bytes = pack.size() + index.size() + (Files.exists(refsFile) ? Files.size(refsFile) : 0);
+        try (Stream<Path> recipes = Files.list(objects)) {
+            for (Path recipe : (Iterable<Path>) recipes::iterator) bytes += Files.size(recipe);
+        }
+        return bytes;
+    }
+
+    // Distinct contents stored
+    public synchronized int get_capture_count() throws IOException {
+        try (Stream<Path> recipes = Files.list(objects)) {
+            return (int) recipes.filter(recipe -> !recipe.getFileName().toString().endsWith(".tmp")).count();
+        }
+    }
+
+    public synchronized int get_block_count() { return blockCount; }
+
+    public Path get_root() { return root; }
+
+    @Override
+    public synchronized String toString() {
+        try {
+            long logical = get_logical_bytes();
+            long stored = get_stored_bytes();
+            return String.format("%d names, %d captures, %d payload blocks: %d bytes stored for %d bytes (%.1f%%)",
+                refs.size(), get_capture_count(), blockCount, stored, logical, logical == 0 ? 0 : stored * 100.0 / logical);
+        } catch (IOException e) {
+            return "capture store " + root + ": " + e.getMessage();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            pack.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    // ---- Index and refs ----
+
+    // Blocks whose index record is complete and whose bytes are in the pack; the rest of an interrupted append is cut off
+    private void load_blocks() throws IOException {
+        long packSize = pack.size();
+        long records = index.size() / INDEX_RECORD_LENGTH;
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_LENGTH);
+        for (long i = 0; i < records; i++) {
+            record.clear();
+            read_fully(index, record, i * INDEX_RECORD_LENGTH);
+            record.flip();
+            byte[] hash = new byte[32];
+            record.get(hash);
+            long offset = record.getLong();
+            int length = record.getInt();
+            if (offset < 0 || length <= 0 || offset + length > packSize) break;
+            remember_block(new BlockKey(hash), offset, length);
+        }
+        index.truncate((long) blockCount * INDEX_RECORD_LENGTH);
+    }
+
+    private void load_refs() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(refsFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 3);  // hash size name
+                if (fields.length < 3) continue;
+                refs.put(fields[2], new Ref(fields[0], Long.parseLong(fields[1])));
+            }
+        } catch (NoSuchFileException e) {
+            // New store
+        }
+    }
+
+    private void save_refs() throws IOException {
+        Path temporary = root.resolve("refs.tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Ref> ref : refs.entrySet()) {
+                writer.write(ref.getValue().hash + " " + ref.getValue().size + " " + ref.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(temporary, refsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Original file size, from the recipe header
+    private long object_size(String hash) throws IOException {
+        try (DataInputStream recipe = new DataInputStream(Files.newInputStream(objects.resolve(hash)))) {
+            recipe.readInt();
+            recipe.readInt();
+            return recipe.readLong();
+        }
+    }
+
+    // ---- Helpers ----
+
+    private static void write_varint(OutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long read_varint(InputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.read();
+            if (b < 0) throw new EOFException("Capture recipe ends early");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Damaged capture recipe");
+    }
+
+    private static void read_fully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of " + channel);
+            position += read;
+        }
+    }
+
+    private static void write_fully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    private static MessageDigest sha256_digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);  // Required of every Java platform
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // What a name refers to
+    private static final class Ref {
+        private final String hash;
+        private final long size;
+
+        Ref(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    // SHA-256 of a block as a map key
+    private static final class BlockKey {
+        private final byte[] hash;
+        private final int hashCode;
+
+        BlockKey(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = ((hash[0] & 0xFF) << 24) | ((hash[1] & 0xFF) << 16) | ((hash[2] & 0xFF) << 8) | (hash[3] & 0xFF);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof BlockKey && Arrays.equals(((BlockKey) other).hash, hash);
+        }
+
+        @Override
+        public int hashCode() { return hashCode; }
+    }
+}
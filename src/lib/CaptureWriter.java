@@ -0,0 +1,40 @@
+package lib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+
+/**
+ * Writes captured UDP datagrams into a capture file: PcapWriter for libpcap, PcapNgWriter for pcapng.
+ */
+public interface CaptureWriter extends Closeable {
+
+    /**
+     * Write one UDP datagram read from a byte array.
+     */
+    void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, byte[] data, int offset, int length, long timestamp_nanos) throws IOException;
+
+    /**
+     * Write one UDP datagram held between position and limit of the given buffer.
+     * The buffer position is left untouched.
+     */
+    void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, ByteBuffer data, long timestamp_nanos) throws IOException;
+
+    long get_packet_count();
+
+    long get_bytes_written();
+
+    /**
+     * Push buffered records to the file.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Writer for the file name: pcapng for ".pcapng", libpcap otherwise.
+     */
+    static CaptureWriter open(Path path) throws IOException {
+        return path.getFileName().toString().endsWith(".pcapng") ? new PcapNgWriter(path) : new PcapWriter(path);
+    }
+}
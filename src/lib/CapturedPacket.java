@@ -0,0 +1,63 @@
+package lib;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * One captured UDP datagram: payload, endpoints and arrival time.
+ */
+public class CapturedPacket {
+
+    private final long sequence;
+    private final long timestampNanos;
+    private final int srcIp;
+    private final int srcPort;
+    private final int dstIp;
+    private final int dstPort;
+    private final byte[] payload;
+
+    public CapturedPacket(long sequence, long timestamp_nanos, int src_ip, int src_port, int dst_ip, int dst_port, byte[] payload) {
+        this.sequence = sequence;
+        this.timestampNanos = timestamp_nanos;
+        this.srcIp = src_ip;
+        this.srcPort = src_port;
+        this.dstIp = dst_ip;
+        this.dstPort = dst_port;
+        this.payload = payload;
+    }
+
+    /**
+     * Dotted form of an IPv4 address held in an int.
+     */
+    public static String ipv4_to_string(int ip) {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    // Position of the packet in its capture, starting at 0
+    public long get_sequence() { return sequence; }
+
+    // Arrival time, nanoseconds since the epoch
+    public long get_timestamp_nanos() { return timestampNanos; }
+
+    public int get_src_ip() { return srcIp; }
+
+    public int get_src_port() { return srcPort; }
+
+    public int get_dst_ip() { return dstIp; }
+
+    public int get_dst_port() { return dstPort; }
+
+    public byte[] get_payload() { return payload; }
+
+    /**
+     * Payload as text, one char per byte (same mapping as the tshark hex decoding).
+     */
+    public String get_text() {
+        return new String(payload, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + ipv4_to_string(srcIp) + ":" + srcPort + " -> " + ipv4_to_string(dstIp) + ":" + dstPort + " (" + payload.length + " bytes)";
+    }
+}
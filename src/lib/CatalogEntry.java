@@ -0,0 +1,169 @@
+package lib;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * What CaptureCatalog knows about one capture file: size and modification time (to notice
+ * changes), packet and payload byte counts, first/last capture time, the distinct UDP flows with
+ * their own counts and times, and the SHA-256 of the file content.
+ */
+public class CatalogEntry {
+
+    private final String path;  // Relative to the catalog directory, '/' separated
+    private final long size;
+    private final long modifiedMillis;
+    private final long packets;
+    private final long payloadBytes;
+    private final long firstNanos;
+    private final long lastNanos;
+    private final byte[] sha256;
+    private final List<Flow> flows;
+    private final boolean flowsTruncated;
+
+    public CatalogEntry(String path, long size, long modified_millis, long packets, long payload_bytes, long first_nanos, long last_nanos, byte[] sha256, List<Flow> flows, boolean flows_truncated) {
+        this.path = path;
+        this.size = size;
+        this.modifiedMillis = modified_millis;
+        this.packets = packets;
+        this.payloadBytes = payload_bytes;
+        this.firstNanos = first_nanos;
+        this.lastNanos = last_nanos;
+        this.sha256 = sha256;
+        this.flows = Collections.unmodifiableList(flows);
+        this.flowsTruncated = flows_truncated;
+    }
+
+    public String get_path() { return path; }
+
+    // File size and modification time when the file was scanned
+    public long get_size() { return size; }
+
+    public long get_modified_millis() { return modifiedMillis; }
+
+    // Packets in the file, UDP or not
+    public long get_packets() { return packets; }
+
+    // UDP payload bytes, fragmented datagrams reassembled
+    public long get_payload_bytes() { return payloadBytes; }
+
+    // Capture time of the earliest and latest packet, 0 for an empty file
+    public long get_first_nanos() { return firstNanos; }
+
+    public long get_last_nanos() { return lastNanos; }
+
+    public byte[] get_sha256() { return sha256.clone(); }
+
+    public String get_sha256_hex() {
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : sha256) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    public boolean has_hash(byte[] hash) { return Arrays.equals(sha256, hash); }
+
+    // Distinct UDP flows (source and destination address and port), busiest first
+    public List<Flow> get_flows() { return flows; }
+
+    // True when the file had more flows than the catalog keeps (CaptureCatalog.MAX_FLOWS)
+    public boolean flows_truncated() { return flowsTruncated; }
+
+    /**
+     * True if any packet was captured between from_nanos and to_nanos (inclusive).
+     */
+    public boolean overlaps(long from_nanos, long to_nanos) {
+        return packets > 0 && firstNanos <= to_nanos && lastNanos >= from_nanos;
+    }
+
+    /**
+     * True if a flow to or from the port has traffic between from_nanos and to_nanos (inclusive).
+     * With truncated flows a file can have traffic that is not listed: it may have the port, so it
+     * is true whenever the file overlaps the range.
+     */
+    public boolean has_port(int port, long from_nanos, long to_nanos) {
+        for (Flow flow : flows) {
+            if ((flow.srcPort == port || flow.dstPort == port) && flow.firstNanos <= to_nanos && flow.lastNanos >= from_nanos) return true;
+        }
+        return flowsTruncated && overlaps(from_nanos, to_nanos);
+    }
+
+    // Overloaded method: any time
+    public boolean has_port(int port) {
+        return has_port(port, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * True if a flow from or to the IPv4 address (as PcapWriter.ipv4_to_int) has traffic between
+     * from_nanos and to_nanos (inclusive). Like has_port, true for any overlapping file with
+     * truncated flows.
+     */
+    public boolean has_host(int ip, long from_nanos, long to_nanos) {
+        for (Flow flow : flows) {
+            if ((flow.srcIp == ip || flow.dstIp == ip) && flow.firstNanos <= to_nanos && flow.lastNanos >= from_nanos) return true;
+        }
+        return flowsTruncated && overlaps(from_nanos, to_nanos);
+    }
+
+    // True if the file is still the one that was scanned
+    boolean matches(long size, long modified_millis) {
+        return this.size == size && this.modifiedMillis == modified_millis;
+    }
+
+    @Override
+    public String toString() {
+        return path + ": " + packets + " packets, " + payloadBytes + " payload bytes, " + flows.size() + (flowsTruncated ? "+" : "") + " flows, sha256 " + get_sha256_hex().substring(0, 12);
+    }
+
+    /**
+     * One UDP flow of a file with its datagram count, payload bytes and first/last capture time.
+     */
+    public static class Flow {
+
+        private final int srcIp;
+        private final int srcPort;
+        private final int dstIp;
+        private final int dstPort;
+        private final long packets;
+        private final long payloadBytes;
+        private final long firstNanos;
+        private final long lastNanos;
+
+        public Flow(int src_ip, int src_port, int dst_ip, int dst_port, long packets, long payload_bytes, long first_nanos, long last_nanos) {
+            this.srcIp = src_ip;
+            this.srcPort = src_port;
+            this.dstIp = dst_ip;
+            this.dstPort = dst_port;
+            this.packets = packets;
+            this.payloadBytes = payload_bytes;
+            this.firstNanos = first_nanos;
+            this.lastNanos = last_nanos;
+        }
+
+        public int get_src_ip() { return srcIp; }
+
+        public int get_src_port() { return srcPort; }
+
+        public int get_dst_ip() { return dstIp; }
+
+        public int get_dst_port() { return dstPort; }
+
+        public long get_packets() { return packets; }
+
+        public long get_payload_bytes() { return payloadBytes; }
+
+        public long get_first_nanos() { return firstNanos; }
+
+        public long get_last_nanos() { return lastNanos; }
+
+        @Override
+        public String toString() {
+            return address(srcIp) + ":" + srcPort + " > " + address(dstIp) + ":" + dstPort + " (" + packets + " packets)";
+        }
+
+        private static String address(int ip) {
+            return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+        }
+    }
+}
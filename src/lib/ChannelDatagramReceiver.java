@@ -0,0 +1,104 @@
+package lib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+
+/**
+ * Portable receive engine: a non-blocking DatagramChannel drained after each select.
+ * One system call per datagram; each datagram is stamped as it is read.
+ */
+public class ChannelDatagramReceiver implements DatagramReceiver {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final int localIp;
+    private final int localPort;
+
+    // Sender address of the previous datagram, so its int form is not recomputed per packet
+    private SocketAddress lastSender = null;
+    private int lastSenderIp = 0;
+    private int lastSenderPort = 0;
+
+    public ChannelDatagramReceiver(String host, int port) throws IOException {
+        channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+        localIp = PcapWriter.ipv4_to_int(local.getAddress().getAddress());
+        localPort = local.getPort();
+    }
+
+    @Override
+    public int receive_batch(ByteBuffer[] buffers, int count, int[] src_ips, int[] src_ports, long[] timestamps_nanos, long timeout_millis) throws IOException {
+        int received = drain(buffers, count, src_ips, src_ports, timestamps_nanos);
+        if (received > 0 || timeout_millis <= 0) return received;
+
+        if (selector.select(timeout_millis) == 0) return 0;
+        selector.selectedKeys().clear();
+        return drain(buffers, count, src_ips, src_ports, timestamps_nanos);
+    }
+
+    private int drain(ByteBuffer[] buffers, int count, int[] src_ips, int[] src_ports, long[] timestamps_nanos) throws IOException {
+        int received = 0;
+        while (received < count) {
+            ByteBuffer buffer = buffers[received];
+            SocketAddress sender = channel.receive(buffer);
+            if (sender == null) break;
+            timestamps_nanos[received] = PcapWriter.now_nanos();
+            buffer.flip();
+
+            if (sender != lastSender) {
+                InetSocketAddress address = (InetSocketAddress) sender;
+                lastSender = sender;
+                lastSenderIp = PcapWriter.ipv4_to_int(address.getAddress().getAddress());
+                lastSenderPort = address.getPort();
+            }
+            src_ips[received] = lastSenderIp;
+            src_ports[received] = lastSenderPort;
+            received++;
+        }
+        return received;
+    }
+
+    @Override
+    public int get_local_ip() { return localIp; }
+
+    @Override
+    public int get_local_port() { return localPort; }
+
+    @Override
+    public int set_receive_buffer_size(int bytes) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+        return get_receive_buffer_size();
+    }
+
+    @Override
+    public int get_receive_buffer_size() throws IOException {
+        return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    public DatagramChannel get_channel() { return channel; }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            selector.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package lib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Receives UDP datagrams in batches into caller supplied buffers.
+ * "socket" is the portable DatagramChannel engine; "recvmmsg" is the Linux engine that
+ * pulls a whole batch per system call (lib.linux.RecvmmsgDatagramReceiver, JDK 22+).
+ */
+public interface DatagramReceiver extends Closeable {
+
+    /**
+     * Wait up to timeout_millis for at least one datagram, then take what is queued.
+     * Buffers [0, count) are cleared by the caller; filled ones are returned flipped
+     * (position 0, limit = datagram length) with the sender in src_ips / src_ports and the
+     * arrival time of each datagram (PcapWriter.now_nanos() clock) in timestamps_nanos.
+     * Returns the number of datagrams received, 0 on timeout.
+     */
+    int receive_batch(ByteBuffer[] buffers, int count, int[] src_ips, int[] src_ports, long[] timestamps_nanos, long timeout_millis) throws IOException;
+
+    /**
+     * IPv4 address the receiver is bound to, as an int.
+     */
+    int get_local_ip();
+
+    /**
+     * Port the receiver is bound to.
+     */
+    int get_local_port();
+
+    /**
+     * Ask for a socket receive buffer (SO_RCVBUF) of the given size.
+     * Returns the size the kernel actually granted, which may differ (Linux doubles it
+     * for bookkeeping and caps the request at net.core.rmem_max).
+     */
+    int set_receive_buffer_size(int bytes) throws IOException;
+
+    /**
+     * Current socket receive buffer (SO_RCVBUF) as reported by the kernel.
+     */
+    int get_receive_buffer_size() throws IOException;
+
+    /**
+     * Open the named engine on host:port.
+     */
+    static DatagramReceiver open(String engine, String host, int port) throws IOException {
+        if (engine == null || engine.equals("socket")) {
+            return new ChannelDatagramReceiver(host, port);
+        }
+        if (engine.equals("recvmmsg")) {
+            // Loaded by name: it needs java.lang.foreign and is only compiled on JDK 22+
+            try {
+                return (DatagramReceiver) Class.forName("lib.linux.RecvmmsgDatagramReceiver")
+                    .getConstructor(String.class, int.class)
+                    .newInstance(host, port);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("recvmmsg engine is not available (it needs JDK 22+ and Linux)", e);
+            } catch (ReflectiveOperationException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException("Could not open recvmmsg engine: " + cause.getMessage(), cause);
+            }
+        }
+        throw new IllegalArgumentException("Unknown receive engine: " + engine);
+    }
+}
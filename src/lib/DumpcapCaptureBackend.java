@@ -0,0 +1,20 @@
+package lib;
+
+
+/**
+ * Same as the tshark backend, but the capture file is written by dumpcap, the capture engine
+ * tshark itself runs underneath. No packet dissection happens while capturing; tshark is only
+ * started afterwards to read the payloads back.
+ */
+public class DumpcapCaptureBackend extends TsharkCaptureBackend {
+
+    public DumpcapCaptureBackend(boolean verbose) {
+        super(verbose);
+    }
+
+    @Override
+    public String get_name() { return "dumpcap"; }
+
+    @Override
+    protected String capture_program() { return "dumpcap"; }
+}
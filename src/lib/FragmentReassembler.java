@@ -0,0 +1,256 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Puts fragmented IPv4/UDP datagrams back together. Fragments are collected per datagram
+ * (source, destination, IP identification) in any order, overlapping ones overwrite; when the
+ * last hole is filled the whole datagram is returned as one raw IPv4 packet (LINKTYPE_RAW).
+ * Memory stays bounded when fragments are lost: a datagram is dropped once it is older than the
+ * timeout, a flow (source, destination) keeps at most max_per_flow datagrams in progress and the
+ * oldest datagrams are evicted beyond max_datagrams or max_bytes in total.
+ * Not thread safe: one instance per decoding thread.
+ */
+public class FragmentReassembler {
+
+    public static final long DEFAULT_TIMEOUT_NANOS = 30_000_000_000L;  // As Linux ipfrag_time
+    public static final int DEFAULT_MAX_DATAGRAMS = 256;
+    public static final int DEFAULT_MAX_PER_FLOW = 16;
+    public static final int DEFAULT_MAX_BYTES = 4 << 20;
+
+    private static final int MAX_IP_LENGTH = 65535;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final long timeoutNanos;
+    private final int maxDatagrams;
+    private final int maxPerFlow;
+    private final int maxBytes;
+
+    // Oldest first: expiry and eviction both start at the head
+    private final LinkedHashMap<Key, Datagram> pending = new LinkedHashMap<>();
+    private final HashMap<Long, Integer> perFlow = new HashMap<>();
+    private final Key probe = new Key();
+    private int pendingBytes = 0;
+
+    private long reassembled = 0;
+    private long timedOut = 0;
+    private long evicted = 0;
+    private long malformed = 0;
+
+    public FragmentReassembler(long timeout_nanos, int max_datagrams, int max_per_flow, int max_bytes) {
+        this.timeoutNanos = timeout_nanos;
+        this.maxDatagrams = Math.max(1, max_datagrams);
+        this.maxPerFlow = Math.max(1, max_per_flow);
+        this.maxBytes = Math.max(MAX_IP_LENGTH, max_bytes);
+    }
+
+    public FragmentReassembler() {
+        this(DEFAULT_TIMEOUT_NANOS, DEFAULT_MAX_DATAGRAMS, DEFAULT_MAX_PER_FLOW, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Account for one IPv4/UDP fragment (see PacketDecoder.is_udp_fragment) captured at
+     * timestamp_nanos. Returns the reassembled IPv4 packet, header then whole UDP datagram, when
+     * this fragment completes it, null while fragments are still missing or for anything that is
+     * not a fragment. The returned buffer is new and owned by the caller; its header checksum is 0.
+     */
+    public ByteBuffer add(ByteBuffer frame, int linktype, long timestamp_nanos) {
+        expire(timestamp_nanos);
+        if (!PacketDecoder.is_udp_fragment(frame, linktype)) return null;
+        if (frame.order() != ByteOrder.BIG_ENDIAN) frame = frame.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int base = frame.position();
+        int ip = base + PacketDecoder.ipv4_offset(frame, linktype);
+
+        int headerLength = (frame.get(ip) & 0x0F) * 4;
+        int totalLength = frame.getShort(ip + 2) & 0xFFFF;
+        int flagsAndOffset = frame.getShort(ip + 6) & 0xFFFF;
+        boolean moreFragments = (flagsAndOffset & 0x2000) != 0;
+        int start = (flagsAndOffset & 0x1FFF) * 8;
+        int length = Math.min(totalLength, frame.limit() - ip) - headerLength;  // Cut by the snap length: holes stay open
+        int end = start + Math.max(length, 0);
+        if (headerLength < 20 || length <= 0 || end > MAX_IP_LENGTH - headerLength || (moreFragments && length % 8 != 0)) {
+            malformed++;
+            return null;
+        }
+
+        probe.set(frame.getInt(ip + 12), frame.getInt(ip + 16), frame.getShort(ip + 4) & 0xFFFF);
+        Datagram datagram = pending.get(probe);
+        if (datagram == null) {
+            datagram = open(probe.copy(), timestamp_nanos);
+        }
+
+        // Copy the fragment into place
+        int before = datagram.data.length;
+        datagram.ensure(end);
+        pendingBytes += datagram.data.length - before;
+        frame.get(ip + headerLength, datagram.data, start, length);
+        datagram.received.set(start / 8, (end + 7) / 8);
+        if (start == 0) datagram.header = copy(frame, ip, headerLength);
+        if (!moreFragments) datagram.length = end;
+
+        if (datagram.header == null || datagram.length < 0 || datagram.received.nextClearBit(0) < (datagram.length + 7) / 8) {
+            evict_over_limits(datagram.key);
+            return null;
+        }
+
+        // Complete
+        remove(datagram.key);
+        reassembled++;
+        ByteBuffer packet = ByteBuffer.allocate(datagram.header.length + datagram.length);
+        packet.put(datagram.header).put(datagram.data, 0, datagram.length).flip();
+        packet.putShort(2, (short) packet.limit());
+        packet.putShort(6, (short) 0);   // Flags and fragment offset
+        packet.putShort(10, (short) 0);  // Checksum
+        return packet;
+    }
+
+    private Datagram open(Key key, long timestamp_nanos) {
+        long flow = key.flow();
+        int flowCount = perFlow.getOrDefault(flow, 0);
+        if (flowCount >= maxPerFlow) {
+            // This flow is at its limit: give up its oldest datagram
+            for (Key other : pending.keySet()) {
+                if (other.flow() == flow) {
+                    remove(other);
+                    evicted++;
+                    break;
+                }
+            }
+        }
+        Datagram datagram = new Datagram(key, timestamp_nanos);
+        pending.put(key, datagram);
+        perFlow.merge(flow, 1, Integer::sum);
+        pendingBytes += datagram.data.length;
+        return datagram;
+    }
+
+    // Evict the oldest datagrams (never the one just added to) until the limits hold
+    private void evict_over_limits(Key current) {
+        Iterator<Map.Entry<Key, Datagram>> oldest = pending.entrySet().iterator();
+        while ((pending.size() > maxDatagrams || pendingBytes > maxBytes) && oldest.hasNext()) {
+            Datagram datagram = oldest.next().getValue();
+            if (datagram.key.equals(current)) continue;
+            oldest.remove();
+            forget(datagram);
+            evicted++;
+        }
+    }
+
+    // Drop the datagrams whose first fragment is older than the timeout
+    private void expire(long now_nanos) {
+        Iterator<Map.Entry<Key, Datagram>> oldest = pending.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Datagram datagram = oldest.next().getValue();
+            if (now_nanos - datagram.firstNanos <= timeoutNanos) break;
+            oldest.remove();
+            forget(datagram);
+            timedOut++;
+        }
+    }
+
+    private void remove(Key key) {
+        Datagram datagram = pending.remove(key);
+        if (datagram != null) forget(datagram);
+    }
+
+    private void forget(Datagram datagram) {
+        pendingBytes -= datagram.data.length;
+        perFlow.computeIfPresent(datagram.key.flow(), (flow, count) -> count == 1 ? null : count - 1);
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int index, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(index, bytes);
+        return bytes;
+    }
+
+    /**
+     * Forget every datagram in progress, e.g. after jumping to another place in a capture.
+     */
+    public void clear() {
+        pending.clear();
+        perFlow.clear();
+        pendingBytes = 0;
+    }
+
+    // How long a datagram waits for its missing fragments
+    public long get_timeout_nanos() { return timeoutNanos; }
+
+    // Datagrams completed so far
+    public long get_reassembled_count() { return reassembled; }
+
+    // Datagrams dropped because fragments were missing after the timeout
+    public long get_timed_out_count() { return timedOut; }
+
+    // Datagrams dropped to stay within the flow, datagram and byte limits
+    public long get_evicted_count() { return evicted; }
+
+    // Fragments that could not be part of a valid datagram
+    public long get_malformed_count() { return malformed; }
+
+    public int get_pending_count() { return pending.size(); }
+
+    public int get_pending_bytes() { return pendingBytes; }
+
+    // Identity of a datagram: addresses and IP identification (the protocol is always UDP)
+    private static final class Key {
+        private int srcIp;
+        private int dstIp;
+        private int identification;
+
+        void set(int src_ip, int dst_ip, int identification) {
+            this.srcIp = src_ip;
+            this.dstIp = dst_ip;
+            this.identification = identification;
+        }
+
+        Key copy() {
+            Key key = new Key();
+            key.set(srcIp, dstIp, identification);
+            return key;
+        }
+
+        long flow() {
+            return ((long) srcIp << 32) | (dstIp & 0xFFFFFFFFL);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return key.srcIp == srcIp && key.dstIp == dstIp && key.identification == identification;
+        }
+
+        @Override
+        public int hashCode() {
+            return (srcIp * 31 + dstIp) * 31 + identification;
+        }
+    }
+
+    // One datagram in progress
+    private static final class Datagram {
+        private final Key key;
+        private final long firstNanos;
+        private byte[] data = new byte[INITIAL_CAPACITY];
+        private final BitSet received = new BitSet();  // 8 byte units
+        private byte[] header = null;                  // IP header of the first fragment
+        private int length = -1;                       // Known once the last fragment is in
+
+        Datagram(Key key, long firstNanos) {
+            this.key = key;
+            this.firstNanos = firstNanos;
+        }
+
+        void ensure(int capacity) {
+            if (capacity > data.length) data = Arrays.copyOf(data, Math.min(MAX_IP_LENGTH, Math.max(capacity, data.length * 2)));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package lib;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Captures inside the JVM: every datagram the control socket receives while capturing is
+ * written to a capture file (pcapng for a .pcapng name, libpcap otherwise) and its payload is kept
+ * (unless a capture filter drops it), so there is no process
+ * to start, no sudo and no second read of the file.
+ */
+public class InProcessCaptureBackend implements CaptureBackend {
+
+    private final boolean verbose;
+    private final List<String> payloads = new ArrayList<>();
+    private CaptureWriter pcapWriter = null;
+    private String outputFilePath = null;
+    private int localIp = 0;
+    private int localPort = 0;
+    private PacketFilter filter = null;
+
+    public InProcessCaptureBackend(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    @Override
+    public String get_name() { return "in-jvm"; }
+
+    @Override
+    public boolean supports_filter() { return true; }
+
+    @Override
+    public void set_filter(PacketFilter filter) { this.filter = filter; }
+
+    @Override
+    public boolean supports_follow() { return true; }
+
+    @Override
+    public void start(String host, int port, String output_file_path) throws IOException {
+        outputFilePath = output_file_path;
+        localIp = PcapWriter.ipv4_to_int(InetAddress.getByName(host).getAddress());
+        localPort = port;
+        pcapWriter = CaptureWriter.open(Paths.get(output_file_path));
+        if (verbose) System.out.println("Writing capture to " + output_file_path);
+    }
+
+    @Override
+    public boolean is_attached() { return pcapWriter != null; }
+
+    @Override
+    public void on_datagram(ByteBuffer data, int src_ip, int src_port, long timestamp_nanos) throws IOException {
+        if (pcapWriter == null) return;
+        if (filter != null && !filter.test_payload(src_ip, src_port, localIp, localPort, data)) return;
+        pcapWriter.write_udp_packet(src_ip, src_port, localIp, localPort, data, timestamp_nanos);
+        payloads.add(Bytes.to_string(data));
+    }
+
+    @Override
+    public CompletableFuture<Void> stop() throws IOException {
+        close_writer();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void close_writer() throws IOException {
+        if (pcapWriter == null) return;
+        CaptureWriter writer = pcapWriter;
+        pcapWriter = null;
+        writer.close();
+        if (verbose) System.out.println("Captured " + writer.get_packet_count() + " packets into " + outputFilePath);
+    }
+
+    @Override
+    public List<String> read_payloads() {
+        return payloads;
+    }
+
+    @Override
+    public void abort() {
+        try {
+            close_writer();
+        } catch (IOException ignored) {
+            // Nothing else to release
+        }
+    }
+}
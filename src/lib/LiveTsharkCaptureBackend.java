@@ -0,0 +1,103 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Single pass tshark capture: the same tshark process writes the pcap file (-w) and prints the
+ * hex payload of every packet as it is captured (-P -l -T fields -e data). Lines are decoded
+ * as they arrive, so there is no second read of the file. Stopping waits for tshark to print the
+ * packets the control socket saw, then for it to exit: the file is complete and every printed
+ * payload has been read when the stop future completes.
+ */
+public class LiveTsharkCaptureBackend extends TsharkCaptureBackend {
+
+    // After stop: wait for tshark to print the remaining packets, for at most this long
+    private static final long CATCH_UP_MILLIS = 1000;
+
+    private final List<String> payloads = new ArrayList<>();
+    private long expectedPackets = 0;   // Datagrams the control socket saw since tshark attached
+    private volatile long missingPackets = 0;
+
+    public LiveTsharkCaptureBackend(boolean verbose) {
+        super(verbose);
+    }
+
+    @Override
+    public String get_name() { return "tshark-live"; }
+
+    @Override
+    public boolean supports_filter() { return false; }
+
+    @Override
+    public void set_filter(PacketFilter filter) {
+        throw new UnsupportedOperationException("The tshark-live capture backend prints payloads only and cannot apply capture filters");
+    }
+
+    @Override
+    protected String capture_options(String host, int port, String output_file_path) {
+        // Display filters are not allowed while writing a file, so the capture filter keeps it to UDP
+        return String.format("-f \"udp and %s\" -w %s -P -l -T fields -e data", CaptureProcessPool.capture_filter(host, port), output_file_path);
+    }
+
+    @Override
+    protected void on_output_line(String line) {
+        super.on_output_line(line);
+        String payload = Bytes.from_hex(line);
+        if (payload == null) return;  // Status output, not a packet
+        synchronized (payloads) {
+            payloads.add(payload);
+            payloads.notifyAll();
+        }
+    }
+
+    @Override
+    public void on_datagram(ByteBuffer data, int src_ip, int src_port, long timestamp_nanos) {
+        if (is_attached()) expectedPackets++;
+    }
+
+    @Override
+    public CompletableFuture<Void> stop() throws IOException {
+        if (captureProcess == null) return CompletableFuture.completedFuture(null);
+
+        // Give tshark the time to capture what the control socket saw before it is interrupted
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CATCH_UP_MILLIS);
+        synchronized (payloads) {
+            try {
+                while (payloads.size() < expectedPackets && captureProcess.isAlive()) {
+                    long now = System.nanoTime();
+                    if (now >= deadline) break;
+                    payloads.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Complete once tshark has finished the file and everything it printed has been read
+        externalCpuNanos = cpu_nanos(captureProcess.toHandle());
+        long expected = expectedPackets;
+        return interrupt().thenCompose(process -> outputClosed).thenCompose(closed -> {
+            synchronized (payloads) {
+                missingPackets = Math.max(0, expected - payloads.size());
+            }
+            if (verbose && missingPackets > 0) System.out.println("tshark printed " + (expected - missingPackets) + " of " + expected + " packets seen by the socket.");
+            return file_written();
+        });
+    }
+
+    @Override
+    public long get_missing_packets() { return missingPackets; }
+
+    @Override
+    public List<String> read_payloads() {
+        synchronized (payloads) {
+            return new ArrayList<>(payloads);
+        }
+    }
+}
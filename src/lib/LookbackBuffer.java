@@ -0,0 +1,150 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Pre-trigger memory of the most recent datagrams, like an oscilloscope pre-trigger.
+ * While a capture is armed, every datagram is copied into a circular byte store bounded by
+ * packet count, total bytes and age; the oldest entries are evicted first. When the trigger
+ * fires, flush() replays what is still inside the window, oldest first.
+ * All storage is allocated up front, so adding a datagram allocates nothing.
+ */
+public class LookbackBuffer {
+
+    /**
+     * Receives the replayed datagrams. The buffer is only valid during the call.
+     */
+    public interface Visitor {
+        void visit(ByteBuffer data, int src_ip, int src_port, long timestamp_nanos) throws IOException;
+    }
+
+    private final int maxPackets;
+    private final int maxBytes;
+    private final long maxAgeNanos;
+
+    private final ByteBuffer store;
+    private final ByteBuffer scratch;  // Contiguous copy of an entry that wraps around the store
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] srcIps;
+    private final int[] srcPorts;
+    private final long[] timestamps;
+
+    private int head = 0;   // Oldest entry
+    private int count = 0;
+    private int writeOffset = 0;
+    private int usedBytes = 0;
+    private long evicted = 0;
+    private long triggerNanos = Long.MAX_VALUE;  // Once set, the age limit is measured from the trigger
+
+    public LookbackBuffer(int max_packets, int max_bytes, long max_age_nanos) {
+        this.maxPackets = max_packets;
+        this.maxBytes = max_bytes;
+        this.maxAgeNanos = max_age_nanos;
+        store = ByteBuffer.allocateDirect(max_bytes);
+        scratch = ByteBuffer.allocateDirect(Math.min(max_bytes, 65535));
+        offsets = new int[max_packets];
+        lengths = new int[max_packets];
+        srcIps = new int[max_packets];
+        srcPorts = new int[max_packets];
+        timestamps = new long[max_packets];
+    }
+
+    /**
+     * Remember a datagram (position and limit of data are left untouched).
+     * Datagrams larger than the whole store are not kept.
+     */
+    public void add(ByteBuffer data, int src_ip, int src_port, long timestamp_nanos) {
+        int length = Math.min(data.remaining(), scratch.capacity());
+        if (length > maxBytes) return;
+
+        expire(timestamp_nanos);
+        while (count > 0 && (count == maxPackets || usedBytes + length > maxBytes)) evict_oldest();
+
+        int index = (head + count) % maxPackets;
+        offsets[index] = writeOffset;
+        lengths[index] = length;
+        srcIps[index] = src_ip;
+        srcPorts[index] = src_port;
+        timestamps[index] = timestamp_nanos;
+
+        // Copy, wrapping around the end of the store
+        int position = data.position();
+        int first = Math.min(length, maxBytes - writeOffset);
+        store.put(writeOffset, data, position, first);
+        if (first < length) store.put(0, data, position + first, length - first);
+
+        writeOffset = (writeOffset + length) % maxBytes;
+        usedBytes += length;
+        count++;
+    }
+
+    /**
+     * Replay the datagrams still inside the window (oldest first) and empty the buffer.
+     * Returns the number of datagrams replayed.
+     */
+    public int flush(long now_nanos, Visitor visitor) throws IOException {
+        expire(now_nanos);
+        int replayed = count;
+        for (int i = 0; i < replayed; i++) {
+            int index = (head + i) % maxPackets;
+            int offset = offsets[index];
+            int length = lengths[index];
+
+            ByteBuffer view;
+            if (offset + length <= maxBytes) {
+                view = store.duplicate();
+                view.limit(offset + length).position(offset);
+            } else {
+                int first = maxBytes - offset;
+                scratch.clear();
+                scratch.put(0, store, offset, first);
+                scratch.put(first, store, 0, length - first);
+                view = scratch.limit(length).position(0);
+            }
+            visitor.visit(view, srcIps[index], srcPorts[index], timestamps[index]);
+        }
+        clear();
+        return replayed;
+    }
+
+    /**
+     * Freeze the pre-trigger window: datagrams added from now on are kept (within the count and
+     * byte limits) and only those older than max_age before the trigger expire.
+     */
+    public void mark_trigger(long trigger_nanos) {
+        triggerNanos = trigger_nanos;
+    }
+
+    public void clear() {
+        triggerNanos = Long.MAX_VALUE;
+        head = 0;
+        count = 0;
+        writeOffset = 0;
+        usedBytes = 0;
+    }
+
+    public int size() { return count; }
+
+    // Datagrams pushed out by the count, byte or age limit
+    public long get_evicted() { return evicted; }
+
+    private void expire(long now_nanos) {
+        if (maxAgeNanos <= 0) return;
+        long reference = Math.min(now_nanos, triggerNanos);
+        while (count > 0 && reference - timestamps[head] > maxAgeNanos) evict_oldest();
+    }
+
+    private void evict_oldest() {
+        usedBytes -= lengths[head];
+        head = (head + 1) % maxPackets;
+        count--;
+        evicted++;
+        if (count == 0) {
+            writeOffset = 0;
+            usedBytes = 0;
+        }
+    }
+}
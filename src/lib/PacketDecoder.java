@@ -0,0 +1,133 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Finds the UDP payload inside a captured frame without copying it.
+ * Supported link types: Ethernet (with 802.1Q tags), BSD null/loopback, raw IP,
+ * Linux cooked (SLL and SLL2). Only unfragmented IPv4/UDP is decoded; fragments are put back
+ * together by FragmentReassembler.
+ */
+public final class PacketDecoder {
+
+    public static final int LINKTYPE_NULL = 0;
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int LINKTYPE_LOOP = 108;
+    public static final int LINKTYPE_LINUX_SLL = 113;
+    public static final int LINKTYPE_IPV4 = 228;
+    public static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    private static final int AF_INET = 2;
+    private static final int PROTOCOL_UDP = 17;
+
+    private PacketDecoder() {
+    }
+
+    /**
+     * Offset of the IPv4 header within frame (relative to position), -1 if the frame is not IPv4.
+     */
+    public static int ipv4_offset(ByteBuffer frame, int linktype) {
+        frame = big_endian(frame);
+        int base = frame.position();
+        int length = frame.remaining();
+        int offset;
+        switch (linktype) {
+            case LINKTYPE_ETHERNET: {
+                offset = 12;
+                if (length < offset + 2) return -1;
+                int etherType = frame.getShort(base + offset) & 0xFFFF;
+                while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) && length >= offset + 6) {
+                    offset += 4;
+                    etherType = frame.getShort(base + offset) & 0xFFFF;
+                }
+                if (etherType != ETHERTYPE_IPV4) return -1;
+                offset += 2;
+                break;
+            }
+            case LINKTYPE_NULL:
+            case LINKTYPE_LOOP: {
+                if (length < 4) return -1;
+                // NULL stores the family in the writer's byte order, LOOP in network order
+                int family = frame.getInt(base);
+                if (family != AF_INET && Integer.reverseBytes(family) != AF_INET) return -1;
+                offset = 4;
+                break;
+            }
+            case LINKTYPE_LINUX_SLL:
+                if (length < 16 || (frame.getShort(base + 14) & 0xFFFF) != ETHERTYPE_IPV4) return -1;
+                offset = 16;
+                break;
+            case LINKTYPE_LINUX_SLL2:
+                if (length < 20 || (frame.getShort(base) & 0xFFFF) != ETHERTYPE_IPV4) return -1;
+                offset = 20;
+                break;
+            case LINKTYPE_RAW:
+            case LINKTYPE_IPV4:
+                offset = 0;
+                break;
+            default:
+                return -1;
+        }
+        if (length < offset + 20 || (frame.get(base + offset) & 0xF0) != 0x40) return -1;
+        return offset;
+    }
+
+    /**
+     * Offset of the UDP header within frame (relative to position), -1 when the frame is not an
+     * unfragmented IPv4/UDP packet.
+     */
+    public static int udp_offset(ByteBuffer frame, int linktype) {
+        frame = big_endian(frame);
+        int ip = ipv4_offset(frame, linktype);
+        if (ip < 0) return -1;
+        int base = frame.position();
+
+        int headerLength = (frame.get(base + ip) & 0x0F) * 4;
+        int flagsAndOffset = frame.getShort(base + ip + 6) & 0xFFFF;
+        if (frame.get(base + ip + 9) != PROTOCOL_UDP || (flagsAndOffset & 0x3FFF) != 0) return -1;  // Not UDP, or a fragment
+
+        int udp = ip + headerLength;
+        return frame.remaining() < udp + 8 ? -1 : udp;
+    }
+
+    /**
+     * True if the frame is a fragment of an IPv4/UDP datagram (more fragments flag or a non-zero offset).
+     */
+    public static boolean is_udp_fragment(ByteBuffer frame, int linktype) {
+        frame = big_endian(frame);
+        int ip = ipv4_offset(frame, linktype);
+        if (ip < 0) return false;
+        int base = frame.position();
+        return frame.get(base + ip + 9) == PROTOCOL_UDP && (frame.getShort(base + ip + 6) & 0x3FFF) != 0;
+    }
+
+    /**
+     * Slice of frame holding the UDP payload (shares the frame's memory), or null when the frame
+     * is not an unfragmented IPv4/UDP packet. Payloads cut by the snap length are returned as captured.
+     */
+    public static ByteBuffer udp_payload(ByteBuffer frame, int linktype) {
+        frame = big_endian(frame);
+        int udp = udp_offset(frame, linktype);
+        if (udp < 0) return null;
+        int base = frame.position();
+
+        int payloadLength = (frame.getShort(base + udp + 4) & 0xFFFF) - 8;
+        int start = udp + 8;
+        int available = Math.min(Math.max(payloadLength, 0), frame.remaining() - start);
+
+        ByteBuffer payload = frame.duplicate();
+        payload.position(base + start).limit(base + start + available);
+        return payload.slice();
+    }
+
+    // Header fields are in network order whatever order the capture file uses
+    private static ByteBuffer big_endian(ByteBuffer frame) {
+        return frame.order() == ByteOrder.BIG_ENDIAN ? frame : frame.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+}
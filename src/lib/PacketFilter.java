@@ -0,0 +1,73 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Capture filter compiled from a small expression language into a tree of lambdas that test the
+ * header fields and payload of a UDP packet in place: no per-packet objects, no string decoding.
+ *
+ *   [src|dst] host 10.0.0.1        [src|dst] net 10.0.0.0/8
+ *   [src|dst] port 5555            [src|dst] portrange 5000-5999
+ *   len > 100  (payload length; <, <=, >, >=, ==, = and !=)
+ *   prefix "START"  /  prefix 0x53544152   (payload starts with)
+ *   not / !, and / &&, or / ||, parentheses
+ *
+ * Addresses are IPv4 in host order ints (as PcapWriter.ipv4_to_int); ports are 0-65535.
+ */
+@FunctionalInterface
+public interface PacketFilter {
+
+    PacketFilter ALL = (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> true;
+
+    /**
+     * True if the packet passes; the payload is data[offset, offset + length), absolute indexes.
+     */
+    boolean test(int src_ip, int src_port, int dst_ip, int dst_port, ByteBuffer data, int offset, int length);
+
+    /**
+     * Test a datagram whose payload lies between position and limit of data.
+     */
+    default boolean test_payload(int src_ip, int src_port, int dst_ip, int dst_port, ByteBuffer data) {
+        return test(src_ip, src_port, dst_ip, dst_port, data, data.position(), data.remaining());
+    }
+
+    /**
+     * Test a captured frame (link layer header first, between position and limit); frames that are
+     * not unfragmented IPv4/UDP never pass. Big endian buffers, such as PcapReader.frame(), are read
+     * in place.
+     */
+    default boolean test_frame(ByteBuffer frame, int linktype) {
+        if (frame.order() != ByteOrder.BIG_ENDIAN) frame = frame.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int udp = PacketDecoder.udp_offset(frame, linktype);
+        if (udp < 0) return false;
+        int base = frame.position();
+        int ip = PacketDecoder.ipv4_offset(frame, linktype);
+        int payload = base + udp + 8;
+        int length = Math.min(Math.max((frame.getShort(base + udp + 4) & 0xFFFF) - 8, 0), frame.limit() - payload);
+        return test(frame.getInt(base + ip + 12), frame.getShort(base + udp) & 0xFFFF, frame.getInt(base + ip + 16), frame.getShort(base + udp + 2) & 0xFFFF, frame, payload, length);
+    }
+
+    default PacketFilter and(PacketFilter other) {
+        return (src_ip, src_port, dst_ip, dst_port, data, offset, length) ->
+            test(src_ip, src_port, dst_ip, dst_port, data, offset, length) && other.test(src_ip, src_port, dst_ip, dst_port, data, offset, length);
+    }
+
+    default PacketFilter or(PacketFilter other) {
+        return (src_ip, src_port, dst_ip, dst_port, data, offset, length) ->
+            test(src_ip, src_port, dst_ip, dst_port, data, offset, length) || other.test(src_ip, src_port, dst_ip, dst_port, data, offset, length);
+    }
+
+    default PacketFilter negate() {
+        return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> !test(src_ip, src_port, dst_ip, dst_port, data, offset, length);
+    }
+
+    /**
+     * Compile a filter expression; an empty expression passes everything.
+     * Throws IllegalArgumentException naming the position of a syntax error.
+     */
+    static PacketFilter compile(String expression) {
+        return new PacketFilterCompiler(expression).compile();
+    }
+}
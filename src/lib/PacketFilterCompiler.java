@@ -0,0 +1,277 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Recursive descent compiler of PacketFilter expressions:
+ *
+ *   or      := and (("or" | "||") and)*
+ *   and     := unary (("and" | "&&") unary)*
+ *   unary   := ("not" | "!") unary | "(" or ")" | primitive
+ *   primitive := [src|dst] host A.B.C.D | [src|dst] net A.B.C.D/N | [src|dst] port N
+ *              | [src|dst] portrange N-M | len OP N | prefix "text" | prefix 0xHEX
+ *
+ * Each primitive becomes one lambda over constants fixed at compile time.
+ */
+final class PacketFilterCompiler {
+
+    private static final int SRC = 1;
+    private static final int DST = 2;
+    private static final int EITHER = SRC | DST;
+
+    private final String text;
+    private int position = 0;
+
+    PacketFilterCompiler(String text) {
+        this.text = text == null ? "" : text;
+    }
+
+    PacketFilter compile() {
+        skip_spaces();
+        if (position == text.length()) return PacketFilter.ALL;
+        PacketFilter filter = parse_or();
+        skip_spaces();
+        if (position < text.length()) throw error("Unexpected '" + text.substring(position) + "'");
+        return filter;
+    }
+
+    private PacketFilter parse_or() {
+        PacketFilter filter = parse_and();
+        while (accept("||") || accept_word("or")) filter = filter.or(parse_and());
+        return filter;
+    }
+
+    private PacketFilter parse_and() {
+        PacketFilter filter = parse_unary();
+        while (accept("&&") || accept_word("and")) filter = filter.and(parse_unary());
+        return filter;
+    }
+
+    private PacketFilter parse_unary() {
+        if (accept_word("not") || (!peek("!=") && accept("!"))) return parse_unary().negate();
+        if (accept("(")) {
+            PacketFilter filter = parse_or();
+            if (!accept(")")) throw error("Expected ')'");
+            return filter;
+        }
+        return parse_primitive();
+    }
+
+    private PacketFilter parse_primitive() {
+        int direction = EITHER;
+        if (accept_word("src")) direction = SRC;
+        else if (accept_word("dst")) direction = DST;
+
+        if (accept_word("host")) return address(direction, parse_address(), -1);
+        if (accept_word("net")) {
+            int address = parse_address();
+            int bits = 32;
+            if (accept("/")) {
+                bits = parse_number();
+                if (bits > 32) throw error("Prefix length above 32");
+            }
+            int mask = bits == 0 ? 0 : -1 << (32 - bits);
+            return address(direction, address & mask, mask);
+        }
+        if (accept_word("port")) {
+            int port = parse_port();
+            return ports(direction, port, port);
+        }
+        if (accept_word("portrange")) {
+            int low = parse_port();
+            if (!accept("-")) throw error("Expected '-' in port range");
+            int high = parse_port();
+            if (high < low) throw error("Empty port range " + low + "-" + high);
+            return ports(direction, low, high);
+        }
+        if (direction != EITHER) throw error("Expected host, net, port or portrange after src/dst");
+        if (accept_word("len") || accept_word("length")) return length(parse_operator(), parse_number());
+        if (accept_word("prefix")) return prefix(parse_bytes());
+        throw error(position == text.length() ? "Unexpected end of filter" : "Unknown filter primitive");
+    }
+
+    private static PacketFilter address(int direction, int address, int mask) {
+        switch (direction) {
+            case SRC: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> (src_ip & mask) == address;
+            case DST: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> (dst_ip & mask) == address;
+            default: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> (src_ip & mask) == address || (dst_ip & mask) == address;
+        }
+    }
+
+    private static PacketFilter ports(int direction, int low, int high) {
+        if (low == high) {
+            switch (direction) {
+                case SRC: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> src_port == low;
+                case DST: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> dst_port == low;
+                default: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> src_port == low || dst_port == low;
+            }
+        }
+        // Unsigned range check: one comparison per port
+        int span = high - low;
+        switch (direction) {
+            case SRC: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> Integer.compareUnsigned(src_port - low, span) <= 0;
+            case DST: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> Integer.compareUnsigned(dst_port - low, span) <= 0;
+            default: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) ->
+                Integer.compareUnsigned(src_port - low, span) <= 0 || Integer.compareUnsigned(dst_port - low, span) <= 0;
+        }
+    }
+
+    private static PacketFilter length(String operator, int value) {
+        switch (operator) {
+            case "<": return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> length < value;
+            case "<=": return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> length <= value;
+            case ">": return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> length > value;
+            case ">=": return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> length >= value;
+            case "!=": return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> length != value;
+            default: return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> length == value;
+        }
+    }
+
+    private static PacketFilter prefix(byte[] expected) {
+        if (expected.length == 0) return PacketFilter.ALL;
+        int count = expected.length;
+        // Compare a leading word first so most mismatches cost one read
+        if (count >= 4) {
+            int head = ByteBuffer.wrap(expected).getInt();
+            int reversed = Integer.reverseBytes(head);
+            return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> {
+                if (length < count || data.getInt(offset) != (data.order() == ByteOrder.BIG_ENDIAN ? head : reversed)) return false;
+                for (int i = 4; i < count; i++) {
+                    if (data.get(offset + i) != expected[i]) return false;
+                }
+                return true;
+            };
+        }
+        return (src_ip, src_port, dst_ip, dst_port, data, offset, length) -> {
+            if (length < count) return false;
+            for (int i = 0; i < count; i++) {
+                if (data.get(offset + i) != expected[i]) return false;
+            }
+            return true;
+        };
+    }
+
+    private int parse_address() {
+        skip_spaces();
+        int start = position;
+        int address = 0;
+        for (int part = 0; part < 4; part++) {
+            if (part > 0 && !accept_char('.')) throw error("Expected IPv4 address");
+            int value = parse_digits(start);
+            if (value > 255) throw error("Address byte above 255");
+            address = (address << 8) | value;
+        }
+        return address;
+    }
+
+    private int parse_port() {
+        int port = parse_number();
+        if (port > 65535) throw error("Port above 65535");
+        return port;
+    }
+
+    private int parse_number() {
+        skip_spaces();
+        return parse_digits(position);
+    }
+
+    private int parse_digits(int start) {
+        int from = position;
+        long value = 0;
+        while (position < text.length() && Character.isDigit(text.charAt(position)) && value <= Integer.MAX_VALUE) {
+            value = value * 10 + (text.charAt(position++) - '0');
+        }
+        if (position == from) {
+            position = start;
+            throw error("Expected number");
+        }
+        if (value > Integer.MAX_VALUE) {
+            position = from;  // The loop stopped inside the number
+            throw error("Number too large");
+        }
+        return (int) value;
+    }
+
+    private String parse_operator() {
+        skip_spaces();
+        for (String operator : new String[] { "<=", ">=", "==", "!=", "<", ">", "=" }) {
+            if (text.startsWith(operator, position)) {
+                position += operator.length();
+                return operator;
+            }
+        }
+        throw error("Expected comparison operator");
+    }
+
+    // Quoted text (ISO-8859-1, one byte per character, \" and \\ escapes) or 0x followed by hex digits
+    private byte[] parse_bytes() {
+        skip_spaces();
+        if (accept_char('"')) {
+            StringBuilder value = new StringBuilder();
+            while (position < text.length() && text.charAt(position) != '"') {
+                char c = text.charAt(position++);
+                if (c == '\\' && position < text.length()) c = text.charAt(position++);
+                value.append(c);
+            }
+            if (!accept_char('"')) throw error("Unterminated string");
+            return value.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+        if (text.startsWith("0x", position) || text.startsWith("0X", position)) {
+            int start = position;
+            position += 2;
+            int from = position;
+            while (position < text.length() && Character.digit(text.charAt(position), 16) >= 0) position++;
+            int digits = position - from;
+            if (digits == 0 || digits % 2 != 0) {
+                position = start;
+                throw error("Expected an even number of hex digits");
+            }
+            byte[] value = new byte[digits / 2];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = (byte) Integer.parseInt(text.substring(from + 2 * i, from + 2 * i + 2), 16);
+            }
+            return value;
+        }
+        throw error("Expected \"text\" or 0xHEX");
+    }
+
+    private boolean peek(String token) {
+        skip_spaces();
+        return text.startsWith(token, position);
+    }
+
+    private boolean accept(String token) {
+        if (!peek(token)) return false;
+        position += token.length();
+        return true;
+    }
+
+    private boolean accept_char(char c) {
+        if (position < text.length() && text.charAt(position) == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    // A keyword, not the start of a longer word
+    private boolean accept_word(String word) {
+        skip_spaces();
+        int end = position + word.length();
+        if (!text.regionMatches(true, position, word, 0, word.length())) return false;
+        if (end < text.length() && Character.isLetterOrDigit(text.charAt(end))) return false;
+        position = end;
+        return true;
+    }
+
+    private void skip_spaces() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + position + " of filter: " + text);
+    }
+}
@@ -0,0 +1,1009 @@
+package lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+
+/**
+ * Inverted index over the UDP payloads of a captures directory, so a payload can be found without
+ * decoding every capture. Terms are the words of the payload text (letters, digits and '_',
+ * lower-cased) and every 3-byte sequence of the payload. Each term maps to its postings: the
+ * packets holding it as (file, packet number), delta and varint encoded with runs of equal gaps
+ * collapsed (a term of a message template is in every packet, or every n-th). Packets are found again
+ * through the capture's CaptureIndex, which is saved as sidecar while indexing if the file has none.
+ *
+ * The index lives in <directory>/payloads.index: a manifest of the indexed files and segments of
+ * postings, each covering the files indexed together. Captures are added as they close (add,
+ * submit, CaptureUDP.set_payload_index) or by refresh(), which also forgets files that changed or
+ * are gone; segments are merged as they pile up. A fragmented datagram is indexed as a whole under
+ * the packet number of the fragment that completed it (see PcapReader.seek_packet).
+ */
+public class PayloadIndex implements Closeable {
+
+    public static final String DIRECTORY_NAME = "payloads.index";
+    public static final int MAGIC = 0x5544504D;          // "UDPM", the manifest
+    public static final int SEGMENT_MAGIC = 0x55445050;  // "UDPP", a segment of postings
+    public static final int VERSION = 2;  // 2: fragmented datagrams indexed
+
+    public static final int GRAM_LENGTH = 3;
+    public static final int MAX_WORD_LENGTH = 64;  // Longer runs of word characters are not indexed as words
+
+    // Segments kept before the two smallest neighbours are merged
+    private static final int MAX_SEGMENTS = 8;
+    // Postings held in memory while indexing before they are written as a segment
+    private static final long SEGMENT_BYTES = 32 << 20;
+    // Rarest grams of a search looked up; the candidates are checked against the payload anyway
+    private static final int MAX_SEARCH_GRAMS = 8;
+    // Candidates few enough to check in the captures rather than narrow down further
+    private static final int FEW_CANDIDATES = 64;
+
+    private final Path directory;
+    private final Path store;
+    private final Path manifest;
+    private final int parallelism;
+    private final boolean verbose;
+    private final TreeMap<String, IndexedFile> files = new TreeMap<>();  // Live files by path
+    private final Map<Integer, IndexedFile> filesById = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();  // Oldest first: file ids grow along the list
+    private int nextFileId = 1;
+    private int nextSegment = 0;
+    private ExecutorService background = null;
+
+    /**
+     * Index of the directory as last saved (empty if there is none); call refresh() to bring it up to date.
+     */
+    public PayloadIndex(Path directory, int parallelism, boolean verbose) throws IOException {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.store = this.directory.resolve(DIRECTORY_NAME);
+        this.manifest = store.resolve("manifest");
+        this.parallelism = parallelism;
+        this.verbose = verbose;
+        Files.createDirectories(store);
+        load();
+    }
+
+    // Overloaded constructor: one indexing thread per core, quiet
+    public PayloadIndex(Path directory) throws IOException {
+        this(directory, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Index of the directory, refreshed.
+     */
+    public static PayloadIndex open(Path directory) throws IOException {
+        PayloadIndex index = new PayloadIndex(directory);
+        index.refresh();
+        return index;
+    }
+
+    // ---- Indexing ----
+
+    /**
+     * Index new and changed captures of the directory and forget deleted ones. Returns the number
+     * of files indexed.
+     */
+    public synchronized int refresh() throws IOException {
+        List<Path> changed = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        for (Path file : CaptureBatch.list_captures(directory)) {
+            String name = relative(file);
+            present.add(name);
+            IndexedFile indexed = files.get(name);
+            if (indexed == null || !indexed.matches(Files.readAttributes(file, BasicFileAttributes.class))) changed.add(file);
+        }
+        boolean modified = false;
+        for (String name : new ArrayList<>(files.keySet())) {
+            if (!present.contains(name)) modified |= forget(name);
+        }
+
+        SegmentBuilder[] builder = { new SegmentBuilder() };
+        IOException[] writeError = { null };
+        if (!changed.isEmpty()) {
+            CaptureBatchReport report = new CaptureBatch(parallelism, false).run(changed, PayloadIndex::collect, result -> {
+                String name = relative(result.get_file());
+                forget(name);
+                if (result.failed()) {
+                    if (verbose) System.out.println("Not indexed: " + name + ": " + result.get_error().getMessage());
+                    return;
+                }
+                if (writeError[0] != null) return;
+                builder[0].add(register(name, result.get_result()), result.get_result());
+                if (builder[0].bytes >= SEGMENT_BYTES) {
+                    try {
+                        write_segment(builder[0]);
+                    } catch (IOException e) {
+                        writeError[0] = e;
+                    }
+                    builder[0] = new SegmentBuilder();
+                }
+            });
+            if (verbose) System.out.println("Indexed " + report);
+            modified = true;
+        }
+        try {
+            if (writeError[0] != null) throw writeError[0];
+            if (!builder[0].isEmpty()) write_segment(builder[0]);
+        } finally {
+            if (modified) commit();
+        }
+        return changed.size();
+    }
+
+    /**
+     * Index one closed capture of the directory now, replacing what was indexed for it. Returns
+     * false if it is already indexed as it is.
+     */
+    public boolean add(Path file) throws IOException {
+        String name = relative(file);
+        synchronized (this) {
+            IndexedFile indexed = files.get(name);
+            if (indexed != null && indexed.matches(Files.readAttributes(file, BasicFileAttributes.class))) return false;
+        }
+        FilePostings postings;
+        try (PcapReader reader = new PcapReader(file)) {
+            postings = collect(reader);  // Outside the lock: searches go on meanwhile
+        }
+        synchronized (this) {
+            forget(name);
+            SegmentBuilder builder = new SegmentBuilder();
+            builder.add(register(name, postings), postings);
+            try {
+                write_segment(builder);
+            } finally {
+                commit();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Index a closed capture on the index's background thread; usable as a segment listener.
+     * Failures complete the future exceptionally (and are printed when verbose).
+     */
+    public synchronized CompletableFuture<Boolean> submit(Path file) {
+        if (background == null) {
+            background = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "payload-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        background.submit(() -> {
+            try {
+                done.complete(add(file));
+            } catch (Exception e) {
+                if (verbose) System.out.println("Not indexed: " + file + ": " + e.getMessage());
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    // Postings of one capture file, on a CaptureBatch thread or the caller's
+    private static FilePostings collect(PcapReader reader) throws IOException {
+        FilePostings postings = new FilePostings(Files.readAttributes(reader.get_file(), BasicFileAttributes.class));  // Before reading: a later change is seen as one
+        CaptureIndex captureIndex = reader.index() == null ? new CaptureIndex(CaptureIndex.DEFAULT_STRIDE, CaptureIndex.DEFAULT_BUCKET_NANOS) : null;
+        FragmentReassembler reassembler = new FragmentReassembler();  // Not the reader's: the capture index needs every packet
+        while (reader.next()) {
+            if (captureIndex != null) captureIndex.add(reader.record_offset(), reader.timestamp_nanos());
+            ByteBuffer payload;
+            if (PacketDecoder.is_udp_fragment(reader.frame(), reader.linktype())) {
+                ByteBuffer datagram = reassembler.add(reader.frame(), reader.linktype(), reader.timestamp_nanos());
+                payload = datagram == null ? null : PacketDecoder.udp_payload(datagram, PacketDecoder.LINKTYPE_RAW);
+            } else {
+                payload = reader.udp_payload();
+            }
+            if (payload == null || !payload.hasRemaining()) continue;
+            long ordinal = reader.packet_index();
+
+            int start = payload.position();
+            int end = payload.limit();
+            int gram = 0;
+            for (int i = start; i < end; i++) {
+                gram = ((gram << 8) | (payload.get(i) & 0xFF)) & 0xFFFFFF;
+                if (i - start >= GRAM_LENGTH - 1) postings.gram(gram).add(ordinal);
+            }
+            words(payload, word -> postings.word(word).add(ordinal));
+        }
+        if (captureIndex != null) {
+            try {
+                captureIndex.write_sidecar(reader.get_file());
+            } catch (IOException e) {
+                // Read-only capture directory: hits are found by reading from the start
+            }
+        }
+        return postings;
+    }
+
+    // Words of the bytes (ISO-8859-1), lower-cased; runs longer than MAX_WORD_LENGTH are left out
+    private static void words(ByteBuffer data, Consumer<String> onWord) {
+        words(data, false, onWord);
+    }
+
+    // Inner words only: those with a non-word byte on both sides, so they are whole words wherever the bytes are found
+    private static void words(ByteBuffer data, boolean inner, Consumer<String> onWord) {
+        StringBuilder word = new StringBuilder();
+        boolean tooLong = false;
+        boolean bounded = !inner;  // A non-word byte came before the current word
+        for (int i = data.position(); i <= data.limit(); i++) {
+            char c = i < data.limit() ? (char) (data.get(i) & 0xFF) : ' ';
+            if (is_word_char(c)) {
+                if (word.length() < MAX_WORD_LENGTH) word.append(Character.toLowerCase(c));
+                else tooLong = true;
+            } else {
+                if (word.length() > 0 && !tooLong && bounded && (i < data.limit() || !inner)) onWord.accept(word.toString());
+                word.setLength(0);
+                tooLong = false;
+                bounded = true;
+            }
+        }
+    }
+
+    private static boolean is_word_char(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    // ---- Search ----
+
+    /**
+     * Packets whose payload holds the text (ISO-8859-1, exact bytes, at least GRAM_LENGTH), in file
+     * and packet order.
+     */
+    public List<Hit> search(String text) throws IOException {
+        return search_bytes(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Packets whose payload holds the bytes (at least GRAM_LENGTH), in file and packet order. The
+     * whole words inside the needle and its rarest grams give the candidates, which are then
+     * checked in their captures.
+     */
+    public List<Hit> search_bytes(byte[] needle) throws IOException {
+        if (needle.length < GRAM_LENGTH) throw new IllegalArgumentException("Search for at least " + GRAM_LENGTH + " bytes");
+        Set<String> words = new HashSet<>();
+        words(ByteBuffer.wrap(needle), true, words::add);
+        Set<Integer> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= needle.length; i++) {
+            grams.add(((needle[i] & 0xFF) << 16) | ((needle[i + 1] & 0xFF) << 8) | (needle[i + 2] & 0xFF));
+        }
+        List<Hit> candidates;
+        synchronized (this) {
+            // Rarest terms first, until the candidates are few enough to check
+            List<Object> terms = new ArrayList<>(words);
+            List<Integer> rarestGrams = new ArrayList<>(grams);
+            rarestGrams.sort((a, b) -> Long.compare(postings_bytes(a), postings_bytes(b)));
+            terms.addAll(rarestGrams.subList(0, Math.min(MAX_SEARCH_GRAMS, rarestGrams.size())));
+            terms.sort((a, b) -> Long.compare(postings_bytes(a), postings_bytes(b)));
+            Matches matches = null;
+            for (Object term : terms) {
+                if (matches != null && matches.size <= FEW_CANDIDATES) break;
+                matches = retain(matches, matches(term));
+            }
+            candidates = to_hits(matches);
+        }
+        return verify(candidates, needle);
+    }
+
+    /**
+     * Packets whose payload has every word of the text (case-insensitive), in file and packet order.
+     */
+    public List<Hit> search_words(String text) throws IOException {
+        List<String> words = new ArrayList<>();
+        words(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)), words::add);
+        if (words.isEmpty()) throw new IllegalArgumentException("No word to search for in \"" + text + "\"");
+        List<Hit> hits;
+        synchronized (this) {
+            Matches matches = null;
+            words.sort((a, b) -> Long.compare(postings_bytes(a), postings_bytes(b)));
+            for (String word : words) {
+                matches = retain(matches, matches(word));
+                if (matches.size == 0) break;
+            }
+            hits = to_hits(matches);
+        }
+        hits.removeIf(hit -> !Files.exists(hit.file));  // Rotated away since it was indexed
+        return hits;
+    }
+
+    // Packets of a term: a word (String) or a gram (Integer)
+    private Matches matches(Object term) throws IOException {
+        Matches postings = new Matches();
+        for (Segment segment : segments) {
+            postings.decode(term instanceof String ? segment.word_postings((String) term) : segment.gram_postings((Integer) term), filesById);
+        }
+        return postings;
+    }
+
+    private long postings_bytes(Object term) {
+        long bytes = 0;
+        for (Segment segment : segments) bytes += term instanceof String ? segment.word_length((String) term) : segment.gram_length((Integer) term);
+        return bytes;
+    }
+
+    private static Matches retain(Matches matches, Matches postings) {
+        return matches == null ? postings : matches.retain(postings);
+    }
+
+    private List<Hit> to_hits(Matches matches) {
+        List<Hit> hits = new ArrayList<>(matches == null ? 0 : matches.size);
+        for (int i = 0; matches != null && i < matches.size; i++) {
+            hits.add(new Hit(directory.resolve(filesById.get(matches.files[i]).path), matches.ordinals[i]));
+        }
+        return hits;
+    }
+
+    // Candidates whose payload really holds the needle, each capture opened once
+    private static List<Hit> verify(List<Hit> candidates, byte[] needle) throws IOException {
+        Map<Path, List<Hit>> byFile = new LinkedHashMap<>();
+        for (Hit hit : candidates) byFile.computeIfAbsent(hit.file, file -> new ArrayList<>()).add(hit);
+        List<Hit> hits = new ArrayList<>();
+        for (Map.Entry<Path, List<Hit>> file : byFile.entrySet()) {
+            try (PcapReader reader = new PcapReader(file.getKey())) {
+                reader.set_reassembler(new FragmentReassembler());
+                for (Hit hit : file.getValue()) {
+                    ByteBuffer payload = reader.seek_packet(hit.packetIndex) && reader.next() ? reader.udp_payload() : null;
+                    if (payload != null && contains(payload, needle)) hits.add(hit);
+                }
+            } catch (NoSuchFileException e) {
+                // Rotated away or rewritten since it was indexed
+            }
+        }
+        return hits;
+    }
+
+    private static boolean contains(ByteBuffer data, byte[] needle) {
+        int last = data.limit() - needle.length;
+        for (int i = data.position(); i <= last; i++) {
+            int j = 0;
+            while (j < needle.length && data.get(i + j) == needle[j]) j++;
+            if (j == needle.length) return true;
+        }
+        return false;
+    }
+
+    // ---- Files ----
+
+    public synchronized int size() { return files.size(); }
+
+    public synchronized int get_segment_count() { return segments.size(); }
+
+    // Space the index takes on disk
+    public synchronized long get_stored_bytes() throws IOException {
+        long bytes = Files.exists(manifest) ? Files.size(manifest) : 0;
+        for (Segment segment : segments) bytes += segment.size;
+        return bytes;
+    }
+
+    public Path get_directory() { return directory; }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (background != null) {
+            background.shutdown();
+            try {
+                background.awaitTermination(1, TimeUnit.MINUTES);  // Let a capture being indexed finish
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Segment segment : segments) segment.close();
+        segments.clear();
+    }
+
+    private String relative(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        if (!absolute.startsWith(directory)) throw new IllegalArgumentException(file + " is not in " + directory);
+        return directory.relativize(absolute).toString().replace('\\', '/');
+    }
+
+    private IndexedFile register(String name, FilePostings postings) {
+        IndexedFile file = new IndexedFile(nextFileId++, name, postings.size, postings.modifiedMillis);
+        files.put(name, file);
+        filesById.put(file.id, file);
+        return file;
+    }
+
+    // Drop a file; its postings are skipped from now on and left out by the next merge
+    private boolean forget(String name) {
+        IndexedFile file = files.remove(name);
+        if (file == null) return false;
+        filesById.remove(file.id);
+        return true;
+    }
+
+    // ---- Segments ----
+
+    // Files whose segment could not be written are forgotten, so the next refresh indexes them again
+    private void write_segment(SegmentBuilder builder) throws IOException {
+        String name = "segment-" + nextSegment++;
+        try {
+            write_segment(builder, name);
+        } catch (IOException | RuntimeException e) {
+            for (String path : builder.paths) forget(path);
+            throw e;
+        }
+        segments.add(new Segment(name, store.resolve(name)));
+    }
+
+    private void write_segment(SegmentBuilder builder, String name) throws IOException {
+        try (SegmentOutput output = new SegmentOutput(store.resolve(name))) {
+            int[] grams = builder.grams.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            for (int gram : grams) output.gram(gram, builder.grams.get(gram));
+            String[] words = builder.words.keySet().toArray(new String[0]);
+            Arrays.sort(words);
+            for (String word : words) output.word(word, builder.words.get(word));
+            output.finish();
+        }
+    }
+
+    // Merge neighbours while there are too many segments, then save the manifest and drop unused segment files
+    private void commit() throws IOException {
+        while (segments.size() > MAX_SEGMENTS) {
+            int smallest = 0;
+            for (int i = 1; i + 1 < segments.size(); i++) {
+                if (segments.get(i).size + segments.get(i + 1).size < segments.get(smallest).size + segments.get(smallest + 1).size) smallest = i;
+            }
+            Segment older = segments.get(smallest);
+            Segment newer = segments.get(smallest + 1);
+            Segment merged = merge(older, newer);
+            segments.set(smallest, merged);
+            segments.remove(smallest + 1);
+            older.close();
+            newer.close();
+        }
+        save();
+
+        Set<String> used = new HashSet<>();
+        used.add(manifest.getFileName().toString());
+        for (Segment segment : segments) used.add(segment.name);
+        try (Stream<Path> stored = Files.list(store)) {
+            for (Path file : (Iterable<Path>) stored::iterator) {
+                if (!used.contains(file.getFileName().toString())) Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // One segment with the postings of both, files that are gone left out; older holds the lower file ids
+    private Segment merge(Segment older, Segment newer) throws IOException {
+        String name = "segment-" + nextSegment++;
+        try (SegmentOutput output = new SegmentOutput(store.resolve(name))) {
+            for (int i = 0, j = 0; i < older.grams.length || j < newer.grams.length; ) {
+                int gram = j == newer.grams.length || (i < older.grams.length && older.grams[i] < newer.grams[j]) ? older.grams[i] : newer.grams[j];
+                Postings postings = new Postings();
+                if (i < older.grams.length && older.grams[i] == gram) postings.append_live(older.read(older.gramStarts, i++), filesById);
+                if (j < newer.grams.length && newer.grams[j] == gram) postings.append_live(newer.read(newer.gramStarts, j++), filesById);
+                if (postings.length > 0) output.gram(gram, postings);
+            }
+            for (int i = 0, j = 0; i < older.words.length || j < newer.words.length; ) {
+                String word = j == newer.words.length || (i < older.words.length && older.words[i].compareTo(newer.words[j]) < 0) ? older.words[i] : newer.words[j];
+                Postings postings = new Postings();
+                if (i < older.words.length && older.words[i].equals(word)) postings.append_live(older.read(older.wordStarts, i++), filesById);
+                if (j < newer.words.length && newer.words[j].equals(word)) postings.append_live(newer.read(newer.wordStarts, j++), filesById);
+                if (postings.length > 0) output.word(word, postings);
+            }
+            output.finish();
+        }
+        return new Segment(name, store.resolve(name));
+    }
+
+    // ---- Manifest ----
+
+    private void load() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest), 1 << 16))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                if (verbose) System.out.println("Ignoring " + manifest + ": not an index of this version");
+                return;
+            }
+            nextFileId = input.readInt();
+            nextSegment = input.readInt();
+            int fileCount = input.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                IndexedFile file = new IndexedFile(input.readInt(), input.readUTF(), input.readLong(), input.readLong());
+                files.put(file.path, file);
+                filesById.put(file.id, file);
+            }
+            int segmentCount = input.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                String name = input.readUTF();
+                segments.add(new Segment(name, store.resolve(name)));
+            }
+        } catch (NoSuchFileException e) {
+            // New index
+        } catch (IOException e) {
+            // Damaged index: rebuilt on the next refresh
+            for (Segment segment : segments) segment.close();
+            segments.clear();
+            files.clear();
+            filesById.clear();
+            if (verbose) System.out.println("Ignoring " + manifest + ": " + e.getMessage());
+        }
+    }
+
+    private void save() throws IOException {
+        Path temporary = store.resolve("manifest.tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(nextFileId);
+            output.writeInt(nextSegment);
+            output.writeInt(files.size());
+            for (IndexedFile file : files.values()) {
+                output.writeInt(file.id);
+                output.writeUTF(file.path);
+                output.writeLong(file.size);
+                output.writeLong(file.modifiedMillis);
+            }
+            output.writeInt(segments.size());
+            for (Segment segment : segments) output.writeUTF(segment.name);
+        }
+        Files.move(temporary, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write_varint(OutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long read_varint(ByteBuffer input) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = input.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    /**
+     * One packet holding a searched payload.
+     */
+    public static class Hit {
+
+        private final Path file;
+        private final long packetIndex;
+
+        Hit(Path file, long packet_index) {
+            this.file = file;
+            this.packetIndex = packet_index;
+        }
+
+        public Path get_file() { return file; }
+
+        // Zero based packet number in the file, for PcapReader.seek_packet
+        public long get_packet_index() { return packetIndex; }
+
+        @Override
+        public String toString() {
+            return file + " #" + packetIndex;
+        }
+    }
+
+    // ---- Postings ----
+
+    // A file the index covers, as it was when indexed
+    private static final class IndexedFile {
+        private final int id;
+        private final String path;
+        private final long size;
+        private final long modifiedMillis;
+
+        IndexedFile(int id, String path, long size, long modified_millis) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+            this.modifiedMillis = modified_millis;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modifiedMillis == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * Growable varint-encoded bytes. Within one file: packet number gaps, each as gap << 1 with the
+     * low bit set when a count of further equal gaps follows. In a segment, per file: file id
+     * delta, packet count, byte length and the file's packets, so files that are gone can be
+     * skipped whole.
+     */
+    private static final class Postings extends OutputStream {
+        private byte[] bytes = new byte[16];
+        private int length = 0;
+        private int count = 0;
+        private long lastOrdinal = 0;
+        private long gap = -1;      // Gap not written yet, -1 for none
+        private long repeats = 0;   // Further packets after the same gap
+        private int lastFile = 0;
+
+        @Override
+        public void write(int b) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int size) {
+            if (length + size > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(length + size, length * 2));
+            System.arraycopy(data, offset, bytes, length, size);
+            length += size;
+        }
+
+        // A packet of the file being collected; a term seen twice in a packet is kept once
+        void add(long ordinal) {
+            if (count > 0 && ordinal == lastOrdinal) return;
+            if (ordinal - lastOrdinal == gap) {
+                repeats++;
+            } else {
+                seal();
+                gap = ordinal - lastOrdinal;
+            }
+            lastOrdinal = ordinal;
+            count++;
+        }
+
+        // Write the pending gap; done before the bytes are used
+        Postings seal() {
+            if (gap < 0) return this;
+            try {
+                write_varint(this, gap << 1 | (repeats > 0 ? 1 : 0));
+                if (repeats > 0) write_varint(this, repeats);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);  // In memory
+            }
+            gap = -1;
+            repeats = 0;
+            return this;
+        }
+
+        // A file's packets, after those of lower file ids
+        void append_file(int file, Postings packets) {
+            packets.seal();
+            try {
+                write_varint(this, file - lastFile);
+                write_varint(this, packets.count);
+                write_varint(this, packets.length);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            write(packets.bytes, 0, packets.length);
+            lastFile = file;
+        }
+
+        // A segment's postings, files that are gone left out
+        void append_live(ByteBuffer segment, Map<Integer, IndexedFile> live) {
+            int file = 0;
+            while (segment.hasRemaining()) {
+                file += (int) read_varint(segment);
+                long count = read_varint(segment);
+                int size = (int) read_varint(segment);
+                if (live.containsKey(file)) {
+                    try {
+                        write_varint(this, file - lastFile);
+                        write_varint(this, count);
+                        write_varint(this, size);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    write(segment.array(), segment.arrayOffset() + segment.position(), size);
+                    lastFile = file;
+                }
+                segment.position(segment.position() + size);
+            }
+        }
+    }
+
+    // Postings of one capture file while it is read
+    private static final class FilePostings {
+        private final long size;
+        private final long modifiedMillis;
+        private int[] gramKeys = new int[1024];  // Open addressing; gram | GRAM_PRESENT, 0 for a free slot
+        private Postings[] gramPostings = new Postings[1024];
+        private int gramCount = 0;
+        private final Map<String, Postings> words = new HashMap<>();
+
+        private static final int GRAM_PRESENT = 1 << 24;
+
+        FilePostings(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.modifiedMillis = attributes.lastModifiedTime().toMillis();
+        }
+
+        Postings gram(int gram) {
+            int key = gram | GRAM_PRESENT;
+            int mask = gramKeys.length - 1;
+            int slot = home_slot(key, mask);
+            while (gramKeys[slot] != 0) {
+                if (gramKeys[slot] == key) return gramPostings[slot];
+                slot = (slot + 1) & mask;
+            }
+            if (gramCount * 2 >= gramKeys.length) {
+                grow();
+                return gram(gram);
+            }
+            gramKeys[slot] = key;
+            gramCount++;
+            return gramPostings[slot] = new Postings();
+        }
+
+        private void grow() {
+            int[] keys = gramKeys;
+            Postings[] postings = gramPostings;
+            gramKeys = new int[keys.length * 2];
+            gramPostings = new Postings[keys.length * 2];
+            int mask = gramKeys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == 0) continue;
+                int slot = home_slot(keys[i], mask);
+                while (gramKeys[slot] != 0) slot = (slot + 1) & mask;
+                gramKeys[slot] = keys[i];
+                gramPostings[slot] = postings[i];
+            }
+        }
+
+        // Fibonacci hashing: the top log2(capacity) bits of the product, so every slot can be hit
+        private static int home_slot(int key, int mask) {
+            return (key * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+        }
+
+        Postings word(String word) {
+            return words.computeIfAbsent(word, key -> new Postings());
+        }
+    }
+
+    // Postings of the files indexed together, before they are written
+    private static final class SegmentBuilder {
+        private final Map<Integer, Postings> grams = new HashMap<>();
+        private final Map<String, Postings> words = new HashMap<>();
+        private final List<String> paths = new ArrayList<>();
+        private long bytes = 0;
+
+        void add(IndexedFile file, FilePostings postings) {
+            paths.add(file.path);
+            for (int i = 0; i < postings.gramKeys.length; i++) {
+                if (postings.gramKeys[i] == 0) continue;
+                Postings gram = postings.gramPostings[i];
+                grams.computeIfAbsent(postings.gramKeys[i] & ~FilePostings.GRAM_PRESENT, key -> new Postings()).append_file(file.id, gram);
+                bytes += gram.length + 8;
+            }
+            for (Map.Entry<String, Postings> word : postings.words.entrySet()) {
+                words.computeIfAbsent(word.getKey(), key -> new Postings()).append_file(file.id, word.getValue());
+                bytes += word.getValue().length + 8;
+            }
+        }
+
+        boolean isEmpty() { return grams.isEmpty() && words.isEmpty(); }
+    }
+
+    /**
+     * Segment file: SEGMENT_MAGIC, VERSION, the postings of every term, then the dictionary (grams in
+     * order with their postings length, words in order likewise) and its offset as the last 8 bytes.
+     */
+    private static final class SegmentOutput implements Closeable {
+        private final Path path;
+        private final Path temporary;
+        private final DataOutputStream output;
+        private final DataOutputStream gramDictionary;
+        private final DataOutputStream wordDictionary;
+        private final ByteArrayOutputStream gramBytes = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream wordBytes = new ByteArrayOutputStream();
+        private long position = 8;
+        private int gramCount = 0;
+        private int wordCount = 0;
+
+        SegmentOutput(Path path) throws IOException {
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16));
+            this.gramDictionary = new DataOutputStream(gramBytes);
+            this.wordDictionary = new DataOutputStream(wordBytes);
+            output.writeInt(SEGMENT_MAGIC);
+            output.writeInt(VERSION);
+        }
+
+        void gram(int gram, Postings postings) throws IOException {
+            output.write(postings.bytes, 0, postings.length);
+            position += postings.length;
+            gramDictionary.writeInt(gram);
+            write_varint(gramDictionary, postings.length);
+            gramCount++;
+        }
+
+        void word(String word, Postings postings) throws IOException {
+            output.write(postings.bytes, 0, postings.length);
+            position += postings.length;
+            byte[] bytes = word.getBytes(StandardCharsets.ISO_8859_1);
+            write_varint(wordDictionary, bytes.length);
+            wordDictionary.write(bytes);
+            write_varint(wordDictionary, postings.length);
+            wordCount++;
+        }
+
+        // Write the dictionary and put the segment in place
+        void finish() throws IOException {
+            output.writeInt(gramCount);
+            gramBytes.writeTo(output);
+            output.writeInt(wordCount);
+            wordBytes.writeTo(output);
+            output.writeLong(position);
+            output.close();
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Without finish(): nothing is left behind
+        @Override
+        public void close() throws IOException {
+            output.close();
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // A segment file opened for search: the dictionary in memory, postings read when needed
+    private static final class Segment implements Closeable {
+        private final String name;
+        private final FileChannel channel;
+        private final long size;
+        private final int[] grams;
+        private final long[] gramStarts;  // One more than grams: postings i are [starts[i], starts[i + 1])
+        private final String[] words;
+        private final long[] wordStarts;
+
+        Segment(String name, Path path) throws IOException {
+            this.name = name;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                size = channel.size();
+                ByteBuffer header = read_at(0, 8);
+                if (size < 16 || header.getInt() != SEGMENT_MAGIC || header.getInt() != VERSION) throw new IOException("Not a payload index segment: " + path);
+                long dictionary = read_at(size - 8, 8).getLong();
+                ByteBuffer input = read_at(dictionary, (int) (size - 8 - dictionary));
+
+                long start = 8;
+                grams = new int[input.getInt()];
+                gramStarts = new long[grams.length + 1];
+                for (int i = 0; i < grams.length; i++) {
+                    grams[i] = input.getInt();
+                    gramStarts[i] = start;
+                    start += read_varint(input);
+                }
+                gramStarts[grams.length] = start;
+
+                words = new String[input.getInt()];
+                wordStarts = new long[words.length + 1];
+                for (int i = 0; i < words.length; i++) {
+                    byte[] bytes = new byte[(int) read_varint(input)];
+                    input.get(bytes);
+                    words[i] = new String(bytes, StandardCharsets.ISO_8859_1);
+                    wordStarts[i] = start;
+                    start += read_varint(input);
+                }
+                wordStarts[words.length] = start;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e instanceof IOException ? (IOException) e : new IOException("Damaged payload index segment: " + path, e);
+            }
+        }
+
+        ByteBuffer gram_postings(int gram) throws IOException {
+            int i = Arrays.binarySearch(grams, gram);
+            return i < 0 ? null : read(gramStarts, i);
+        }
+
+        long gram_length(int gram) {
+            int i = Arrays.binarySearch(grams, gram);
+            return i < 0 ? 0 : gramStarts[i + 1] - gramStarts[i];
+        }
+
+        long word_length(String word) {
+            int i = Arrays.binarySearch(words, word);
+            return i < 0 ? 0 : wordStarts[i + 1] - wordStarts[i];
+        }
+
+        ByteBuffer word_postings(String word) throws IOException {
+            int i = Arrays.binarySearch(words, word);
+            return i < 0 ? null : read(wordStarts, i);
+        }
+
+        ByteBuffer read(long[] starts, int i) throws IOException {
+            return read_at(starts[i], (int) (starts[i + 1] - starts[i]));
+        }
+
+        private ByteBuffer read_at(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Payload index segment ends early: " + name);
+            }
+            return buffer.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Decoded postings: (file, packet number), sorted by file then packet
+    private static final class Matches {
+        private int[] files = new int[16];
+        private long[] ordinals = new long[16];
+        private int size = 0;
+
+        // Segments are decoded oldest first, so the order holds
+        void decode(ByteBuffer segment, Map<Integer, IndexedFile> live) {
+            if (segment == null) return;
+            int file = 0;
+            while (segment.hasRemaining()) {
+                file += (int) read_varint(segment);
+                long count = read_varint(segment);
+                int length = (int) read_varint(segment);
+                if (!live.containsKey(file)) {
+                    segment.position(segment.position() + length);
+                    continue;
+                }
+                long ordinal = 0;
+                for (long i = 0; i < count; ) {
+                    long gap = read_varint(segment);
+                    long repeats = (gap & 1) == 0 ? 0 : read_varint(segment);
+                    for (long r = 0; r <= repeats; r++, i++) {
+                        ordinal += gap >>> 1;
+                        add(file, ordinal);
+                    }
+                }
+            }
+        }
+
+        void add(int file, long ordinal) {
+            if (size == files.length) {
+                files = Arrays.copyOf(files, size * 2);
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            files[size] = file;
+            ordinals[size] = ordinal;
+            size++;
+        }
+
+        // The packets also in other
+        Matches retain(Matches other) {
+            Matches both = new Matches();
+            for (int i = 0, j = 0; i < size && j < other.size; ) {
+                int order = files[i] != other.files[j] ? Integer.compare(files[i], other.files[j]) : Long.compare(ordinals[i], other.ordinals[j]);
+                if (order == 0) both.add(files[i], ordinals[i]);
+                if (order <= 0) i++;
+                if (order >= 0) j++;
+            }
+            return both;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Writes a pcapng file: one section header, one interface description (nanosecond if_tsresol)
+ * and an enhanced packet block per packet, optionally with a comment.
+ * On close a custom block holding a CaptureIndex is appended as the last block, so PcapReader can
+ * jump to a packet number or time range; wireshark and tshark skip it like any unknown custom block.
+ */
+public class PcapNgWriter implements CaptureWriter {
+
+    public static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    public static final int BLOCK_INTERFACE_DESCRIPTION = 1;
+    public static final int BLOCK_ENHANCED_PACKET = 6;
+    // Custom block that must not be copied into other files: the offsets are only valid here
+    public static final int BLOCK_CUSTOM_NO_COPY = 0x40000BAD;
+    // Enterprise number of the index block. PLACEHOLDER: 32473 is the RFC 5612 documentation number,
+    // to be replaced by a Private Enterprise Number assigned to this project. Blocks of other tools
+    // may carry it too, so PcapReader only takes the block when its body also starts with
+    // CaptureIndex.MAGIC ("UDPX") and decodes; anything else is skipped like any custom block
+    public static final int INDEX_ENTERPRISE_NUMBER = 32473;
+
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_COMMENT = 1;
+    private static final int OPTION_SHB_USERAPPL = 4;
+    private static final int OPTION_IF_TSRESOL = 9;
+    private static final int MAX_OPTION_LENGTH = 0xFFFC;
+    private static final String APPLICATION = "JavaFX-Wireshark-UDP-Capture";
+
+    private static final int EPB_HEADER_LENGTH = 28;  // Type, length, interface, timestamp, lengths
+    private static final int BLOCK_TRAILER_LENGTH = 4;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int linktype;
+    private final CaptureIndex index;
+    private int ipIdentification = 0;
+    private long packetCount = 0;
+    private long bytesWritten = 0;
+
+    public PcapNgWriter(Path path) throws IOException {
+        this(path, PcapWriter.LINKTYPE_ETHERNET, CaptureIndex.DEFAULT_STRIDE);
+    }
+
+    public PcapNgWriter(Path path, int linktype, int index_stride) throws IOException {
+        if (path.getParent() != null) path.getParent().toFile().mkdirs();
+        this.linktype = linktype;
+        this.index = new CaptureIndex(index_stride, CaptureIndex.DEFAULT_BUCKET_NANOS);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect((1 << 16) + EPB_HEADER_LENGTH + PcapWriter.SNAPLEN + 8 + MAX_OPTION_LENGTH + 8).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Section header: version 1.0, section length unknown
+        byte[] application = APPLICATION.getBytes(StandardCharsets.UTF_8);
+        int start = begin_block(BLOCK_SECTION_HEADER);
+        buffer.putInt(BYTE_ORDER_MAGIC);
+        buffer.putShort((short) 1).putShort((short) 0);
+        buffer.putLong(-1);
+        put_option(OPTION_SHB_USERAPPL, application, application.length);
+        buffer.putShort((short) OPTION_END).putShort((short) 0);
+        end_block(start);
+
+        // Interface description: nanosecond timestamps
+        start = begin_block(BLOCK_INTERFACE_DESCRIPTION);
+        buffer.putShort((short) linktype).putShort((short) 0);
+        buffer.putInt(PcapWriter.SNAPLEN);
+        put_option(OPTION_IF_TSRESOL, new byte[] { 9 }, 1);
+        buffer.putShort((short) OPTION_END).putShort((short) 0);
+        end_block(start);
+    }
+
+    @Override
+    public void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, byte[] data, int offset, int length, long timestamp_nanos) throws IOException {
+        write_udp_packet(src_ip, src_port, dst_ip, dst_port, ByteBuffer.wrap(data, offset, length), timestamp_nanos, null);
+    }
+
+    @Override
+    public void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, ByteBuffer data, long timestamp_nanos) throws IOException {
+        write_udp_packet(src_ip, src_port, dst_ip, dst_port, data, timestamp_nanos, null);
+    }
+
+    /**
+     * Write one UDP datagram with a packet comment (null for none). The buffer position is left untouched.
+     */
+    public void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, ByteBuffer data, long timestamp_nanos, String comment) throws IOException {
+        int length = data.remaining();
+        int captured = Math.min(length, PcapWriter.SNAPLEN - PcapWriter.FRAME_OVERHEAD);
+        byte[] commentBytes = comment == null ? null : comment.getBytes(StandardCharsets.UTF_8);
+        int start = begin_packet(PcapWriter.FRAME_OVERHEAD + captured, PcapWriter.FRAME_OVERHEAD + length, timestamp_nanos, commentBytes);
+
+        PcapWriter.put_udp_headers(buffer, src_ip, src_port, dst_ip, dst_port, length, ipIdentification++);
+        int limit = data.limit();
+        int position = data.position();
+        data.limit(position + captured);
+        buffer.put(data);
+        data.limit(limit);
+        data.position(position);
+
+        end_packet(start, PcapWriter.FRAME_OVERHEAD + captured, commentBytes);
+    }
+
+    /**
+     * Write a captured frame of the writer's link type as it is (between position and limit;
+     * the position is left untouched), for example one read from another capture file.
+     */
+    public void write_frame(ByteBuffer frame, int original_length, long timestamp_nanos, String comment) throws IOException {
+        int captured = Math.min(frame.remaining(), PcapWriter.SNAPLEN);
+        byte[] commentBytes = comment == null ? null : comment.getBytes(StandardCharsets.UTF_8);
+        int start = begin_packet(captured, Math.max(original_length, captured), timestamp_nanos, commentBytes);
+        buffer.put(frame.duplicate().limit(frame.position() + captured));
+        end_packet(start, captured, commentBytes);
+    }
+
+    private int begin_packet(int captured, int original, long timestamp_nanos, byte[] comment) throws IOException {
+        int options = comment == null ? 0 : 4 + pad(Math.min(comment.length, MAX_OPTION_LENGTH)) + 4;
+        if (buffer.remaining() < EPB_HEADER_LENGTH + pad(captured) + options + BLOCK_TRAILER_LENGTH) flush();
+
+        index.add(bytesWritten, timestamp_nanos);  // Completed blocks, buffered or not: the offset of this one
+        int start = begin_block(BLOCK_ENHANCED_PACKET);
+        buffer.putInt(0);  // Interface
+        buffer.putInt((int) (timestamp_nanos >>> 32));
+        buffer.putInt((int) timestamp_nanos);
+        buffer.putInt(captured);
+        buffer.putInt(original);
+        return start;
+    }
+
+    private void end_packet(int start, int captured, byte[] comment) {
+        for (int i = captured; i < pad(captured); i++) buffer.put((byte) 0);
+        if (comment != null) {
+            put_option(OPTION_COMMENT, comment, Math.min(comment.length, MAX_OPTION_LENGTH));
+            buffer.putShort((short) OPTION_END).putShort((short) 0);
+        }
+        end_block(start);
+        packetCount++;
+    }
+
+    private int begin_block(int type) {
+        int start = buffer.position();
+        buffer.putInt(type);
+        buffer.putInt(0);  // Length, filled by end_block
+        return start;
+    }
+
+    private void end_block(int start) {
+        int length = buffer.position() - start + BLOCK_TRAILER_LENGTH;
+        buffer.putInt(start + 4, length);
+        buffer.putInt(length);
+        bytesWritten += length;
+    }
+
+    private void put_option(int code, byte[] value, int length) {
+        buffer.putShort((short) code).putShort((short) length);
+        buffer.put(value, 0, length);
+        for (int i = length; i < pad(length); i++) buffer.put((byte) 0);
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    // Index of the packets written so far
+    public CaptureIndex get_index() { return index; }
+
+    @Override
+    public long get_packet_count() { return packetCount; }
+
+    @Override
+    public long get_bytes_written() { return bytesWritten; }
+
+    public int get_linktype() { return linktype; }
+
+    /**
+     * Push buffered blocks to the file.
+     */
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+
+            // Index block, always the last block of the file
+            int length = 8 + 4 + pad(index.encoded_length()) + BLOCK_TRAILER_LENGTH;
+            ByteBuffer block = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            block.putInt(BLOCK_CUSTOM_NO_COPY).putInt(length).putInt(INDEX_ENTERPRISE_NUMBER);
+            index.encode(block);
+            block.position(length - BLOCK_TRAILER_LENGTH);
+            block.putInt(length);
+            block.flip();
+            while (block.hasRemaining()) channel.write(block);
+            bytesWritten += length;
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package lib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+
+/**
+ * Reads libpcap and pcapng capture files through memory-mapped windows, so files of any size are
+ * read without copying them onto the heap. Call next() to move to the next packet; frame() and
+ * udp_payload() are slices of the mapped file, valid as long as they are referenced.
+ * Classic pcap: micro- and nanosecond files in either byte order. pcapng: sections in either byte
+ * order, enhanced, simple and obsolete packet blocks, per-interface link type and if_tsresol.
+ * A record cut short at the end of the file (capture still running or killed) ends the file; for
+ * a file still being written, refresh() picks up what was appended and next() goes on from there.
+ * Files written by PcapNgWriter carry a CaptureIndex, other files may have a sidecar one; seek_packet,
+ * seek_time and read_time_range use it to jump close to a packet number or time without reading
+ * everything before it.
+ */
+public class PcapReader implements Closeable {
+
+    // libpcap magic numbers, as read in the file's byte order
+    public static final int MAGIC_MICROSECONDS = 0xA1B2C3D4;
+    public static final int MAGIC_NANOSECONDS = PcapWriter.MAGIC_NANOSECONDS;
+
+    // pcapng block types
+    public static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    public static final int BLOCK_INTERFACE_DESCRIPTION = 1;
+    public static final int BLOCK_PACKET = 2;
+    public static final int BLOCK_SIMPLE_PACKET = 3;
+    public static final int BLOCK_ENHANCED_PACKET = 6;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_COMMENT = 1;
+    private static final int OPTION_IF_TSRESOL = 9;
+    private static final int DEFAULT_TSRESOL = 6;  // Microseconds
+
+    // Bytes mapped at a time; a window always holds at least one whole record
+    private static final long MAP_WINDOW = 64L << 20;
+
+    private final Path file;
+    private final FileChannel channel;
+    private long size;  // Grows with refresh()
+    private final boolean pcapng;
+    private ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long offset;  // Next record or block
+
+    // Classic pcap
+    private int fileLinktype = PacketDecoder.LINKTYPE_ETHERNET;
+    private boolean nanosecondTimestamps = false;
+
+    // pcapng interfaces of the current section: link type and if_tsresol
+    private final List<int[]> interfaces = new ArrayList<>();
+
+    // Current packet
+    private ByteBuffer frame = null;
+    private int linktype = PacketDecoder.LINKTYPE_ETHERNET;
+    private long timestampNanos = 0;
+    private int originalLength = 0;
+    private long recordOffset = -1;
+    private long frameOffset = -1;
+    private long packetIndex = -1;
+    private long optionsStart = -1;  // Options of the current packet block, -1 for none
+    private long optionsEnd = -1;
+
+    // Index block at the end of the file, loaded on first use
+    private CaptureIndex captureIndex = null;
+    private boolean captureIndexLoaded = false;
+
+    private PacketFilter filter = null;  // Packets next() skips
+    private FragmentReassembler reassembler = null;
+
+    public PcapReader(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+        try {
+            if (!ensure(0, 4)) throw new IOException("Not a capture file: " + file);
+            int magic = window.order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+            pcapng = magic == BLOCK_SECTION_HEADER;
+            if (pcapng) {
+                if (!ensure(0, 12)) throw new IOException("Truncated pcapng section header: " + file);
+                int byteOrderMagic = window.order(ByteOrder.LITTLE_ENDIAN).getInt(8);
+                order = byteOrderMagic == BYTE_ORDER_MAGIC ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+                offset = 0;
+            } else {
+                if (!ensure(0, PcapWriter.GLOBAL_HEADER_LENGTH)) throw new IOException("Truncated pcap header: " + file);
+                if (magic == MAGIC_MICROSECONDS || magic == MAGIC_NANOSECONDS) {
+                    order = ByteOrder.LITTLE_ENDIAN;
+                } else if (Integer.reverseBytes(magic) == MAGIC_MICROSECONDS || Integer.reverseBytes(magic) == MAGIC_NANOSECONDS) {
+                    order = ByteOrder.BIG_ENDIAN;
+                    magic = Integer.reverseBytes(magic);
+                } else {
+                    throw new IOException("Not a pcap or pcapng file: " + file);
+                }
+                nanosecondTimestamps = magic == MAGIC_NANOSECONDS;
+                fileLinktype = get_int(20) & 0x0FFFFFFF;  // Upper bits carry the FCS length
+                offset = PcapWriter.GLOBAL_HEADER_LENGTH;
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Payloads of all IPv4/UDP datagrams in the file, in file order, decoded byte per char.
+     * Fragmented datagrams are reassembled and appear at the position of their last fragment.
+     */
+    public static List<String> read_udp_payloads(Path file) throws IOException {
+        return read_udp_payloads(file, null);
+    }
+
+    // Overloaded method: only the packets that pass the filter (null: all)
+    public static List<String> read_udp_payloads(Path file, PacketFilter filter) throws IOException {
+        List<String> payloads = new ArrayList<>();
+        try (PcapReader reader = new PcapReader(file)) {
+            reader.set_filter(filter);
+            reader.set_reassembler(new FragmentReassembler());
+            while (reader.next()) {
+                ByteBuffer payload = reader.udp_payload();
+                if (payload != null) payloads.add(Bytes.to_string(payload));
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Let next() and read_time_range() skip the packets that do not pass the filter (null: none
+     * skipped). Skipped packets still count in packet_index().
+     */
+    public void set_filter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Let next() put fragmented IPv4/UDP datagrams back together (null: return fragments as they
+     * are). A fragment that completes a datagram is returned as the whole datagram: frame() is then
+     * the reassembled IPv4 packet and linktype() LINKTYPE_RAW; the other fragments are skipped.
+     */
+    public void set_reassembler(FragmentReassembler reassembler) {
+        this.reassembler = reassembler;
+    }
+
+    /**
+     * Pick up what was appended to the file since it was opened or last refreshed: next() goes on
+     * from where it stopped, a record that was cut short included. Returns true if the file grew.
+     */
+    public boolean refresh() throws IOException {
+        long current = channel.size();
+        if (current <= size) return false;
+        size = current;
+        return true;
+    }
+
+    /**
+     * Move to the next packet (that passes the filter); false at the end of the file.
+     */
+    public boolean next() throws IOException {
+        while (advance()) {
+            if (accept()) return true;
+        }
+        return false;
+    }
+
+    // Reassemble the current packet if it is a fragment; false if next() skips it
+    private boolean accept() {
+        if (reassembler != null && PacketDecoder.is_udp_fragment(frame, linktype)) {
+            ByteBuffer datagram = reassembler.add(frame, linktype, timestampNanos);
+            if (datagram == null) return false;  // More fragments to come
+            frame = datagram;
+            linktype = PacketDecoder.LINKTYPE_RAW;
+        }
+        return filter == null || filter.test_frame(frame, linktype);
+    }
+
+    // Next packet, filter or not
+    private boolean advance() throws IOException {
+        frame = null;
+        return pcapng ? next_block() : next_record();
+    }
+
+    private boolean next_record() throws IOException {
+        if (!ensure(offset, PcapWriter.RECORD_HEADER_LENGTH)) return false;
+        long seconds = get_int(offset) & 0xFFFFFFFFL;
+        long fraction = get_int(offset + 4) & 0xFFFFFFFFL;
+        int captured = get_int(offset + 8);
+        if (captured < 0 || captured > 1 << 24) throw new IOException("Corrupt pcap record at offset " + offset);
+        if (!ensure(offset, PcapWriter.RECORD_HEADER_LENGTH + captured)) return false;
+
+        set_packet(offset, offset + PcapWriter.RECORD_HEADER_LENGTH, captured, get_int(offset + 12), fileLinktype,
+            seconds * 1_000_000_000L + (nanosecondTimestamps ? fraction : fraction * 1000));
+        offset += PcapWriter.RECORD_HEADER_LENGTH + captured;
+        return true;
+    }
+
+    private boolean next_block() throws IOException {
+        while (ensure(offset, 12)) {
+            int type = get_int(offset);  // The section header type reads the same in both orders
+            if (type == BLOCK_SECTION_HEADER) {
+                int byteOrderMagic = window.order(ByteOrder.LITTLE_ENDIAN).getInt((int) (offset + 8 - windowStart));
+                if (byteOrderMagic == BYTE_ORDER_MAGIC) order = ByteOrder.LITTLE_ENDIAN;
+                else if (Integer.reverseBytes(byteOrderMagic) == BYTE_ORDER_MAGIC) order = ByteOrder.BIG_ENDIAN;
+                else throw new IOException("Corrupt pcapng section header at offset " + offset);
+                interfaces.clear();
+            }
+            int length = get_int(offset + 4);
+            if (length < 12 || (length & 3) != 0) throw new IOException("Corrupt pcapng block at offset " + offset);
+            if (!ensure(offset, length)) return false;
+
+            long block = offset;
+            long body = offset + 8;
+            long end = offset + length - 4;  // Trailing copy of the length
+            offset += length;
+            switch (type) {
+                case BLOCK_INTERFACE_DESCRIPTION:
+                    interfaces.add(new int[] { get_short(body), interface_tsresol(body + 8, end) });
+                    break;
+                case BLOCK_ENHANCED_PACKET:
+                    return packet_block(block, get_int(body), get_int(body + 4), get_int(body + 8), get_int(body + 12), get_int(body + 16), body + 20, end);
+                case BLOCK_PACKET:
+                    return packet_block(block, get_short(body), get_int(body + 4), get_int(body + 8), get_int(body + 12), get_int(body + 16), body + 20, end);
+                case BLOCK_SIMPLE_PACKET: {
+                    int original = get_int(body);
+                    int captured = (int) Math.min(original & 0xFFFFFFFFL, end - body - 4);
+                    return packet_block(block, 0, 0, 0, captured, original, body + 4, end);
+                }
+                default:
+                    break;  // Statistics, name resolution, custom blocks...
+            }
+        }
+        return false;
+    }
+
+    private boolean packet_block(long block, int interface_id, int timestamp_high, int timestamp_low, int captured, int original, long data, long end) throws IOException {
+        if (captured < 0 || data + captured > end) throw new IOException("Corrupt pcapng packet block at offset " + block);
+        int[] description = interface_id >= 0 && interface_id < interfaces.size() ? interfaces.get(interface_id) : new int[] { PacketDecoder.LINKTYPE_ETHERNET, DEFAULT_TSRESOL };
+        long timestamp = ((timestamp_high & 0xFFFFFFFFL) << 32) | (timestamp_low & 0xFFFFFFFFL);
+        set_packet(block, data, captured, original, description[0], to_nanos(timestamp, description[1]));
+        optionsStart = data + ((captured + 3) & ~3);
+        optionsEnd = end;
+        return true;
+    }
+
+    // if_tsresol of an interface description block, default microseconds
+    private int interface_tsresol(long options, long end) {
+        while (options + 4 <= end) {
+            int code = get_short(options);
+            int length = get_short(options + 2);
+            if (code == OPTION_END) break;
+            if (code == OPTION_IF_TSRESOL && length >= 1) return window.get((int) (options + 4 - windowStart)) & 0xFF;
+            options += 4 + ((length + 3) & ~3);
+        }
+        return DEFAULT_TSRESOL;
+    }
+
+    // pcapng timestamp in if_tsresol units to nanoseconds: 10^-n, or 2^-n with the top bit set
+    static long to_nanos(long timestamp, int tsresol) {
+        int exponent = tsresol & 0x7F;
+        if ((tsresol & 0x80) != 0) {
+            if (exponent >= 63) return 0;
+            long whole = timestamp >>> exponent;
+            long fraction = timestamp & ((1L << exponent) - 1);
+            return whole * 1_000_000_000L + (exponent <= 32 ? (fraction * 1_000_000_000L) >>> exponent : (long) (fraction * 1e9 / Math.pow(2, exponent)));
+        }
+        if (exponent <= 9) return timestamp * power_of_ten(9 - exponent);
+        return exponent - 9 > 18 ? 0 : timestamp / power_of_ten(exponent - 9);
+    }
+
+    private static long power_of_ten(int exponent) {
+        long power = 1;
+        for (int i = 0; i < exponent; i++) power *= 10;
+        return power;
+    }
+
+    private void set_packet(long record, long data, int captured, int original, int packet_linktype, long timestamp_nanos) {
+        int start = (int) (data - windowStart);
+        ByteBuffer slice = window.duplicate();
+        slice.position(start).limit(start + captured);
+        frame = slice.slice().order(ByteOrder.BIG_ENDIAN);
+        linktype = packet_linktype;
+        timestampNanos = timestamp_nanos;
+        originalLength = original;
+        recordOffset = record;
+        frameOffset = data;
+        packetIndex++;
+        optionsStart = -1;
+    }
+
+    // Map a window holding [position, position + length); false if the file ends before that
+    private boolean ensure(long position, long length) throws IOException {
+        if (position + length > size) return false;
+        if (window != null && position >= windowStart && position + length <= windowStart + window.capacity()) return true;
+        long mapped = Math.min(Math.max(MAP_WINDOW, length), size - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, mapped);
+        windowStart = position;
+        return true;
+    }
+
+    private int get_int(long position) {
+        return window.order(order).getInt((int) (position - windowStart));
+    }
+
+    private int get_short(long position) {
+        return window.order(order).getShort((int) (position - windowStart)) & 0xFFFF;
+    }
+
+    /**
+     * Comment of the current packet (pcapng opt_comment), null if it has none.
+     */
+    public String comment() throws IOException {
+        if (frame == null || optionsStart < 0 || optionsStart >= optionsEnd) return null;
+        if (!ensure(optionsStart, optionsEnd - optionsStart)) return null;
+        long option = optionsStart;
+        while (option + 4 <= optionsEnd) {
+            int code = get_short(option);
+            int length = get_short(option + 2);
+            if (code == OPTION_END || option + 4 + length > optionsEnd) break;
+            if (code == OPTION_COMMENT) {
+                byte[] text = new byte[length];
+                window.duplicate().position((int) (option + 4 - windowStart)).get(text);
+                return new String(text, StandardCharsets.UTF_8);
+            }
+            option += 4 + ((length + 3) & ~3);
+        }
+        return null;
+    }
+
+    /**
+     * Packet index of the file: the one PcapNgWriter stores in the last block, otherwise a current
+     * sidecar (<file>.idx, see CaptureIndex); null if there is neither.
+     */
+    public CaptureIndex index() throws IOException {
+        if (captureIndexLoaded) return captureIndex;
+        captureIndexLoaded = true;
+        captureIndex = pcapng ? embedded_index() : null;
+        if (captureIndex == null) captureIndex = CaptureIndex.read_sidecar(file);
+        return captureIndex;
+    }
+
+    private CaptureIndex embedded_index() throws IOException {
+        if (!ensure(size - 4, 4)) return null;
+        int length = get_int(size - 4);
+        long block = size - length;
+        if (length < 16 || (length & 3) != 0 || block < 0 || !ensure(block, length)) return null;
+        if (get_int(block) != PcapNgWriter.BLOCK_CUSTOM_NO_COPY || get_int(block + 4) != length || get_int(block + 8) != PcapNgWriter.INDEX_ENTERPRISE_NUMBER) return null;
+
+        ByteBuffer body = window.duplicate();
+        body.position((int) (block + 12 - windowStart)).limit((int) (block + length - 4 - windowStart));
+        try {
+            return CaptureIndex.decode(body.slice());  // Checks CaptureIndex.MAGIC: the enterprise number alone proves nothing
+        } catch (IOException e) {
+            return null;  // Not ours after all: read without it
+        }
+    }
+
+    /**
+     * Position the reader so that next() returns the packet with the given ordinal; false if the
+     * file has fewer packets. With an index this reads at most one index stride of packets.
+     * With a reassembler, a fragment that completes a datagram is returned as the whole datagram:
+     * the fragments before it, up to the reassembler's timeout back, are read again.
+     */
+    public boolean seek_packet(long ordinal) throws IOException {
+        CaptureIndex index = index();
+        int entry = index == null ? -1 : index.entry_for_packet(ordinal);
+        if (entry >= 0 && (packetIndex >= ordinal || packetIndex < index.get_entry_ordinal(entry) - 1)) {
+            jump(index.get_entry_offset(entry), index.get_entry_ordinal(entry));
+        } else if (packetIndex >= ordinal) {
+            rewind();
+        }
+        while (packetIndex < ordinal) {
+            if (!advance()) return false;
+        }
+        if (reassembler != null && PacketDecoder.is_udp_fragment(frame, linktype)) {
+            seek_time(timestampNanos - reassembler.get_timeout_nanos());  // Clears the reassembler
+            while (advance() && packetIndex < ordinal) {
+                if (PacketDecoder.is_udp_fragment(frame, linktype)) reassembler.add(frame, linktype, timestampNanos);
+            }
+        }
+
+        // Step back onto the packet, so next() returns it
+        offset = recordOffset;
+        packetIndex--;
+        frame = null;
+        return true;
+    }
+
+    /**
+     * Position the reader so that every packet before it is older than timestamp_nanos (the
+     * start of the file without an index). Packets are still read in file order, so the caller
+     * skips any older ones that follow.
+     */
+    public void seek_time(long timestamp_nanos) throws IOException {
+        CaptureIndex index = index();
+        int entry = index == null ? -1 : index.entry_for_time(timestamp_nanos);
+        if (entry >= 0) jump(index.get_entry_offset(entry), index.get_entry_ordinal(entry));
+        else rewind();
+    }
+
+    /**
+     * Hand every packet captured between from_nanos and to_nanos (inclusive) that passes the filter
+     * to onPacket, in file order, and return how many there were. With an index only the part of the file that can hold
+     * them is read: a binary search to the start and a scan to the first entry past the range.
+     */
+    public long read_time_range(long from_nanos, long to_nanos, Consumer<PcapReader> onPacket) throws IOException {
+        CaptureIndex index = index();
+        long end = Long.MAX_VALUE;
+        if (index != null) {
+            int after = index.entry_after_time(to_nanos);
+            if (after < index.get_entry_count()) end = index.get_entry_offset(after);
+        }
+        seek_time(from_nanos);
+        long count = 0;
+        while (advance() && recordOffset < end) {
+            if (timestampNanos < from_nanos || timestampNanos > to_nanos) continue;
+            if (!accept()) continue;
+            onPacket.accept(this);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Copy the packets captured between from_nanos and to_nanos (inclusive) into a new pcapng file.
+     */
+    public static long extract_time_range(Path capture, long from_nanos, long to_nanos, Path output) throws IOException {
+        try (PcapReader reader = new PcapReader(capture)) {
+            PcapNgWriter[] writer = { null };
+            try {
+                long count = reader.read_time_range(from_nanos, to_nanos, packet -> {
+                    try {
+                        if (writer[0] == null) writer[0] = new PcapNgWriter(output, packet.linktype(), CaptureIndex.DEFAULT_STRIDE);
+                        writer[0].write_frame(packet.frame(), packet.original_length(), packet.timestamp_nanos(), null);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                if (writer[0] == null) writer[0] = new PcapNgWriter(output);  // Nothing in range: an empty capture
+                return count;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                if (writer[0] != null) writer[0].close();
+            }
+        }
+    }
+
+    /**
+     * Back to the first packet of the file.
+     */
+    public void rewind() {
+        offset = pcapng ? 0 : PcapWriter.GLOBAL_HEADER_LENGTH;
+        interfaces.clear();
+        if (reassembler != null) reassembler.clear();
+        packetIndex = -1;
+        frame = null;
+    }
+
+    // Continue at the record or block at the given offset, whose packet has the given ordinal
+    private void jump(long record_offset, long ordinal) throws IOException {
+        if (pcapng && interfaces.isEmpty()) {
+            rewind();
+            advance();  // Reads the section header and interface descriptions
+        }
+        offset = record_offset;
+        packetIndex = ordinal - 1;
+        frame = null;
+        if (reassembler != null) reassembler.clear();
+    }
+
+    /**
+     * Bytes of the current packet as captured, starting at the link layer header.
+     */
+    public ByteBuffer frame() { return frame; }
+
+    /**
+     * UDP payload of the current packet, null if it is not an IPv4/UDP packet or is a fragment
+     * (without a reassembler).
+     */
+    public ByteBuffer udp_payload() {
+        return frame == null ? null : PacketDecoder.udp_payload(frame, linktype);
+    }
+
+    // Addresses and ports of the current packet, 0 when it is not IPv4/UDP
+    public int src_ip() { return ipv4_field(12); }
+
+    public int dst_ip() { return ipv4_field(16); }
+
+    public int src_port() { return udp_field(0); }
+
+    public int dst_port() { return udp_field(2); }
+
+    private int ipv4_field(int field) {
+        int ip = frame == null ? -1 : PacketDecoder.ipv4_offset(frame, linktype);
+        return ip < 0 ? 0 : frame.getInt(frame.position() + ip + field);
+    }
+
+    private int udp_field(int field) {
+        int udp = frame == null ? -1 : PacketDecoder.udp_offset(frame, linktype);
+        return udp < 0 ? 0 : frame.getShort(frame.position() + udp + field) & 0xFFFF;
+    }
+
+    public int linktype() { return linktype; }
+
+    // Capture time, nanoseconds since the epoch
+    public long timestamp_nanos() { return timestampNanos; }
+
+    // Length on the wire (the frame may be cut by the snap length)
+    public int original_length() { return originalLength; }
+
+    // Zero based number of the current packet in the file
+    public long packet_index() { return packetIndex; }
+
+    // File offset of the current packet's record or block
+    public long record_offset() { return recordOffset; }
+
+    // File offset of the first byte of frame(); for a reassembled datagram, that of its last fragment
+    public long frame_offset() { return frameOffset; }
+
+    public boolean is_pcapng() { return pcapng; }
+
+    public Path get_file() { return file; }
+
+    @Override
+    public void close() throws IOException {
+        frame = null;
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,199 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Writes UDP datagrams into a standard libpcap file.
+ * Every datagram is wrapped in synthetic Ethernet/IPv4/UDP headers so that
+ * wireshark and tshark read the file exactly like a live capture.
+ * Timestamps are written with nanosecond resolution. On close a sidecar CaptureIndex
+ * (<file>.idx) is written next to the file.
+ */
+public class PcapWriter implements CaptureWriter {
+
+    // libpcap constants
+    public static final int MAGIC_NANOSECONDS = 0xA1B23C4D;
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int SNAPLEN = 65535;
+
+    public static final int GLOBAL_HEADER_LENGTH = 24;
+    public static final int RECORD_HEADER_LENGTH = 16;
+    public static final int ETHERNET_HEADER_LENGTH = 14;
+    public static final int IPV4_HEADER_LENGTH = 20;
+    public static final int UDP_HEADER_LENGTH = 8;
+    public static final int FRAME_OVERHEAD = ETHERNET_HEADER_LENGTH + IPV4_HEADER_LENGTH + UDP_HEADER_LENGTH;
+
+    // Wall clock anchor, so timestamps come from System.nanoTime() without allocating
+    private static final long EPOCH_NANOS_AT_START = System.currentTimeMillis() * 1_000_000L;
+    private static final long NANO_TIME_AT_START = System.nanoTime();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final CaptureIndex index = new CaptureIndex();  // Saved as <file>.idx on close
+    private int ipIdentification = 0;
+    private long packetCount = 0;
+    private long bytesWritten = 0;
+
+    public PcapWriter(Path path) throws IOException {
+        this(path, 1 << 16);
+    }
+
+    public PcapWriter(Path path, int buffer_size) throws IOException {
+        if (path.getParent() != null) path.getParent().toFile().mkdirs();
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(Math.max(buffer_size, RECORD_HEADER_LENGTH + FRAME_OVERHEAD + SNAPLEN)).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Global header
+        buffer.putInt(MAGIC_NANOSECONDS);
+        buffer.putShort((short) 2);   // version major
+        buffer.putShort((short) 4);   // version minor
+        buffer.putInt(0);             // thiszone
+        buffer.putInt(0);             // sigfigs
+        buffer.putInt(SNAPLEN);
+        buffer.putInt(LINKTYPE_ETHERNET);
+        bytesWritten = GLOBAL_HEADER_LENGTH;
+    }
+
+    /**
+     * Current wall clock time in nanoseconds since the epoch.
+     */
+    public static long now_nanos() {
+        return EPOCH_NANOS_AT_START + (System.nanoTime() - NANO_TIME_AT_START);
+    }
+
+    /**
+     * Convert a dotted IPv4 address into its 32-bit form (0 for anything that is not IPv4).
+     */
+    public static int ipv4_to_int(byte[] address) {
+        if (address == null || address.length != 4) return 0;
+        return ((address[0] & 0xFF) << 24) | ((address[1] & 0xFF) << 16) | ((address[2] & 0xFF) << 8) | (address[3] & 0xFF);
+    }
+
+    /**
+     * Write one UDP datagram read from a byte array.
+     */
+    @Override
+    public void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, byte[] data, int offset, int length, long timestamp_nanos) throws IOException {
+        int captured = Math.min(length, SNAPLEN - FRAME_OVERHEAD);
+        write_frame_headers(src_ip, src_port, dst_ip, dst_port, captured, length, timestamp_nanos);
+        buffer.put(data, offset, captured);
+    }
+
+    /**
+     * Write one UDP datagram held between position and limit of the given buffer.
+     * The buffer position is left untouched.
+     */
+    @Override
+    public void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, ByteBuffer data, long timestamp_nanos) throws IOException {
+        int length = data.remaining();
+        int captured = Math.min(length, SNAPLEN - FRAME_OVERHEAD);
+        write_frame_headers(src_ip, src_port, dst_ip, dst_port, captured, length, timestamp_nanos);
+
+        int limit = data.limit();
+        int position = data.position();
+        data.limit(position + captured);
+        buffer.put(data);
+        data.limit(limit);
+        data.position(position);
+    }
+
+    private void write_frame_headers(int src_ip, int src_port, int dst_ip, int dst_port, int captured, int length, long timestamp_nanos) throws IOException {
+        if (buffer.remaining() < RECORD_HEADER_LENGTH + FRAME_OVERHEAD + captured) flush();
+
+        index.add(bytesWritten, timestamp_nanos);
+
+        // Record header
+        buffer.putInt((int) (timestamp_nanos / 1_000_000_000L));
+        buffer.putInt((int) (timestamp_nanos % 1_000_000_000L));
+        buffer.putInt(FRAME_OVERHEAD + captured);
+        buffer.putInt(FRAME_OVERHEAD + length);
+
+        put_udp_headers(buffer, src_ip, src_port, dst_ip, dst_port, length, ipIdentification++);
+
+        packetCount++;
+        bytesWritten += RECORD_HEADER_LENGTH + FRAME_OVERHEAD + captured;
+    }
+
+    /**
+     * Put synthetic Ethernet/IPv4/UDP headers for a datagram of the given length at the buffer
+     * position. The buffer's byte order is left as it was.
+     */
+    static void put_udp_headers(ByteBuffer buffer, int src_ip, int src_port, int dst_ip, int dst_port, int length, int identification) {
+        // Network headers are big endian
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+
+        // Ethernet: locally administered MACs, IPv4 ethertype
+        buffer.putShort((short) 0x0200).putInt(0x00000001);
+        buffer.putShort((short) 0x0200).putInt(0x00000002);
+        buffer.putShort((short) 0x0800);
+
+        // IPv4
+        int ipStart = buffer.position();
+        buffer.put((byte) 0x45);
+        buffer.put((byte) 0);
+        buffer.putShort((short) Math.min(IPV4_HEADER_LENGTH + UDP_HEADER_LENGTH + length, 0xFFFF));
+        buffer.putShort((short) identification);
+        buffer.putShort((short) 0x4000);  // Don't fragment
+        buffer.put((byte) 64);            // TTL
+        buffer.put((byte) 17);            // UDP
+        buffer.putShort((short) 0);       // Checksum, filled below
+        buffer.putInt(src_ip);
+        buffer.putInt(dst_ip);
+        buffer.putShort(ipStart + 10, ipv4_checksum(buffer, ipStart));
+
+        // UDP (a zero checksum means "not computed" for IPv4)
+        buffer.putShort((short) src_port);
+        buffer.putShort((short) dst_port);
+        buffer.putShort((short) Math.min(UDP_HEADER_LENGTH + length, 0xFFFF));
+        buffer.putShort((short) 0);
+
+        buffer.order(order);
+    }
+
+    private static short ipv4_checksum(ByteBuffer buffer, int start) {
+        int sum = 0;
+        for (int i = 0; i < IPV4_HEADER_LENGTH; i += 2) {
+            sum += buffer.getShort(start + i) & 0xFFFF;
+        }
+        while ((sum >> 16) != 0) sum = (sum & 0xFFFF) + (sum >> 16);
+        return (short) ~sum;
+    }
+
+    @Override
+    public long get_packet_count() { return packetCount; }
+
+    @Override
+    public long get_bytes_written() { return bytesWritten; }
+
+    /**
+     * Push buffered records to the file.
+     */
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    // Index of the packets written so far
+    public CaptureIndex get_index() { return index; }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+        index.write_sidecar(path);
+    }
+}
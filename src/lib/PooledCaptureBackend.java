@@ -0,0 +1,104 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Records with a warm tshark process from a CaptureProcessPool: start only switches the process
+ * into recording (no launch, no attach), stop waits until it has caught up with the control socket
+ * and hands the process back to the pool.
+ */
+public class PooledCaptureBackend implements CaptureBackend {
+
+    // Longest wait for a cold-started process to deliver its pcap header
+    private static final long ATTACH_TIMEOUT_MILLIS = 10000;
+
+    // Longest wait for the process to catch up after the stop signal (unless it dies first)
+    private static final long CATCH_UP_MILLIS = 1000;
+
+    private final CaptureProcessPool pool;
+    private final boolean verbose;
+    private WarmCaptureProcess process = null;
+    private byte[] startSignal = null;
+    private PacketFilter filter = null;
+    private long expectedPackets = 0;   // Datagrams the control socket saw since start
+    private long missingPackets = 0;
+    private List<String> payloads = new ArrayList<>();
+
+    public PooledCaptureBackend(CaptureProcessPool pool, boolean verbose) {
+        this.pool = pool;
+        this.verbose = verbose;
+    }
+
+    @Override
+    public String get_name() { return "pool"; }
+
+    @Override
+    public void set_start_signal(byte[] start_signal) { startSignal = start_signal; }
+
+    @Override
+    public boolean supports_filter() { return true; }
+
+    @Override
+    public void set_filter(PacketFilter filter) { this.filter = filter; }
+
+    // The recording is written by this JVM from the process's stream
+    @Override
+    public boolean supports_follow() { return true; }
+
+    @Override
+    public void start(String host, int port, String output_file_path) throws IOException {
+        process = pool.acquire(CaptureProcessPool.default_interface(), CaptureProcessPool.capture_filter(host, port));
+        if (verbose) System.out.println("Recording with warm tshark process " + process.get_pid() + " into " + output_file_path);
+        process.set_filter(CaptureProcessPool.port_filter(port, filter));  // Replaces the filter of an earlier recording
+        process.begin_recording(Paths.get(output_file_path), startSignal, ATTACH_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public boolean is_attached() { return process != null && process.is_attached(); }
+
+    @Override
+    public void on_datagram(ByteBuffer data, int src_ip, int src_port, long timestamp_nanos) {
+        if (process != null) expectedPackets++;
+    }
+
+    @Override
+    public CompletableFuture<Void> stop() throws IOException {
+        if (process == null) return CompletableFuture.completedFuture(null);
+        WarmCaptureProcess recorder = process;
+        process = null;
+        try {
+            payloads = recorder.end_recording(expectedPackets, CATCH_UP_MILLIS);
+            missingPackets = Math.max(0, expectedPackets - recorder.get_recorded());
+        } finally {
+            pool.release(recorder);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public long get_missing_packets() { return missingPackets; }
+
+    @Override
+    public List<String> read_payloads() {
+        return payloads;
+    }
+
+    @Override
+    public void abort() {
+        if (process == null) return;
+        WarmCaptureProcess recorder = process;
+        process = null;
+        try {
+            recorder.end_recording(0, 0);
+        } catch (IOException ignored) {
+            // The file is abandoned anyway
+        }
+        pool.release(recorder);
+    }
+}
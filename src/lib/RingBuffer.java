@@ -0,0 +1,180 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded lock-free ring of preallocated datagram slots, one producer and many readers.
+ * The receive thread claims a slot, receives straight into it and publishes it; every reader
+ * (processing stage) sees every slot in order through its own cursor. When the slowest reader
+ * is a full ring behind, claim() returns null and the producer drops instead of waiting, so
+ * the receive thread never blocks on the stages.
+ */
+public class RingBuffer {
+
+    private final int capacity;
+    private final int mask;
+    private final ByteBuffer[] slots;
+    private final int[] lengths;
+    private final int[] srcIps;
+    private final int[] srcPorts;
+    private final long[] timestamps;
+
+    // Next sequence to publish; slots below it are readable
+    private final AtomicLong cursor = new AtomicLong(0);
+    private final List<Reader> readers = new ArrayList<>();
+    private Reader[] readerArray = new Reader[0];
+    private long cachedGate = 0;  // Slowest reader position seen by the producer
+    private volatile long dropped = 0;  // Written by the producer only
+
+    public RingBuffer(int capacity, int slot_size) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        slots = new ByteBuffer[capacity];
+        lengths = new int[capacity];
+        srcIps = new int[capacity];
+        srcPorts = new int[capacity];
+        timestamps = new long[capacity];
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(capacity * slot_size);
+        for (int i = 0; i < capacity; i++) {
+            slab.limit((i + 1) * slot_size).position(i * slot_size);
+            slots[i] = slab.slice();
+        }
+    }
+
+    /**
+     * Add a reader. All readers must be added before the producer starts.
+     */
+    public synchronized Reader add_reader(WaitStrategy wait_strategy) {
+        Reader reader = new Reader(wait_strategy, cursor.get());
+        readers.add(reader);
+        readerArray = readers.toArray(new Reader[0]);
+        return reader;
+    }
+
+
+    // ---- Producer side (single thread) ----
+
+    /**
+     * Cleared buffer of the next slot, or null when the ring is full.
+     * Claiming does not advance the ring; publish() does.
+     */
+    public ByteBuffer claim() {
+        long next = cursor.get();
+        if (next - cachedGate >= capacity) {
+            cachedGate = slowest_reader(next);
+            if (next - cachedGate >= capacity) return null;
+        }
+        return slots[(int) (next & mask)].clear();
+    }
+
+    /**
+     * Publish the claimed slot; its buffer must be flipped (limit = datagram length).
+     */
+    public void publish(int src_ip, int src_port, long timestamp_nanos) {
+        long next = cursor.get();
+        int index = (int) (next & mask);
+        lengths[index] = slots[index].limit();
+        srcIps[index] = src_ip;
+        srcPorts[index] = src_port;
+        timestamps[index] = timestamp_nanos;
+        cursor.lazySet(next + 1);  // Release: slot contents become visible with the cursor
+    }
+
+    /**
+     * Count a datagram the producer had to discard because the ring was full.
+     */
+    public void record_drop() { dropped++; }
+
+    public long get_dropped() { return dropped; }
+
+    public long get_published() { return cursor.get(); }
+
+    public int get_capacity() { return capacity; }
+
+    /**
+     * Empty the ring and remove its readers, so a new producer and readers can use it. Only once
+     * the previous producer and readers are done with it.
+     */
+    public synchronized void reset() {
+        readers.clear();
+        readerArray = new Reader[0];
+        cursor.set(0);
+        cachedGate = 0;
+        dropped = 0;
+    }
+
+    private long slowest_reader(long limit) {
+        long slowest = limit;
+        for (Reader reader : readerArray) slowest = Math.min(slowest, reader.sequence.get());
+        return slowest;
+    }
+
+
+    /**
+     * One processing stage's view of the ring.
+     */
+    public class Reader {
+
+        private final WaitStrategy waitStrategy;
+        private final AtomicLong sequence;
+        private final ByteBuffer[] views;  // Own views, so readers never share position/limit
+
+        Reader(WaitStrategy wait_strategy, long start) {
+            this.waitStrategy = wait_strategy;
+            this.sequence = new AtomicLong(start);
+            views = new ByteBuffer[capacity];
+            for (int i = 0; i < capacity; i++) views[i] = slots[i].duplicate();
+        }
+
+        /**
+         * Wait up to max_wait_nanos for the next slot. Returns true when one is available.
+         */
+        public boolean await(long max_wait_nanos) {
+            long next = sequence.get();
+            if (cursor.get() > next) return true;
+
+            long deadline = System.nanoTime() + max_wait_nanos;
+            while (cursor.get() <= next) {
+                if (System.nanoTime() - deadline >= 0) return false;
+                waitStrategy.idle();
+            }
+            return true;
+        }
+
+        /**
+         * Payload of the current slot (position 0, limit = length). Valid until advance().
+         */
+        public ByteBuffer data() {
+            int index = (int) (sequence.get() & mask);
+            ByteBuffer view = views[index];
+            view.limit(lengths[index]).position(0);
+            return view;
+        }
+
+        public int src_ip() { return srcIps[(int) (sequence.get() & mask)]; }
+
+        public int src_port() { return srcPorts[(int) (sequence.get() & mask)]; }
+
+        public long timestamp() { return timestamps[(int) (sequence.get() & mask)]; }
+
+        /**
+         * Hand the current slot back to the producer.
+         */
+        public void advance() {
+            sequence.lazySet(sequence.get() + 1);
+        }
+
+        /**
+         * Slots published but not read yet.
+         */
+        public long backlog() {
+            return cursor.get() - sequence.get();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+
+/**
+ * Writes a capture as a ring of segment files: <base>_000001.pcap, <base>_000002.pcap, ...
+ * A segment is closed once it reaches max_bytes or spans max_duration_nanos of packet time, and
+ * the oldest segments are deleted so at most max_files exist. Closed segments are complete files
+ * (pcapng ones carry their index) and are handed to the segment listener while the next is written.
+ * Segments already on disk under the same name join the ring first, so max_files also bounds
+ * what earlier writers left; sequence numbers continue after the highest and are never reused.
+ */
+public class RotatingCaptureWriter implements CaptureWriter {
+
+    private final Path directory;
+    private final String prefix;     // File name before the sequence number
+    private final String extension;  // ".pcap" or ".pcapng"
+    private final long maxBytes;
+    private final long maxDurationNanos;
+    private final int maxFiles;
+    private final Consumer<Path> onSegmentClosed;
+
+    private final Deque<Path> segments = new ArrayDeque<>();  // Oldest first, current last
+    private CaptureWriter current = null;
+    private long sequence;
+    private long segmentStartNanos = 0;
+    private long closedPackets = 0;
+    private long closedBytes = 0;
+
+    /**
+     * base_path names the capture (e.g. captures/capture_20240913_151923.pcap); its extension picks the format.
+     * A limit of 0 disables it.
+     */
+    public RotatingCaptureWriter(Path base_path, long max_bytes, long max_duration_nanos, int max_files, Consumer<Path> onSegmentClosed) throws IOException {
+        Path absolute = base_path.toAbsolutePath();
+        String name = absolute.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        this.directory = absolute.getParent();
+        this.prefix = (dot > 0 ? name.substring(0, dot) : name) + "_";
+        this.extension = dot > 0 ? name.substring(dot) : ".pcap";
+        this.maxBytes = max_bytes;
+        this.maxDurationNanos = max_duration_nanos;
+        this.maxFiles = max_files;
+        this.onSegmentClosed = onSegmentClosed;
+        Files.createDirectories(directory);
+        sequence = find_segments();
+    }
+
+    // Overloaded constructor: no segment listener
+    public RotatingCaptureWriter(Path base_path, long max_bytes, long max_duration_nanos, int max_files) throws IOException {
+        this(base_path, max_bytes, max_duration_nanos, max_files, null);
+    }
+
+    // Put the segments of this name already on disk into the ring in sequence order; returns the highest sequence number
+    private long find_segments() throws IOException {
+        TreeMap<Long, Path> existing = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + extension)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String number = name.substring(prefix.length(), name.length() - extension.length());
+                if (number.isEmpty() || !number.chars().allMatch(Character::isDigit) || number.length() > 18) continue;
+                existing.put(Long.parseLong(number), file);
+            }
+        }
+        segments.addAll(existing.values());
+        return existing.isEmpty() ? 0 : existing.lastKey();
+    }
+
+    @Override
+    public void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, byte[] data, int offset, int length, long timestamp_nanos) throws IOException {
+        writer_for(timestamp_nanos, length).write_udp_packet(src_ip, src_port, dst_ip, dst_port, data, offset, length, timestamp_nanos);
+    }
+
+    @Override
+    public void write_udp_packet(int src_ip, int src_port, int dst_ip, int dst_port, ByteBuffer data, long timestamp_nanos) throws IOException {
+        writer_for(timestamp_nanos, data.remaining()).write_udp_packet(src_ip, src_port, dst_ip, dst_port, data, timestamp_nanos);
+    }
+
+    // Segment the packet goes into, rotating first if it would break a limit
+    private CaptureWriter writer_for(long timestamp_nanos, int length) throws IOException {
+        if (current != null && current.get_packet_count() > 0) {
+            boolean full = maxBytes > 0 && current.get_bytes_written() + PcapWriter.RECORD_HEADER_LENGTH + PcapWriter.FRAME_OVERHEAD + length > maxBytes;
+            boolean expired = maxDurationNanos > 0 && timestamp_nanos - segmentStartNanos >= maxDurationNanos;
+            if (full || expired) close_segment();
+        }
+        if (current == null) open_segment(timestamp_nanos);
+        return current;
+    }
+
+    private void open_segment(long timestamp_nanos) throws IOException {
+        // Reserve the name atomically, so another writer (or process) never gets the same file
+        Path path;
+        while (true) {
+            sequence++;
+            path = directory.resolve(String.format("%s%06d%s", prefix, sequence, extension));
+            try {
+                Files.createFile(path);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // Taken: try the next number
+            }
+        }
+        current = CaptureWriter.open(path);
+        segments.addLast(path);
+        segmentStartNanos = timestamp_nanos;
+
+        // Ring: drop the oldest closed segments
+        while (maxFiles > 0 && segments.size() > maxFiles) {
+            Path oldest = segments.removeFirst();
+            Files.deleteIfExists(oldest);
+            Files.deleteIfExists(CaptureIndex.sidecar_path(oldest));
+        }
+    }
+
+    private void close_segment() throws IOException {
+        CaptureWriter writer = current;
+        current = null;
+        writer.close();
+        closedPackets += writer.get_packet_count();
+        closedBytes += writer.get_bytes_written();
+        if (onSegmentClosed != null) onSegmentClosed.accept(segments.peekLast());
+    }
+
+    /**
+     * Segment files still on disk, oldest first (those found at construction included); the last
+     * one is being written unless the writer is closed.
+     */
+    public List<Path> get_segments() { return new ArrayList<>(segments); }
+
+    // Sequence number of the newest segment
+    public long get_sequence() { return sequence; }
+
+    @Override
+    public long get_packet_count() {
+        return closedPackets + (current == null ? 0 : current.get_packet_count());
+    }
+
+    @Override
+    public long get_bytes_written() {
+        return closedBytes + (current == null ? 0 : current.get_bytes_written());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (current != null) current.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) close_segment();
+    }
+}
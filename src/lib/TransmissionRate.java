@@ -0,0 +1,76 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Expected sender rate, as written in the XML test cases ("1gb/s", or 10 with unit="gb/s"),
+ * and the socket receive buffer it calls for.
+ * Lower case b is bits, upper case B is bytes; k, m, g and t are decimal prefixes.
+ */
+public final class TransmissionRate {
+
+    private static final Pattern RATE = Pattern.compile("\\s*([0-9][0-9,]*(?:\\.[0-9]+)?)\\s*([kKmMgGtT]?)([bB])(?:/s|ps)?\\s*");
+    private static final Pattern UNIT = Pattern.compile("\\s*([kKmMgGtT]?)([bB])(?:/s|ps)?\\s*");
+
+    // Never ask for less than the usual Linux default
+    private static final int MIN_RECEIVE_BUFFER = 212992;
+
+    private TransmissionRate() {
+    }
+
+    /**
+     * Parse a rate such as "10gb/s", "10 Gbps" or "125 MB/s" into bits per second.
+     */
+    public static long parse_bits_per_second(String rate) {
+        Matcher matcher = RATE.matcher(rate);
+        if (!matcher.matches()) throw new IllegalArgumentException("Not a transmission rate: " + rate);
+        return to_bits(matcher.group(1), matcher.group(2), matcher.group(3));
+    }
+
+    /**
+     * Parse a value and its unit attribute, e.g. ("10", "gb/s").
+     */
+    public static long parse_bits_per_second(String value, String unit) {
+        Matcher matcher = UNIT.matcher(unit);
+        if (!matcher.matches()) throw new IllegalArgumentException("Not a rate unit: " + unit);
+        return to_bits(value, matcher.group(1), matcher.group(2));
+    }
+
+    /**
+     * Receive buffer that holds headroom_millis of traffic at the given rate, so the receive
+     * thread can stall that long without the kernel dropping datagrams.
+     */
+    public static int receive_buffer_size(long bits_per_second, long headroom_millis) {
+        long bytes = bits_per_second / 8 * headroom_millis / 1000;
+        return (int) Math.max(MIN_RECEIVE_BUFFER, Math.min(bytes, Integer.MAX_VALUE / 2));
+    }
+
+    /**
+     * Largest SO_RCVBUF an unprivileged process may ask for (net.core.rmem_max), -1 when unknown.
+     */
+    public static int max_receive_buffer_size() {
+        try {
+            return Integer.parseInt(Files.readAllLines(Paths.get("/proc/sys/net/core/rmem_max")).get(0).trim());
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static long to_bits(String value, String prefix, String unit) {
+        double amount = Double.parseDouble(value.replace(",", "").trim());
+        switch (prefix.toLowerCase()) {
+            case "k": amount *= 1e3; break;
+            case "m": amount *= 1e6; break;
+            case "g": amount *= 1e9; break;
+            case "t": amount *= 1e12; break;
+            default: break;
+        }
+        if (unit.equals("B")) amount *= 8;
+        return (long) amount;
+    }
+}
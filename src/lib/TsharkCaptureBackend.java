@@ -0,0 +1,280 @@
+package lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Captures with an external tshark process: tshark writes the pcap file while it runs and
+ * PcapReader reads the UDP payloads back once it has been stopped.
+ * Linux captures the loopback interface through sudo, Windows captures interface 1.
+ * Stopping sends SIGINT to the capture program, which then flushes and closes the file itself;
+ * the file is complete when the process has exited.
+ */
+public class TsharkCaptureBackend implements CaptureBackend {
+
+    // After SIGINT, how long the capture program gets before it is terminated
+    private static final long STOP_GRACE_MILLIS = 2000;
+
+    protected final boolean verbose;
+    protected final boolean isWindows = System.getProperty("os.name").toLowerCase().contains("win");
+
+    protected Process captureProcess = null;
+    private String outputFilePath = null;
+    private int capturePort = 0;
+    private final AtomicBoolean attached = new AtomicBoolean(false);
+    protected final CompletableFuture<Void> outputClosed = new CompletableFuture<>();  // All output of the process has been read
+    protected long externalCpuNanos = 0;
+    protected PacketFilter filter = null;
+
+    public TsharkCaptureBackend(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    @Override
+    public String get_name() { return "tshark"; }
+
+    @Override
+    public boolean supports_filter() { return true; }
+
+    @Override
+    public void set_filter(PacketFilter filter) { this.filter = filter; }
+
+    // Written through sudo with owner-only permissions, except on Windows
+    @Override
+    public boolean supports_follow() { return isWindows; }
+
+    // Program that writes the capture file
+    protected String capture_program() { return "tshark"; }
+
+    // Capture filter and options after the interface
+    protected String capture_options(String host, int port, String output_file_path) {
+        return String.format("-f \"%s\" -w %s", CaptureProcessPool.capture_filter(host, port), output_file_path);
+    }
+
+    // One line of the capture process output (stdout and stderr combined)
+    protected void on_output_line(String line) {
+        if (line.contains("Capturing on")) attached.set(true);
+    }
+
+    @Override
+    public void start(String host, int port, String output_file_path) throws IOException {
+        outputFilePath = output_file_path;
+        capturePort = port;
+        String program = capture_program();
+        String options = capture_options(host, port, output_file_path);
+        String captureCommand = isWindows ? String.format("%s -i 1 %s", program, options) : String.format("echo 'semicolon' | sudo %s -i lo %s", program, options);
+        ProcessBuilder processBuilder = isWindows ? new ProcessBuilder("powershell.exe", "/c", captureCommand) : new ProcessBuilder("bash", "-c", captureCommand);
+
+        processBuilder.redirectErrorStream(true);  // Combine stdout and stderr
+
+        captureProcess = processBuilder.start();
+        if (verbose) System.out.println(program + " process started with PID: " + captureProcess.pid());
+
+        // The process reports "Capturing on ..." once it is attached to the interface
+        BufferedReader outputReader = new BufferedReader(new InputStreamReader(captureProcess.getInputStream()));
+        Thread attachWatcher = new Thread(() -> {
+            try {
+                String outputLine;
+                while ((outputLine = outputReader.readLine()) != null) on_output_line(outputLine);
+            } catch (IOException ignored) {
+                // The process is gone
+            } finally {
+                outputClosed.complete(null);
+            }
+        }, program + "-output-reader");
+        attachWatcher.setDaemon(true);
+        attachWatcher.start();
+    }
+
+    @Override
+    public boolean is_attached() { return attached.get(); }
+
+    @Override
+    public CompletableFuture<Void> stop() throws IOException {
+        if (captureProcess == null) return CompletableFuture.completedFuture(null);
+        externalCpuNanos = cpu_nanos(captureProcess.toHandle());
+
+        // The file is ready once the capture process has exited and left it behind
+        return interrupt().thenCompose(process -> file_written());
+    }
+
+    // Completes once the capture process has left the file behind, fails if it wrote none
+    protected CompletableFuture<Void> file_written() {
+        if (Files.exists(Paths.get(outputFilePath))) return CompletableFuture.completedFuture(null);
+        return CompletableFuture.failedFuture(new IOException(capture_program() + " exited without writing " + outputFilePath));
+    }
+
+    /**
+     * Send SIGINT to the capture program (it finishes the file on its own) and terminate it if it
+     * is still running after the grace period. Completes when the capture process has exited.
+     */
+    protected CompletableFuture<Process> interrupt() throws IOException {
+        if (!captureProcess.isAlive()) return captureProcess.onExit();
+        List<ProcessHandle> targets = capture_processes();
+        signal(targets, "INT");
+
+        CompletableFuture.delayedExecutor(STOP_GRACE_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+            if (!captureProcess.isAlive()) return;
+            if (verbose) System.out.println(capture_program() + " did not stop on SIGINT, terminating it.");
+            try {
+                signal(targets, "TERM");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        return captureProcess.onExit();
+    }
+
+    @Override
+    public List<String> read_payloads() throws IOException {
+        try {
+            List<String> payloads = PcapReader.read_udp_payloads(Paths.get(outputFilePath), CaptureProcessPool.port_filter(capturePort, filter));
+            if (verbose) System.out.println("Read " + payloads.size() + " UDP payloads from " + outputFilePath);
+            return payloads;
+        } catch (AccessDeniedException e) {
+            // Written through sudo with owner-only permissions: let tshark read it as root
+            return read_payloads_with_tshark();
+        }
+    }
+
+    private List<String> read_payloads_with_tshark() throws IOException {
+        List<String> payloads = new ArrayList<>();
+
+        // Command to print the hex payload of every UDP packet of the capture file (after the addresses, for the filter)
+        String fields = filter == null ? "-e data" : "-e ip.src -e udp.srcport -e ip.dst -e udp.dstport -e data";
+        String tsharkReadCommand = isWindows ? String.format("tshark -r %s -Y \"udp.port == %d\" -T fields %s", outputFilePath, capturePort, fields) : String.format("echo 'semicolon' | sudo tshark -r %s -Y \"udp.port == %d\" -T fields %s", outputFilePath, capturePort, fields);
+
+        ProcessBuilder readProcessBuilder = new ProcessBuilder("bash", "-c", tsharkReadCommand);
+
+        // Start the tshark process
+        Process readProcess = readProcessBuilder.start();
+
+        // Read the output from tshark directly
+        BufferedReader reader = new BufferedReader(new InputStreamReader(readProcess.getInputStream()));
+        String line;
+
+        // Read each line from the tshark output
+        while ((line = reader.readLine()) != null) {
+            if (filter != null) {
+                String[] columns = line.split("\t", -1);
+                if (columns.length != 5) continue;
+                String payload = Bytes.from_hex(columns[4]);
+                if (payload == null) continue;
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(payload.getBytes(StandardCharsets.ISO_8859_1));
+                    if (filter.test_payload(ipv4_literal(columns[0]), Integer.parseInt(columns[1]), ipv4_literal(columns[2]), Integer.parseInt(columns[3]), data)) payloads.add(payload);
+                } catch (NumberFormatException e) {
+                    // Not an IPv4/UDP packet (tunnelled or IPv6): the filter cannot match it
+                }
+                continue;
+            }
+
+            // Convert hex to ASCII
+            String payload = Bytes.from_hex(line);
+            if (payload != null) payloads.add(payload);  // Add each packet as a separate result
+        }
+
+        // Check the exit code of the process
+        try {
+            int readExitCode = readProcess.waitFor();
+            if (readExitCode == 0) {
+                if (verbose) System.out.println("Hex to ASCII conversion completed successfully.");
+            } else {
+                if (verbose) System.err.println("Error occurred while parsing the captured file.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return payloads;
+    }
+
+    // Dotted IPv4 address as printed by tshark
+    private static int ipv4_literal(String address) {
+        String[] parts = address.split("\\.");
+        if (parts.length != 4) throw new NumberFormatException("Not an IPv4 address: " + address);
+        int value = 0;
+        for (String part : parts) {
+            int octet = Integer.parseInt(part);
+            if (octet < 0 || octet > 255) throw new NumberFormatException("Not an IPv4 address: " + address);
+            value = (value << 8) | octet;
+        }
+        return value;
+    }
+
+    @Override
+    public long get_external_cpu_nanos() { return externalCpuNanos; }
+
+    @Override
+    public void abort() {
+        if (captureProcess != null && captureProcess.isAlive()) {
+            try {
+                signal(capture_processes(), "TERM");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private List<ProcessHandle> capture_processes() {
+        return capture_processes(captureProcess, capture_program());
+    }
+
+    private void signal(List<ProcessHandle> targets, String signal) throws IOException {
+        signal(captureProcess, targets, signal, verbose);
+    }
+
+    /**
+     * The capture program below bash and sudo; the signal has to reach the process that writes the file.
+     */
+    static List<ProcessHandle> capture_processes(Process process, String program) {
+        List<ProcessHandle> all = new ArrayList<>();
+        List<ProcessHandle> matches = new ArrayList<>();
+        process.descendants().forEach(descendant -> {
+            all.add(descendant);
+            String command = descendant.info().command().orElse("");
+            if (command.equals(program) || command.endsWith("/" + program)) matches.add(descendant);
+        });
+        if (!matches.isEmpty()) return matches;
+        if (!all.isEmpty()) return all;  // Command names not visible (e.g. root processes)
+        all.add(process.toHandle());
+        return all;
+    }
+
+    /**
+     * Send a signal (INT, TERM) to the given processes through sudo; Windows ends the whole tree.
+     */
+    static void signal(Process process, List<ProcessHandle> targets, String signal, boolean verbose) throws IOException {
+        String killCommand;
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            killCommand = String.format("taskkill /PID %d /T /F", process.pid());  // No SIGINT on Windows
+        } else {
+            StringBuilder pids = new StringBuilder();
+            for (ProcessHandle target : targets) pids.append(' ').append(target.pid());
+            killCommand = String.format("echo 'semicolon' | sudo kill -%s%s", signal, pids);
+        }
+        if (verbose) System.out.println("Signalling capture process: " + killCommand);
+        new ProcessBuilder("bash", "-c", killCommand).start();
+    }
+
+    // CPU time of the process and everything it started (sudo, the capture program)
+    protected static long cpu_nanos(ProcessHandle process) {
+        long total = process.info().totalCpuDuration().map(Duration::toNanos).orElse(0L);
+        for (ProcessHandle child : (Iterable<ProcessHandle>) process.descendants()::iterator) {
+            total += child.info().totalCpuDuration().map(Duration::toNanos).orElse(0L);
+        }
+        return total;
+    }
+}
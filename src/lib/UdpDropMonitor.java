@@ -0,0 +1,99 @@
+package lib;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+
+/**
+ * Kernel drop counter of one bound UDP socket, read from /proc/net/udp and /proc/net/udp6 (Linux).
+ * The socket is found by its local address and port; sockets sharing the port through SO_REUSEPORT
+ * are summed. Counts are relative to the moment the monitor was created.
+ * Where the tables do not exist, is_supported() is false and every sample reads 0.
+ */
+public class UdpDropMonitor {
+
+    private static final Path UDP = Paths.get("/proc/net/udp");
+    private static final Path UDP6 = Paths.get("/proc/net/udp6");
+
+    // IPv4-mapped prefix (::ffff:0:0/96) as the kernel prints it, word by word in host order
+    private static final String MAPPED_PREFIX = "0000000000000000" + proc_word(0x0000FFFF);
+
+    private final String address;   // Local address as printed in /proc/net/udp
+    private final String address6;  // Same address as an IPv4-mapped entry of /proc/net/udp6
+    private final String wildcard6;
+    private final String port;
+    private final long baseline;
+
+    private long drops = 0;
+    private long queuedBytes = 0;
+
+    public UdpDropMonitor(int local_ip, int local_port) {
+        address = proc_word(local_ip);
+        address6 = MAPPED_PREFIX + address;
+        wildcard6 = local_ip == 0 ? "00000000000000000000000000000000" : null;
+        port = String.format("%04X", local_port);
+        baseline = Math.max(0, read_drops());
+    }
+
+    public static boolean is_supported() {
+        return Files.isReadable(UDP);
+    }
+
+    /**
+     * Read the counters again. Returns the datagrams dropped since the monitor was created.
+     */
+    public long sample() {
+        long total = read_drops();
+        if (total >= 0) drops = Math.max(0, total - baseline);  // Socket gone: keep the last reading
+        return drops;
+    }
+
+    // Drops at the last sample
+    public long get_drops() { return drops; }
+
+    // Bytes waiting in the socket receive queue at the last sample
+    public long get_queued_bytes() { return queuedBytes; }
+
+    // Sum of the drop counters of the matching sockets, -1 if none is open
+    private long read_drops() {
+        long total = 0;
+        long queued = 0;
+        boolean found = false;
+        for (Path table : new Path[] { UDP, UDP6 }) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(table);
+            } catch (IOException e) {
+                continue;  // Not Linux, or no IPv6
+            }
+
+            // sl local_address rem_address st tx_queue:rx_queue tr tm->when retrnsmt uid timeout inode ref pointer drops
+            for (int i = 1; i < lines.size(); i++) {
+                String[] fields = lines.get(i).trim().split("\\s+");
+                if (fields.length < 13) continue;
+                int colon = fields[1].indexOf(':');
+                if (colon < 0 || !fields[1].substring(colon + 1).equalsIgnoreCase(port)) continue;
+                String local = fields[1].substring(0, colon);
+                if (!(local.equalsIgnoreCase(address) || local.equalsIgnoreCase(address6) || local.equals(wildcard6))) continue;
+
+                found = true;
+                total += Long.parseLong(fields[fields.length - 1]);
+                int queues = fields[4].indexOf(':');
+                if (queues > 0) queued += Long.parseLong(fields[4].substring(queues + 1), 16);
+            }
+        }
+        if (!found) return -1;
+        queuedBytes = queued;
+        return total;
+    }
+
+    // The kernel prints each 32 bit address word as a native integer in hex
+    private static String proc_word(int network_order) {
+        int value = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? Integer.reverseBytes(network_order) : network_order;
+        return String.format("%08X", value);
+    }
+}
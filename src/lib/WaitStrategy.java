@@ -0,0 +1,36 @@
+package lib;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * How a ring buffer reader waits for the next slot.
+ * BUSY_SPIN gives the lowest latency and burns a core, YIELD lets other threads run,
+ * PARK sleeps in short slices and costs the least CPU.
+ */
+public enum WaitStrategy {
+
+    BUSY_SPIN,
+    YIELD,
+    PARK;
+
+    // Sleep slice of PARK
+    private static final long PARK_NANOS = 50_000;
+
+    /**
+     * Wait once; called repeatedly while nothing is available.
+     */
+    public void idle() {
+        switch (this) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+
+/**
+ * One long running "tshark -F pcap -w -" process of a CaptureProcessPool.
+ * A reader thread parses the pcap stream from its stdout. While idle, records are only kept in a
+ * short history; begin_recording switches the process into recording, from the packet after the
+ * start signal on, into a pcap file of its own, and the payloads are decoded on the fly.
+ * Once the stream ends (the process died or sent garbage) the process is terminated and no
+ * longer counts as alive; the listener given to launch hears about it.
+ */
+public class WarmCaptureProcess {
+
+    // Records kept while idle, so a start signal that was already read from the stream is found
+    private static final int HISTORY = 256;
+
+    private static final int PCAP_GLOBAL_HEADER_LENGTH = 24;
+    private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+
+    private final Process process;
+    private final String captureInterface;
+    private final String captureFilter;
+    private final boolean verbose;
+    private final Consumer<WarmCaptureProcess> onStreamEnd;
+    private final AtomicBoolean attached = new AtomicBoolean(false);
+    private volatile boolean streamEnded = false;
+    private int uses = 0;
+
+    // Stream state, set by the reader thread
+    private byte[] globalHeader = null;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+    private int linktype = PacketDecoder.LINKTYPE_ETHERNET;
+
+    // Recording state, guarded by this
+    private final ArrayDeque<byte[]> history = new ArrayDeque<>();
+    private FileChannel output = null;
+    private boolean recording = false;
+    private byte[] pendingStart = null;
+    private PacketFilter filter = null;
+    private final FragmentReassembler reassembler = new FragmentReassembler();
+    private List<String> payloads = new ArrayList<>();
+    private IOException writeError = null;  // First failed write of the current recording
+    private long recorded = 0;
+
+    private WarmCaptureProcess(Process process, String capture_interface, String capture_filter, boolean verbose, Consumer<WarmCaptureProcess> onStreamEnd) {
+        this.process = process;
+        this.captureInterface = capture_interface;
+        this.captureFilter = capture_filter;
+        this.verbose = verbose;
+        this.onStreamEnd = onStreamEnd;
+    }
+
+    /**
+     * Launch tshark on the interface with the capture filter, streaming pcap to this JVM.
+     * on_stream_end (may be null) is called from the reader thread once the stream has ended.
+     */
+    public static WarmCaptureProcess launch(String capture_interface, String capture_filter, boolean verbose, Consumer<WarmCaptureProcess> on_stream_end) throws IOException {
+        boolean isWindows = System.getProperty("os.name").toLowerCase().contains("win");
+        String captureCommand = isWindows ? String.format("tshark -i %s -f \"%s\" -F pcap -w -", capture_interface, capture_filter) : String.format("echo 'semicolon' | sudo tshark -i %s -f \"%s\" -F pcap -w -", capture_interface, capture_filter);
+        ProcessBuilder processBuilder = isWindows ? new ProcessBuilder("powershell.exe", "/c", captureCommand) : new ProcessBuilder("bash", "-c", captureCommand);
+
+        WarmCaptureProcess warm = new WarmCaptureProcess(processBuilder.start(), capture_interface, capture_filter, verbose, on_stream_end);
+        if (verbose) System.out.println("Warm tshark process started with PID: " + warm.process.pid() + " (" + capture_filter + ")");
+        warm.start_threads();
+        return warm;
+    }
+
+    // Overloaded launch method: nobody to tell when the stream ends
+    public static WarmCaptureProcess launch(String capture_interface, String capture_filter, boolean verbose) throws IOException {
+        return launch(capture_interface, capture_filter, verbose, null);
+    }
+
+    private void start_threads() {
+        // stderr: "Capturing on ..." once attached
+        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+        Thread errorThread = new Thread(() -> {
+            try {
+                String line;
+                while ((line = errorReader.readLine()) != null) {
+                    if (line.contains("Capturing on")) attached.set(true);
+                }
+            } catch (IOException ignored) {
+                // The process is gone
+            }
+        }, "warm-tshark-stderr-" + process.pid());
+        errorThread.setDaemon(true);
+        errorThread.start();
+
+        // stdout: the pcap stream
+        Thread streamThread = new Thread(this::read_stream, "warm-tshark-stream-" + process.pid());
+        streamThread.setDaemon(true);
+        streamThread.start();
+    }
+
+    private void read_stream() {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 16))) {
+            byte[] header = new byte[PCAP_GLOBAL_HEADER_LENGTH];
+            input.readFully(header);
+            ByteBuffer global = ByteBuffer.wrap(header);
+            int magic = global.getInt(0);
+            if (magic == 0xD4C3B2A1 || magic == 0x4D3CB2A1) {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else if (magic != 0xA1B2C3D4 && magic != 0xA1B23C4D) {
+                throw new IOException("Not a pcap stream (magic " + Integer.toHexString(magic) + ")");
+            }
+            linktype = global.order(order).getInt(20) & 0x0FFFFFFF;
+            synchronized (this) {
+                globalHeader = header;
+                notifyAll();
+            }
+
+            byte[] recordHeader = new byte[PCAP_RECORD_HEADER_LENGTH];
+            ByteBuffer recordView = ByteBuffer.wrap(recordHeader).order(order);
+            while (true) {
+                input.readFully(recordHeader);
+                int captured = recordView.getInt(8);
+                if (captured < 0 || captured > 1 << 18) throw new IOException("Corrupt pcap record length " + captured);
+                byte[] record = new byte[PCAP_RECORD_HEADER_LENGTH + captured];
+                System.arraycopy(recordHeader, 0, record, 0, PCAP_RECORD_HEADER_LENGTH);
+                input.readFully(record, PCAP_RECORD_HEADER_LENGTH, captured);
+                on_record(record);
+            }
+        } catch (EOFException e) {
+            // Process ended
+        } catch (IOException e) {
+            if (verbose) System.out.println("Warm tshark stream failed: " + e.getMessage());
+        } finally {
+            // Nobody drains stdout any more: the process is of no use, even if it still runs
+            streamEnded = true;
+            synchronized (this) {
+                notifyAll();
+            }
+            terminate();
+            if (onStreamEnd != null) onStreamEnd.accept(this);
+        }
+    }
+
+    private synchronized void on_record(byte[] record) {
+        ByteBuffer payload = PacketDecoder.udp_payload(ByteBuffer.wrap(record, PCAP_RECORD_HEADER_LENGTH, record.length - PCAP_RECORD_HEADER_LENGTH), linktype);
+        if (recording) {
+            write(record, payload);
+            return;
+        }
+
+        // Armed: recording begins with the packet after the start signal
+        if (pendingStart != null && payload != null && Bytes.matches_signal(payload, pendingStart)) {
+            pendingStart = null;
+            recording = true;
+            return;
+        }
+        history.addLast(record);
+        if (history.size() > HISTORY) history.removeFirst();
+    }
+
+    // A failed write ends the file of the current recording (end_recording reports it), not the stream
+    private void write(byte[] record, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.wrap(record, PCAP_RECORD_HEADER_LENGTH, record.length - PCAP_RECORD_HEADER_LENGTH);
+        int frameLinktype = linktype;
+        boolean fragment = PacketDecoder.is_udp_fragment(frame, linktype);
+        if (fragment) {
+            // The datagram is complete with its last fragment; until then there is no payload
+            frame = reassembler.add(frame, linktype, System.nanoTime());
+            frameLinktype = PacketDecoder.LINKTYPE_RAW;
+            payload = frame == null ? null : PacketDecoder.udp_payload(frame, frameLinktype);
+        }
+        boolean passes = frame != null && (filter == null || filter.test_frame(frame, frameLinktype));
+
+        // Fragments are kept as captured: the filter can only judge the whole datagram
+        if ((passes || fragment) && writeError == null) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) output.write(buffer);
+            } catch (IOException e) {
+                writeError = e;
+                if (verbose) System.out.println("Warm tshark could not write the recording: " + e.getMessage());
+            }
+        }
+        if (passes && payload != null) payloads.add(Bytes.to_string(payload));
+        if (frame != null) recorded++;  // Filtered out or not, the control socket saw the datagram
+        notifyAll();
+    }
+
+    /**
+     * Record only the packets that pass the filter (null: all), from the next begin_recording on.
+     */
+    public synchronized void set_filter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Switch into recording into the given file. With a start signal, recording begins right after
+     * it in the stream: from the history if tshark has already delivered it, otherwise as soon as it
+     * arrives. Without one, recording begins with the next packet.
+     */
+    public synchronized void begin_recording(Path file, byte[] start_signal, long attach_timeout_millis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(attach_timeout_millis);
+        try {
+            while (globalHeader == null && process.isAlive() && System.nanoTime() < deadline) {
+                wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (globalHeader == null || streamEnded) throw new IOException("Warm tshark process " + process.pid() + " delivered no pcap stream");
+
+        output = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        output.write(ByteBuffer.wrap(globalHeader));
+        payloads = new ArrayList<>();
+        writeError = null;
+        reassembler.clear();
+        recorded = 0;
+        recording = start_signal == null;
+        pendingStart = start_signal;
+
+        // The start signal may already have been read: replay what followed it
+        if (start_signal != null) {
+            List<byte[]> after = new ArrayList<>();
+            Iterator<byte[]> newestFirst = history.descendingIterator();
+            while (newestFirst.hasNext()) {
+                byte[] record = newestFirst.next();
+                ByteBuffer payload = PacketDecoder.udp_payload(ByteBuffer.wrap(record, PCAP_RECORD_HEADER_LENGTH, record.length - PCAP_RECORD_HEADER_LENGTH), linktype);
+                if (payload != null && Bytes.matches_signal(payload, start_signal)) {
+                    recording = true;
+                    pendingStart = null;
+                    break;
+                }
+                after.add(0, record);
+            }
+            if (recording) {
+                for (byte[] record : after) {
+                    write(record, PacketDecoder.udp_payload(ByteBuffer.wrap(record, PCAP_RECORD_HEADER_LENGTH, record.length - PCAP_RECORD_HEADER_LENGTH), linktype));
+                }
+            }
+        }
+        history.clear();
+    }
+
+    /**
+     * Stop recording once expected_packets have been recorded, after catch_up_millis at most or
+     * when the stream ends, close the file and return the decoded payloads. A pause in the stream
+     * does not end the wait: tshark delivers in bursts. Throws the first write error of the
+     * recording, after the file has been closed.
+     */
+    public synchronized List<String> end_recording(long expected_packets, long catch_up_millis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(catch_up_millis);
+        try {
+            while (recorded < expected_packets && is_alive()) {
+                long now = System.nanoTime();
+                if (now >= deadline) break;
+                wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (verbose && recorded < expected_packets) {
+            System.out.println("Warm tshark recorded " + recorded + " of " + expected_packets + " packets seen by the socket.");
+        }
+
+        recording = false;
+        pendingStart = null;
+        List<String> result = payloads;
+        payloads = new ArrayList<>();
+        if (output != null) {
+            FileChannel channel = output;
+            output = null;
+            channel.close();
+        }
+        if (writeError != null) {
+            IOException error = writeError;
+            writeError = null;
+            throw error;
+        }
+        return result;
+    }
+
+    // Datagrams of the current or last recording, filtered out or not
+    public synchronized long get_recorded() { return recorded; }
+
+    public boolean is_attached() { return attached.get() && is_alive(); }
+
+    // Running and still delivering its stream
+    public boolean is_alive() { return !streamEnded && process.isAlive(); }
+
+    public String get_capture_interface() { return captureInterface; }
+
+    public String get_capture_filter() { return captureFilter; }
+
+    // Recordings made so far
+    public int get_uses() { return uses; }
+
+    void count_use() { uses++; }
+
+    public long get_pid() { return process.pid(); }
+
+    /**
+     * End the process (SIGTERM to tshark below bash and sudo).
+     */
+    public void terminate() {
+        if (!process.isAlive()) return;
+        try {
+            TsharkCaptureBackend.signal(process, TsharkCaptureBackend.capture_processes(process, "tshark"), "TERM", verbose);
+        } catch (IOException e) {
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package lib.linux;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import lib.DatagramReceiver;
+import lib.PcapWriter;
+
+
+/**
+ * Linux receive engine: up to a whole batch of datagrams per recvmmsg(2) call.
+ * The socket is created and read through java.lang.foreign (JDK 22+). Each iovec points
+ * straight at the caller's direct buffer, so datagrams land in the leased buffers with
+ * no copy. MSG_WAITFORONE makes the call block for the first datagram only (bounded by
+ * SO_RCVTIMEO) and then return whatever else is already queued. SO_TIMESTAMPNS has the kernel
+ * stamp every datagram on arrival, so datagrams pulled by one call keep their own times.
+ */
+public class RecvmmsgDatagramReceiver implements DatagramReceiver {
+
+    // Linux x86_64 / aarch64 constants
+    private static final int AF_INET = 2;
+    private static final int SOCK_DGRAM = 2;
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_RCVBUF = 8;
+    private static final int SO_RCVTIMEO = 20;
+    private static final int SO_TIMESTAMPNS = 35;  // Also the control message type (SCM_TIMESTAMPNS)
+    private static final int MSG_WAITFORONE = 0x10000;
+    private static final int EAGAIN = 11;
+    private static final int EINTR = 4;
+
+    // struct layouts (LP64)
+    private static final long SOCKADDR_IN_SIZE = 16;
+    private static final long IOVEC_SIZE = 16;
+    private static final long MMSGHDR_SIZE = 64;
+    private static final long MSG_NAME = 0;
+    private static final long MSG_NAMELEN = 8;
+    private static final long MSG_IOV = 16;
+    private static final long MSG_IOVLEN = 24;
+    private static final long MSG_CONTROL = 32;
+    private static final long MSG_CONTROLLEN = 40;
+    private static final long MSG_LEN = 56;
+    private static final long CMSG_LEVEL = 8;
+    private static final long CMSG_TYPE = 12;
+    private static final long CMSG_DATA = 16;
+    private static final long CONTROL_SIZE = 32;  // CMSG_SPACE(sizeof(struct timespec))
+
+    // Largest batch pulled by one call
+    public static final int MAX_BATCH = 256;
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final SymbolLookup LIBC = LINKER.defaultLookup();
+    private static final Linker.Option ERRNO = Linker.Option.captureCallState("errno");
+    private static final long ERRNO_OFFSET = Linker.Option.captureStateLayout().byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+
+    private static final MethodHandle SOCKET = downcall("socket", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+    private static final MethodHandle BIND = downcall("bind", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT));
+    private static final MethodHandle SETSOCKOPT = downcall("setsockopt", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT));
+    private static final MethodHandle GETSOCKNAME = downcall("getsockname", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS));
+    private static final MethodHandle GETSOCKOPT = downcall("getsockopt", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS));
+    private static final MethodHandle RECVMMSG = downcall("recvmmsg", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+    private static final MethodHandle CLOSE = downcall("close", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment messages;
+    private final MemorySegment iovecs;
+    private final MemorySegment names;
+    private final MemorySegment controls;
+    private final MemorySegment timeval;
+    private final MemorySegment errno;
+    private final int fd;
+    private final int localIp;
+    private final int localPort;
+    private long currentTimeoutMillis = -1;
+
+    public RecvmmsgDatagramReceiver(String host, int port) throws IOException {
+        messages = arena.allocate(MMSGHDR_SIZE * MAX_BATCH, 8);
+        iovecs = arena.allocate(IOVEC_SIZE * MAX_BATCH, 8);
+        names = arena.allocate(SOCKADDR_IN_SIZE * MAX_BATCH, 8);
+        controls = arena.allocate(CONTROL_SIZE * MAX_BATCH, 8);
+        timeval = arena.allocate(16, 8);
+        errno = arena.allocate(Linker.Option.captureStateLayout());
+
+        // Static part of every mmsghdr: one iovec, one sockaddr_in and room for one timestamp each
+        for (int i = 0; i < MAX_BATCH; i++) {
+            long header = i * MMSGHDR_SIZE;
+            messages.set(ValueLayout.ADDRESS, header + MSG_NAME, names.asSlice(i * SOCKADDR_IN_SIZE, SOCKADDR_IN_SIZE));
+            messages.set(ValueLayout.ADDRESS, header + MSG_IOV, iovecs.asSlice(i * IOVEC_SIZE, IOVEC_SIZE));
+            messages.set(ValueLayout.JAVA_LONG, header + MSG_IOVLEN, 1);
+            messages.set(ValueLayout.ADDRESS, header + MSG_CONTROL, controls.asSlice(i * CONTROL_SIZE, CONTROL_SIZE));
+        }
+
+        byte[] address = InetAddress.getByName(host).getAddress();
+        if (address.length != 4) {
+            arena.close();
+            throw new IOException("recvmmsg engine supports IPv4 only: " + host);
+        }
+        localIp = PcapWriter.ipv4_to_int(address);
+
+        fd = (int) call(SOCKET, AF_INET, SOCK_DGRAM, 0);
+        if (fd < 0) {
+            int error = errno();
+            arena.close();
+            throw new IOException("socket() failed, errno " + error);
+        }
+
+        MemorySegment sockaddr = arena.allocate(SOCKADDR_IN_SIZE, 8);
+        sockaddr.set(ValueLayout.JAVA_SHORT, 0, (short) AF_INET);
+        sockaddr.set(ValueLayout.JAVA_BYTE, 2, (byte) (port >> 8));
+        sockaddr.set(ValueLayout.JAVA_BYTE, 3, (byte) port);
+        for (int i = 0; i < 4; i++) sockaddr.set(ValueLayout.JAVA_BYTE, 4 + i, address[i]);
+        if ((int) call(BIND, fd, sockaddr, (int) SOCKADDR_IN_SIZE) != 0) {
+            int error = errno();
+            close();
+            throw new IOException("bind() to " + host + ":" + port + " failed, errno " + error);
+        }
+
+        // The port the kernel picked when binding port 0
+        MemorySegment length = arena.allocate(ValueLayout.JAVA_INT);
+        length.set(ValueLayout.JAVA_INT, 0, (int) SOCKADDR_IN_SIZE);
+        if ((int) call(GETSOCKNAME, fd, sockaddr, length) != 0) {
+            int error = errno();
+            close();
+            throw new IOException("getsockname() failed, errno " + error);
+        }
+        localPort = ((sockaddr.get(ValueLayout.JAVA_BYTE, 2) & 0xFF) << 8) | (sockaddr.get(ValueLayout.JAVA_BYTE, 3) & 0xFF);
+
+        MemorySegment enable = arena.allocate(ValueLayout.JAVA_INT);
+        enable.set(ValueLayout.JAVA_INT, 0, 1);
+        if ((int) call(SETSOCKOPT, fd, SOL_SOCKET, SO_TIMESTAMPNS, enable, 4) != 0) {
+            int error = errno();
+            close();
+            throw new IOException("setsockopt(SO_TIMESTAMPNS) failed, errno " + error);
+        }
+    }
+
+    @Override
+    public int receive_batch(ByteBuffer[] buffers, int count, int[] src_ips, int[] src_ports, long[] timestamps_nanos, long timeout_millis) throws IOException {
+        int batch = Math.min(count, MAX_BATCH);
+        set_timeout(Math.max(timeout_millis, 1));
+
+        for (int i = 0; i < batch; i++) {
+            ByteBuffer buffer = buffers[i];
+            MemorySegment target = MemorySegment.ofBuffer(buffer);
+            long iovec = i * IOVEC_SIZE;
+            iovecs.set(ValueLayout.ADDRESS, iovec, target);
+            iovecs.set(ValueLayout.JAVA_LONG, iovec + 8, target.byteSize());
+            messages.set(ValueLayout.JAVA_INT, i * MMSGHDR_SIZE + MSG_NAMELEN, (int) SOCKADDR_IN_SIZE);
+            messages.set(ValueLayout.JAVA_LONG, i * MMSGHDR_SIZE + MSG_CONTROLLEN, CONTROL_SIZE);  // The kernel shrinks it to what it wrote
+        }
+
+        int received;
+        while (true) {
+            try {
+                received = (int) RECVMMSG.invokeExact(errno, fd, messages, batch, MSG_WAITFORONE, MemorySegment.NULL);
+            } catch (Throwable t) {
+                throw new IOException("Native call failed: " + t.getMessage(), t);
+            }
+            if (received >= 0) break;
+            int error = errno();
+            if (error == EAGAIN) return 0;  // SO_RCVTIMEO expired
+            if (error != EINTR) throw new IOException("recvmmsg() failed, errno " + error);
+        }
+        long callTime = PcapWriter.now_nanos();
+
+        for (int i = 0; i < received; i++) {
+            ByteBuffer buffer = buffers[i];
+            buffer.position(0).limit(messages.get(ValueLayout.JAVA_INT, i * MMSGHDR_SIZE + MSG_LEN));
+
+            long name = i * SOCKADDR_IN_SIZE;
+            src_ports[i] = ((names.get(ValueLayout.JAVA_BYTE, name + 2) & 0xFF) << 8) | (names.get(ValueLayout.JAVA_BYTE, name + 3) & 0xFF);
+            src_ips[i] = ((names.get(ValueLayout.JAVA_BYTE, name + 4) & 0xFF) << 24)
+                | ((names.get(ValueLayout.JAVA_BYTE, name + 5) & 0xFF) << 16)
+                | ((names.get(ValueLayout.JAVA_BYTE, name + 6) & 0xFF) << 8)
+                | (names.get(ValueLayout.JAVA_BYTE, name + 7) & 0xFF);
+            timestamps_nanos[i] = arrival_nanos(i, callTime);
+        }
+        return received;
+    }
+
+    // Kernel receive time of message i from its SCM_TIMESTAMPNS control message; fallback if there is none
+    private long arrival_nanos(int i, long fallback) {
+        long control = i * CONTROL_SIZE;
+        if (messages.get(ValueLayout.JAVA_LONG, i * MMSGHDR_SIZE + MSG_CONTROLLEN) < CONTROL_SIZE) return fallback;
+        if (controls.get(ValueLayout.JAVA_INT, control + CMSG_LEVEL) != SOL_SOCKET) return fallback;
+        if (controls.get(ValueLayout.JAVA_INT, control + CMSG_TYPE) != SO_TIMESTAMPNS) return fallback;
+        long seconds = controls.get(ValueLayout.JAVA_LONG, control + CMSG_DATA);
+        long nanos = controls.get(ValueLayout.JAVA_LONG, control + CMSG_DATA + 8);
+        return seconds * 1_000_000_000L + nanos;
+    }
+
+    // SO_RCVTIMEO bounds how long MSG_WAITFORONE blocks for the first datagram
+    private void set_timeout(long timeout_millis) throws IOException {
+        if (timeout_millis == currentTimeoutMillis) return;
+        timeval.set(ValueLayout.JAVA_LONG, 0, timeout_millis / 1000);
+        timeval.set(ValueLayout.JAVA_LONG, 8, (timeout_millis % 1000) * 1000);
+        if ((int) call(SETSOCKOPT, fd, SOL_SOCKET, SO_RCVTIMEO, timeval, 16) != 0) {
+            throw new IOException("setsockopt(SO_RCVTIMEO) failed, errno " + errno());
+        }
+        currentTimeoutMillis = timeout_millis;
+    }
+
+    @Override
+    public int get_local_ip() { return localIp; }
+
+    @Override
+    public int get_local_port() { return localPort; }
+
+    @Override
+    public int set_receive_buffer_size(int bytes) throws IOException {
+        MemorySegment value = arena.allocate(ValueLayout.JAVA_INT);
+        value.set(ValueLayout.JAVA_INT, 0, bytes);
+        if ((int) call(SETSOCKOPT, fd, SOL_SOCKET, SO_RCVBUF, value, 4) != 0) {
+            throw new IOException("setsockopt(SO_RCVBUF) failed, errno " + errno());
+        }
+        return get_receive_buffer_size();
+    }
+
+    @Override
+    public int get_receive_buffer_size() throws IOException {
+        MemorySegment value = arena.allocate(ValueLayout.JAVA_INT);
+        MemorySegment length = arena.allocate(ValueLayout.JAVA_INT);
+        length.set(ValueLayout.JAVA_INT, 0, 4);
+        if ((int) call(GETSOCKOPT, fd, SOL_SOCKET, SO_RCVBUF, value, length) != 0) {
+            throw new IOException("getsockopt(SO_RCVBUF) failed, errno " + errno());
+        }
+        return value.get(ValueLayout.JAVA_INT, 0);
+    }
+
+    /**
+     * Native socket descriptor, for socket options the JDK does not expose.
+     */
+    public int get_fd() { return fd; }
+
+    @Override
+    public void close() throws IOException {
+        if (!arena.scope().isAlive()) return;
+        try {
+            call(CLOSE, fd);
+        } finally {
+            arena.close();
+        }
+    }
+
+    private int errno() {
+        return errno.get(ValueLayout.JAVA_INT, ERRNO_OFFSET);
+    }
+
+    // Every downcall takes the errno capture segment as its first argument (setup and close only, recvmmsg is invoked exactly)
+    private Object call(MethodHandle handle, Object... args) throws IOException {
+        Object[] full = new Object[args.length + 1];
+        full[0] = errno;
+        System.arraycopy(args, 0, full, 1, args.length);
+        try {
+            return handle.invokeWithArguments(full);
+        } catch (Throwable t) {
+            throw new IOException("Native call failed: " + t.getMessage(), t);
+        }
+    }
+
+    private static MethodHandle downcall(String name, FunctionDescriptor descriptor) {
+        MemorySegment symbol = LIBC.find(name).orElseThrow(() -> new UnsupportedOperationException(name + " not found in libc"));
+        return LINKER.downcallHandle(symbol, descriptor, ERRNO);
+    }
+}
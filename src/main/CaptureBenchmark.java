@@ -0,0 +1,171 @@
+package main;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.CaptureBackend;
+import lib.DatagramReceiver;
+
+
+/**
+ * Runs the same loopback workload through each capture backend and reports its capture rate,
+ * CPU time (this JVM and the capture processes) and start/stop latency.
+ * The capture rate counts the packets in the backend's results over the time from the first send
+ * until the backend reports the capture complete (the idle wait for a lost tail left out); the
+ * send rate next to it shows when the sender was the limit.
+ * Stop latency runs from the stop request until the backend reports the capture complete.
+ *
+ *   java -cp . main.CaptureBenchmark [packets] [payload_size] [backend ...]
+ *
+ * Defaults: 100000 packets of 512 bytes through tshark, tshark-live, dumpcap and in-jvm.
+ * External backends need the same tshark/dumpcap setup as CaptureUDP (sudo on Linux).
+ */
+public class CaptureBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 5599;
+    private static final long ATTACH_TIMEOUT_MILLIS = 10000;
+    private static final long DRAIN_IDLE_MILLIS = 500;
+    private static final int BATCH_SIZE = 32;
+
+    // Large control socket buffer, so the in-JVM backend is not limited by the default SO_RCVBUF
+    private static final int RECEIVE_BUFFER_SIZE = 64 << 20;
+
+    public static void main(String[] args) {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        List<String> backends = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : Arrays.asList("tshark", "tshark-live", "dumpcap", "in-jvm");
+
+        System.out.println("Workload: " + packets + " packets of " + size + " bytes to " + HOST + ":" + PORT);
+        System.out.println(String.format("%-11s %12s %12s %12s %10s %10s %10s %10s %10s", "backend", "captured", "captured/s", "sent/s", "jvm cpu", "ext cpu", "start", "stop", "read"));
+        for (String backend : backends) {
+            try {
+                System.out.println(run(backend, packets, size));
+            } catch (Exception e) {
+                System.out.println(String.format("%-11s failed: %s", backend, e.getMessage()));
+            }
+        }
+    }
+
+    // One backend through the whole workload
+    private static String run(String name, int packets, int size) throws Exception {
+        CaptureBackend backend = CaptureBackend.create(name, false);
+        String outputFilePath = CaptureSession.default_output_path("_bench_" + name);
+        Files.createDirectories(Paths.get(outputFilePath).getParent());
+
+        AtomicBoolean receiving = new AtomicBoolean(true);
+        AtomicLong received = new AtomicLong();
+        AtomicLong lastReceive = new AtomicLong(System.nanoTime());
+
+        try (DatagramReceiver receiver = DatagramReceiver.open("socket", HOST, PORT);
+             DatagramChannel sender = DatagramChannel.open()) {
+            receiver.set_receive_buffer_size(RECEIVE_BUFFER_SIZE);
+
+            // The control socket: drains the port and feeds the in-JVM backend, like CaptureUDP does
+            Thread receiveThread = new Thread(() -> {
+                ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+                int[] srcIps = new int[BATCH_SIZE];
+                int[] srcPorts = new int[BATCH_SIZE];
+                long[] timestamps = new long[BATCH_SIZE];
+                for (int i = 0; i < BATCH_SIZE; i++) batch[i] = ByteBuffer.allocateDirect(65535);
+                try {
+                    while (receiving.get()) {
+                        for (ByteBuffer buffer : batch) buffer.clear();
+                        int count = receiver.receive_batch(batch, BATCH_SIZE, srcIps, srcPorts, timestamps, 100);
+                        synchronized (backend) {
+                            for (int i = 0; i < count; i++) backend.on_datagram(batch[i], srcIps[i], srcPorts[i], timestamps[i]);
+                        }
+                        if (count > 0) {
+                            received.addAndGet(count);
+                            lastReceive.set(System.nanoTime());
+                        }
+                    }
+                } catch (Exception e) {
+                    if (receiving.get()) System.out.println(name + ": receive failed: " + e.getMessage());
+                }
+            }, "bench-receive");
+            receiveThread.start();
+
+            long cpuBefore = process_cpu_nanos();
+
+            // Start latency: until the backend actually records
+            long startBegin = System.nanoTime();
+            synchronized (backend) {
+                backend.start(HOST, PORT, outputFilePath);
+            }
+            while (!backend.is_attached()) {
+                if (System.nanoTime() - startBegin > ATTACH_TIMEOUT_MILLIS * 1000000L) {
+                    backend.abort();
+                    receiving.set(false);
+                    throw new Exception("not attached after " + ATTACH_TIMEOUT_MILLIS + " ms");
+                }
+                Thread.sleep(1);
+            }
+            long startNanos = System.nanoTime() - startBegin;
+
+            // Workload
+            byte[] payload = new byte[size];
+            Arrays.fill(payload, (byte) 'x');
+            byte[] prefix = "bench-".getBytes(StandardCharsets.ISO_8859_1);
+            System.arraycopy(prefix, 0, payload, 0, Math.min(prefix.length, size));
+            ByteBuffer datagram = ByteBuffer.wrap(payload);
+            InetSocketAddress target = new InetSocketAddress(HOST, PORT);
+
+            long sendBegin = System.nanoTime();
+            for (int i = 0; i < packets; i++) {
+                datagram.clear();
+                sender.send(datagram, target);
+            }
+            long sendNanos = System.nanoTime() - sendBegin;
+
+            // Let the socket drain
+            while (received.get() < packets && System.nanoTime() - lastReceive.get() < DRAIN_IDLE_MILLIS * 1000000L) {
+                Thread.sleep(10);
+            }
+
+            long stopBegin = System.nanoTime();
+            CompletableFuture<Void> flushed;
+            synchronized (backend) {
+                flushed = backend.stop();
+            }
+            flushed.get();
+            long stopEnd = System.nanoTime();
+            long stopNanos = stopEnd - stopBegin;
+            long captureNanos = stopEnd - sendBegin - (stopBegin - Math.max(lastReceive.get(), sendBegin + sendNanos));  // Without the idle wait
+            long cpuNanos = process_cpu_nanos() - cpuBefore;
+            receiving.set(false);
+            receiveThread.join();
+
+            long readBegin = System.nanoTime();
+            long captured = 0;
+            for (String message : backend.read_payloads()) {
+                if (message.startsWith("bench-")) captured++;
+            }
+            long readNanos = System.nanoTime() - readBegin;
+            Files.deleteIfExists(Paths.get(outputFilePath));
+
+            double capturedPerSecond = captured / (captureNanos / 1e9);
+            double sentPerSecond = packets / (sendNanos / 1e9);
+            return String.format("%-11s %12s %12.0f %12.0f %8d ms %8d ms %8d ms %8d ms %8d ms", name, captured + "/" + packets, capturedPerSecond, sentPerSecond,
+                cpuNanos / 1000000, backend.get_external_cpu_nanos() / 1000000, startNanos / 1000000, stopNanos / 1000000, readNanos / 1000000);
+        } finally {
+            receiving.set(false);
+            backend.abort();
+        }
+    }
+
+    private static long process_cpu_nanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
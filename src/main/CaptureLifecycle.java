@@ -0,0 +1,82 @@
+package main;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+
+/**
+ * Lifecycle of one listen_and_capture_udp capture, with the time of every transition:
+ * ARMED (waiting for START), CAPTURING (backend started), STOPPING (STOP seen, backend asked to
+ * stop), FLUSHED (capture file complete), DECODED (payloads read back), DONE (callbacks run).
+ * States only move forward; a failed or timed out capture may jump straight to DONE.
+ */
+public class CaptureLifecycle {
+
+    public enum State { ARMED, CAPTURING, STOPPING, FLUSHED, DECODED, DONE }
+
+    private final Map<State, Long> enteredNanos = new EnumMap<>(State.class);
+    private final long createdNanos;
+    private final boolean verbose;
+    private State state;
+
+    public CaptureLifecycle(boolean verbose) {
+        this.verbose = verbose;
+        createdNanos = System.nanoTime();
+        state = State.ARMED;
+        enteredNanos.put(State.ARMED, createdNanos);
+    }
+
+    /**
+     * Move to the given state. Moving backwards or staying put is ignored.
+     */
+    public synchronized void transition(State next) {
+        if (next.ordinal() <= state.ordinal()) return;
+        long now = System.nanoTime();
+        if (verbose) System.out.println("Capture " + state + " -> " + next + " after " + format_millis(now - enteredNanos.get(state)));
+        state = next;
+        enteredNanos.put(next, now);
+    }
+
+    public synchronized State get_state() { return state; }
+
+    /**
+     * When the state was entered, System.nanoTime(); -1 if it was skipped or not reached yet.
+     */
+    public synchronized long get_entered_nanos(State state) {
+        Long entered = enteredNanos.get(state);
+        return entered == null ? -1 : entered;
+    }
+
+    /**
+     * Nanoseconds between entering two states, -1 if either was not reached.
+     */
+    public synchronized long get_nanos_between(State from, State to) {
+        Long start = enteredNanos.get(from);
+        Long end = enteredNanos.get(to);
+        return start == null || end == null ? -1 : end - start;
+    }
+
+    // Time from the stop signal until the callbacks were done
+    public long get_stop_to_done_nanos() { return get_nanos_between(State.STOPPING, State.DONE); }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder output = new StringBuilder();
+        State previous = null;
+        for (Map.Entry<State, Long> entry : enteredNanos.entrySet()) {
+            if (previous != null) {
+                if (output.length() > 0) output.append(", ");
+                output.append(previous).append(" -> ").append(entry.getKey()).append(' ')
+                    .append(format_millis(entry.getValue() - enteredNanos.get(previous)));
+            }
+            previous = entry.getKey();
+        }
+        long stopToDone = get_stop_to_done_nanos();
+        if (stopToDone >= 0) output.append("; stop to done ").append(format_millis(stopToDone));
+        return output.toString();
+    }
+
+    private static String format_millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+}
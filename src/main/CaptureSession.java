@@ -0,0 +1,606 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.TimeUnit;
+
+import lib.BufferPool;
+import lib.Bytes;
+import lib.CapturedPacket;
+import lib.LookbackBuffer;
+import lib.CaptureWriter;
+import lib.PacketFilter;
+import lib.PcapWriter;
+import lib.RotatingCaptureWriter;
+import lib.UdpDropMonitor;
+
+
+/**
+ * START/STOP state machine for one in-process capture on one (host, port).
+ * The receive loop (blocking socket, selector, ...) feeds datagrams into it and
+ * the session takes care of the pcap file, the results list and the callbacks.
+ */
+public class CaptureSession {
+
+    // Names handed out by default_output_path in the current second
+    private static String lastPathTimestamp = "";
+    private static int pathsThisSecond = 0;
+
+    private final String host;
+    private final int port;
+    private final Consumer<List<String>> onDataReceived;
+    private final Consumer<Exception> onError;
+    private final Runnable onStop;
+    private final String startSignal;
+    private final String stopSignal;
+    private final int timeoutSeconds;
+    private final boolean autoStopAfterTimeout;
+    private final boolean includeSignalsInMessage;
+    private final boolean verbose;
+
+    private final byte[] startBytes;
+    private final byte[] stopBytes;
+
+    private final String outputFilePath;
+    private long rotateBytes = 0;          // Rotation limits of the capture file, 0 for none
+    private long rotateNanos = 0;
+    private int rotateFiles = 0;
+    private Consumer<Path> onSegmentClosed = null;
+    private List<String> results = new ArrayList<>();  // To store captured packets
+    private final List<ByteBuffer> retained = new ArrayList<>();  // Leased buffers not decoded yet
+    private final SpillLog spilled = new SpillLog();  // Payloads copied out of buffers that could not be kept
+    private BufferPool pool = null;
+    private int maxRetained = 0;
+    private CaptureWriter pcapWriter = null;
+    private int localIp = 0;
+
+    private LookbackBuffer preTrigger = null;
+    private PacketFilter filter = null;
+    private long filtered = 0;
+    private Consumer<CapturedPacket> onPacket = null;
+    private boolean collectResults = true;
+    private long sequence = 0;
+
+    // Continuous mode: one window per START/STOP exchange
+    private Consumer<CaptureWindow> onWindow = null;
+    private long windowSequence = 0;
+    private long windowStartNanos = 0;
+    private long windowFirstPacket = 0;
+    private long lastActivity;
+    private volatile boolean stopRequested = false;
+
+    // Receive statistics
+    private long received = 0;
+    private long receivedBytes = 0;
+    private UdpDropMonitor dropMonitor = null;
+    private int receiveBufferRequested = 0;
+    private int receiveBufferSize = 0;
+    private long lastDropSample = 0;
+    private long reportedDrops = 0;
+    private Consumer<CaptureStats> onStats = null;
+
+    private boolean listening = false;
+    private boolean messageStarted = false;
+    private boolean stopped = false;
+    private boolean done = false;
+    private long startTime;
+
+    public CaptureSession(
+        String host,
+        int port,
+        Consumer<List<String>> onDataReceived,
+        Consumer<Exception> onError,
+        Runnable onStop,
+        String start_signal,
+        String stop_signal,
+        int timeout_seconds,
+        boolean auto_stop_after_timeout,
+        boolean include_signals_in_message,
+        boolean verbose,
+        String outputFilePath
+    ) {
+        this.host = host;
+        this.port = port;
+        this.onDataReceived = onDataReceived;
+        this.onError = onError;
+        this.onStop = onStop;
+        this.startSignal = start_signal;
+        this.stopSignal = stop_signal;
+        this.timeoutSeconds = timeout_seconds;
+        this.autoStopAfterTimeout = auto_stop_after_timeout;
+        this.includeSignalsInMessage = include_signals_in_message;
+        this.verbose = verbose;
+        this.outputFilePath = outputFilePath;
+        this.startBytes = Bytes.signal_bytes(start_signal);
+        this.stopBytes = Bytes.signal_bytes(stop_signal);
+    }
+
+    /**
+     * Default capture file name: captures/capture_<timestamp><suffix>.pcap
+     */
+    public static String default_output_path(String suffix) {
+        return default_output_path(suffix, "pcap");
+    }
+
+    /**
+     * Default capture file name for the format: captures/capture_<timestamp><suffix>.<format>
+     * ("pcap" or "pcapng"). Later sessions of the same second get _1, _2, ... appended.
+     */
+    public static synchronized String default_output_path(String suffix, String format) {
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        String captures_directory_path = "captures";
+        if (!timestamp.equals(lastPathTimestamp)) {
+            lastPathTimestamp = timestamp;
+            pathsThisSecond = 0;
+        }
+        String path;
+        do {
+            path = captures_directory_path + "/capture_" + timestamp + suffix + (pathsThisSecond == 0 ? "" : "_" + pathsThisSecond) + "." + format;
+            pathsThisSecond++;
+        } while (Files.exists(Paths.get(path)));  // Also left by another process
+        return path;
+    }
+
+    /**
+     * Base name of a rotated capture ring: captures/ring_<port><suffix>.<format>. It is the same for
+     * every session on the port, so the segments of all of them form one ring (see RotatingCaptureWriter).
+     */
+    public static String ring_base_path(int port, String suffix, String format) {
+        return "captures/ring_" + port + suffix + "." + format;
+    }
+
+    /**
+     * Deliver every captured packet (signals excluded) to onPacket as soon as it arrives.
+     * With collect_results false nothing is accumulated and onDataReceived gets an empty list.
+     */
+    public void stream_packets(Consumer<CapturedPacket> onPacket, boolean collect_results) {
+        this.onPacket = onPacket;
+        this.collectResults = collect_results;
+    }
+
+    /**
+     * Write the capture as a ring of segment files (see RotatingCaptureWriter): a new segment after
+     * max_bytes or max_duration_nanos, at most max_files kept. onSegmentClosed (may be null) gets
+     * every completed segment. All limits 0: one file, handed to onSegmentClosed once it is closed.
+     */
+    public void set_rotation(long max_bytes, long max_duration_nanos, int max_files, Consumer<Path> onSegmentClosed) {
+        this.rotateBytes = max_bytes;
+        this.rotateNanos = max_duration_nanos;
+        this.rotateFiles = max_files;
+        this.onSegmentClosed = onSegmentClosed;
+    }
+
+    /**
+     * Capture only datagrams that pass the filter (see PacketFilter; tested with the sender as
+     * source and host:port as destination). Start and stop signals are always recognised.
+     */
+    public void set_filter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    // Datagrams dropped by the filter so far
+    public long get_filtered_count() { return filtered; }
+
+    /**
+     * Armed mode: keep the datagrams seen before the start signal in the given lookback buffer
+     * and flush them into the capture when the start signal arrives.
+     */
+    public void set_pre_trigger(LookbackBuffer preTrigger) {
+        this.preTrigger = preTrigger;
+    }
+
+    /**
+     * Continuous mode: the session outlives the stop signal. Each START/STOP exchange is handed to
+     * onWindow as its own CaptureWindow, the session re-arms for the next start signal and all
+     * windows go into one pcap file. timeout_seconds becomes an idle timeout (0 or less: none),
+     * and the session only ends on that timeout or request_stop().
+     */
+    public void set_continuous(Consumer<CaptureWindow> onWindow) {
+        this.onWindow = onWindow;
+    }
+
+    /**
+     * Ask a continuous session to end; the receive loop finishes it on its next wake-up.
+     */
+    public void request_stop() {
+        stopRequested = true;
+    }
+
+    public boolean stop_requested() { return stopRequested; }
+
+    /**
+     * Receive statistics (packets, bytes, kernel drops, SO_RCVBUF) are handed to onStats once,
+     * when the session ends, before the other callbacks.
+     */
+    public void set_stats_listener(Consumer<CaptureStats> onStats) {
+        this.onStats = onStats;
+    }
+
+    /**
+     * Track the kernel drop counter of the session's socket, with the receive buffer size that
+     * was asked for (0: system default) and the one granted.
+     */
+    public void monitor_drops(UdpDropMonitor dropMonitor, int receive_buffer_requested, int receive_buffer_size) {
+        this.dropMonitor = dropMonitor;
+        this.receiveBufferRequested = receive_buffer_requested;
+        this.receiveBufferSize = receive_buffer_size;
+    }
+
+    /**
+     * Re-read the kernel drop counter, at most once a second unless forced (e.g. right before
+     * the socket is closed). New drops are reported when verbose.
+     */
+    public void sample_drops(boolean force) {
+        if (dropMonitor == null) return;
+        long now = System.currentTimeMillis();
+        if (!force && now - lastDropSample < 1000) return;
+        lastDropSample = now;
+
+        long drops = dropMonitor.sample();
+        if (drops > reportedDrops) {
+            if (verbose) System.out.println("Kernel dropped " + (drops - reportedDrops) + " datagrams on port " + port + " (" + drops + " so far, " + dropMonitor.get_queued_bytes() + " bytes queued).");
+            reportedDrops = drops;
+        }
+    }
+
+    public CaptureStats get_stats() {
+        return new CaptureStats(received, receivedBytes, dropMonitor == null ? 0 : dropMonitor.get_drops(), 0, receiveBufferRequested, receiveBufferSize);
+    }
+
+    // Final statistics, taken while the socket is still open when the receive loop allows it
+    private void report_stats() {
+        sample_drops(true);
+        CaptureStats stats = get_stats();
+        if (verbose) System.out.println("Session stats: " + stats);
+        if (onStats == null) return;
+        try {
+            onStats.accept(stats);
+        } catch (Exception e) {
+            if (onError != null) onError.accept(e);
+        }
+    }
+
+    /**
+     * Arm the session. Without a start signal, capture begins right away.
+     * Leased buffers go back to the given pool; at most max_retained of them are held
+     * before the session decodes them, so one session cannot drain a shared pool.
+     */
+    public void open(int local_ip, BufferPool pool, int max_retained) throws IOException {
+        localIp = local_ip;
+        this.pool = pool;
+        this.maxRetained = pool == null ? 0 : max_retained;
+        startTime = System.currentTimeMillis();
+        lastActivity = startTime;
+        if (startSignal == null) begin_capture(PcapWriter.now_nanos());
+    }
+
+    // Open a window; the pcap file is created once and shared by all windows of the session
+    private void begin_capture(long timestamp_nanos) throws IOException {
+        listening = true;
+        if (pcapWriter == null) {
+            boolean rotating = rotateBytes > 0 || rotateNanos > 0 || rotateFiles > 0;
+            pcapWriter = rotating ? new RotatingCaptureWriter(Paths.get(outputFilePath), rotateBytes, rotateNanos, rotateFiles, onSegmentClosed) : CaptureWriter.open(Paths.get(outputFilePath));
+        }
+        windowStartNanos = timestamp_nanos;
+        windowFirstPacket = pcapWriter.get_packet_count();
+    }
+
+    /**
+     * Feed one datagram (between position and limit of data) into the session.
+     * A leased buffer is owned by the session from here on: it is either kept until the
+     * results are built or released straight back to the pool. A buffer that is not leased
+     * is only read during the call. Returns true once the stop signal has been seen.
+     */
+    public boolean on_datagram(ByteBuffer data, boolean leased, int src_ip, int src_port, long timestamp_nanos) throws IOException {
+        if (done) {
+            if (leased) pool.release(data);
+            return true;
+        }
+        received++;
+        receivedBytes += data.remaining();
+        if (onWindow != null) lastActivity = System.currentTimeMillis();
+
+        // Start signal detection
+        if (!listening && Bytes.matches_signal(data, startBytes)) {
+            if (leased) pool.release(data);
+            begin_capture(timestamp_nanos);
+            if (verbose) System.out.println("Start Signal Received on port " + port + ". Writing capture to " + outputFilePath);
+            flush_pre_trigger(timestamp_nanos);
+            return false;
+        }
+        if (!listening) {
+            if (preTrigger != null) preTrigger.add(data, src_ip, src_port, timestamp_nanos);
+            if (leased) pool.release(data);
+            return false;
+        }
+
+        // Capture filter; the stop signal always gets through
+        if (filter != null && !filter.test_payload(src_ip, src_port, localIp, port, data) && !Bytes.matches_signal(data, stopBytes)) {
+            filtered++;
+            if (leased) pool.release(data);
+            return false;
+        }
+
+        // Write the datagram as it arrived
+        pcapWriter.write_udp_packet(src_ip, src_port, localIp, port, data, timestamp_nanos);
+
+        // Message handling
+        if (data.hasRemaining()) {
+            messageStarted = true;
+            if (verbose) System.out.println("Message Started.");
+        }
+
+        // Stop signal detection
+        if (Bytes.matches_signal(data, stopBytes)) {
+            if (leased) pool.release(data);
+            if (onWindow != null) {
+                if (verbose) System.out.println("Stop Signal Received on port " + port + ". Closing window #" + windowSequence + ".");
+                emit_window(timestamp_nanos, true);
+                if (startSignal == null) begin_capture(timestamp_nanos);
+                return false;
+            }
+            if (verbose) System.out.println("Stop Signal Received on port " + port + ". Closing capture...");
+            stopped = true;
+            return true;
+        }
+
+        emit_packet(data, src_ip, src_port, timestamp_nanos);
+        if (!collectResults) {
+            if (leased) pool.release(data);
+            return false;
+        }
+
+        // Keep the leased buffer as is; copy the bytes out only when it cannot be kept
+        if (leased && retained.size() < maxRetained) {
+            retained.add(data);
+        } else {
+            spill();
+            spilled.add(data);
+            if (leased) pool.release(data);
+        }
+        return false;
+    }
+
+    // Streaming: hand a copy of the packet over right away
+    private void emit_packet(ByteBuffer data, int src_ip, int src_port, long timestamp_nanos) {
+        if (onPacket == null) return;
+        byte[] payload = new byte[data.remaining()];
+        data.get(data.position(), payload);
+        onPacket.accept(new CapturedPacket(sequence++, timestamp_nanos, src_ip, src_port, localIp, port, payload));
+    }
+
+    // Move the armed pre-trigger window into the capture, oldest first; signals in it are left out
+    private void flush_pre_trigger(long trigger_nanos) throws IOException {
+        if (preTrigger == null) return;
+        int flushed = preTrigger.flush(trigger_nanos, (data, src_ip, src_port, timestamp_nanos) -> {
+            if (Bytes.matches_signal(data, startBytes) || Bytes.matches_signal(data, stopBytes)) return;
+            if (filter != null && !filter.test_payload(src_ip, src_port, localIp, port, data)) {
+                filtered++;
+                return;
+            }
+            pcapWriter.write_udp_packet(src_ip, src_port, localIp, port, data, timestamp_nanos);
+            if (data.hasRemaining()) messageStarted = true;
+            emit_packet(data, src_ip, src_port, timestamp_nanos);
+            if (collectResults) {
+                spill();
+                spilled.add(data);
+            }
+        });
+        if (verbose && flushed > 0) System.out.println("Flushed " + flushed + " pre-trigger packets into the capture.");
+    }
+
+    // Continuous mode: hand the current window over and re-arm for the next start signal
+    private void emit_window(long stop_nanos, boolean complete) {
+        decode_results();
+        List<String> messages = results;
+        results = new ArrayList<>();
+        listening = false;
+
+        if (includeSignalsInMessage) {
+            if (startSignal != null) messages.add(0, startSignal);
+            if (stopSignal != null && complete) messages.add(stopSignal);
+        }
+
+        long packetCount = pcapWriter == null ? 0 : pcapWriter.get_packet_count() - windowFirstPacket;
+        CaptureWindow window = new CaptureWindow(windowSequence++, messages, windowStartNanos, stop_nanos, windowFirstPacket, packetCount, complete);
+        try {
+            onWindow.accept(window);
+        } catch (Exception e) {
+            if (onError != null) onError.accept(e);
+            if (verbose) System.out.println("Error Occurred: " + e.getMessage());
+        }
+    }
+
+    // Copy the buffers held so far into the spill log and give them back to the pool
+    private void spill() {
+        for (int i = 0; i < retained.size(); i++) {
+            ByteBuffer buffer = retained.get(i);
+            spilled.add(buffer);
+            pool.release(buffer);
+        }
+        retained.clear();
+    }
+
+    // Decode what was captured into results, in arrival order: the spill log holds everything before the held buffers
+    private void decode_results() {
+        spilled.decode_into(results);
+        for (int i = 0; i < retained.size(); i++) {
+            ByteBuffer buffer = retained.get(i);
+            results.add(Bytes.to_string(buffer));
+            pool.release(buffer);
+        }
+        retained.clear();
+    }
+
+    /**
+     * Milliseconds left before the session times out (idle time left in continuous mode).
+     */
+    public long remaining_millis() {
+        if (onWindow != null) {
+            if (timeoutSeconds <= 0) return Long.MAX_VALUE;
+            return TimeUnit.SECONDS.toMillis(timeoutSeconds) - (System.currentTimeMillis() - lastActivity);
+        }
+        return TimeUnit.SECONDS.toMillis(timeoutSeconds) - (System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Handle a timeout: deliver what was captured if auto stop applies, report an error otherwise.
+     */
+    public void time_out() {
+        if (onWindow != null) {
+            if (verbose) System.out.println("Continuous capture idle for " + timeoutSeconds + " seconds. Closing...");
+            finish();
+        } else if (autoStopAfterTimeout && messageStarted) {
+            if (verbose) System.out.println("Auto Closed due to Timeout.");
+            finish();
+        } else {
+            fail(new Exception("Timeout reached after " + timeoutSeconds + " seconds"));
+        }
+    }
+
+    /**
+     * Close the capture file and hand the results to the callbacks.
+     */
+    public void finish() {
+        if (done) return;
+        done = true;
+        report_stats();
+        if (onWindow != null) {
+            finish_continuous();
+            return;
+        }
+        decode_results();
+
+        try {
+            close_writer();
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        if (results.isEmpty() && verbose) {
+            System.out.println("No packets were captured.");
+        }
+
+        if (includeSignalsInMessage) {
+            if (startSignal != null) {
+                results.add(0, startSignal);  // Prepend start signal
+            }
+            if (stopSignal != null && stopped) {
+                results.add(stopSignal);  // Append stop signal
+            }
+        }
+
+        try {
+            if (onDataReceived != null) onDataReceived.accept(results);
+            if (onStop != null) onStop.run();
+        } catch (Exception e) {
+            if (onError != null) onError.accept(e);
+            if (verbose) System.out.println("Error Occurred: " + e.getMessage());
+        }
+    }
+
+    // End of a continuous session: a window still open is delivered as incomplete
+    private void finish_continuous() {
+        if (listening && (!retained.isEmpty() || !spilled.is_empty() || pcapWriter.get_packet_count() > windowFirstPacket)) {
+            emit_window(PcapWriter.now_nanos(), false);
+        }
+        try {
+            close_writer();
+        } catch (IOException e) {
+            if (onError != null) onError.accept(e);
+            return;
+        }
+        try {
+            if (onStop != null) onStop.run();
+        } catch (Exception e) {
+            if (onError != null) onError.accept(e);
+            if (verbose) System.out.println("Error Occurred: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Abort the session with an error.
+     */
+    public void fail(Exception e) {
+        if (!done) report_stats();
+        done = true;
+        for (ByteBuffer buffer : retained) pool.release(buffer);
+        retained.clear();
+        spilled.clear();
+        try {
+            close_writer();
+        } catch (IOException ignored) {
+            // The original error is the one worth reporting
+        }
+        if (onError != null) onError.accept(e);
+        if (verbose) System.out.println("Error Occurred: " + e.getMessage());
+    }
+
+    private void close_writer() throws IOException {
+        if (pcapWriter == null) return;
+        CaptureWriter writer = pcapWriter;
+        pcapWriter = null;
+        writer.close();
+        if (verbose) System.out.println("Captured " + writer.get_packet_count() + " packets into " + outputFilePath);
+        if (onSegmentClosed != null && !(writer instanceof RotatingCaptureWriter)) onSegmentClosed.accept(Paths.get(outputFilePath));  // Segments are handed over by the writer
+    }
+
+    public boolean is_done() { return done; }
+
+    public String get_host() { return host; }
+
+    public int get_port() { return port; }
+
+    public String get_output_file_path() { return outputFilePath; }
+
+    /**
+     * Payloads copied out of receive buffers the session could not keep, in arrival order, in one
+     * growing byte array. They are decoded only when the results are handed over, so the receive
+     * path creates no strings and, once the array has grown, allocates nothing.
+     */
+    private static class SpillLog {
+
+        private byte[] bytes = new byte[1 << 16];
+        private int[] ends = new int[256];  // End offset of every payload
+        private int length = 0;
+        private int count = 0;
+
+        void add(ByteBuffer data) {
+            int size = data.remaining();
+            if (length + size > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + size));
+            if (count == ends.length) ends = Arrays.copyOf(ends, count * 2);
+            data.get(data.position(), bytes, length, size);
+            length += size;
+            ends[count++] = length;
+        }
+
+        // Append every payload to results as text (one char per byte) and empty the log
+        void decode_into(List<String> results) {
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                results.add(new String(bytes, start, ends[i] - start, StandardCharsets.ISO_8859_1));
+                start = ends[i];
+            }
+            clear();
+        }
+
+        boolean is_empty() { return count == 0; }
+
+        void clear() {
+            length = 0;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package main;
+
+
+/**
+ * Receive side statistics of one capture session.
+ * Compare packets_received with what the sender reports: kernel_drops are datagrams the socket
+ * buffer could not hold, ring_drops are datagrams the receive thread had no room for.
+ */
+public class CaptureStats {
+
+    private final long packetsReceived;
+    private final long bytesReceived;
+    private final long kernelDrops;
+    private final long ringDrops;
+    private final int receiveBufferRequested;
+    private final int receiveBufferSize;
+
+    public CaptureStats(long packets_received, long bytes_received, long kernel_drops, long ring_drops, int receive_buffer_requested, int receive_buffer_size) {
+        this.packetsReceived = packets_received;
+        this.bytesReceived = bytes_received;
+        this.kernelDrops = kernel_drops;
+        this.ringDrops = ring_drops;
+        this.receiveBufferRequested = receive_buffer_requested;
+        this.receiveBufferSize = receive_buffer_size;
+    }
+
+    // Datagrams read from the socket, signals and packets outside the window included
+    public long get_packets_received() { return packetsReceived; }
+
+    public long get_bytes_received() { return bytesReceived; }
+
+    // Datagrams dropped by the kernel for this socket (Linux, /proc/net/udp), 0 elsewhere
+    public long get_kernel_drops() { return kernelDrops; }
+
+    public long get_ring_drops() { return ringDrops; }
+
+    // SO_RCVBUF asked for and granted by the kernel (both 0: system default left alone)
+    public int get_receive_buffer_requested() { return receiveBufferRequested; }
+
+    public int get_receive_buffer_size() { return receiveBufferSize; }
+
+    public boolean has_drops() { return kernelDrops > 0 || ringDrops > 0; }
+
+    @Override
+    public String toString() {
+        return packetsReceived + " packets (" + bytesReceived + " bytes) received, "
+            + kernelDrops + " dropped by the kernel, " + ringDrops + " dropped by the ring, "
+            + "SO_RCVBUF " + receiveBufferSize + (receiveBufferRequested > 0 ? " (asked " + receiveBufferRequested + ")" : "");
+    }
+}
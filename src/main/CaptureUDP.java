@@ -1,21 +1,29 @@
 package main;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketTimeoutException;
 
-import java.util.Date;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -23,10 +31,205 @@ import java.sql.SQLException;
 
 // PostgreSQL Connection
 import lib.PostgreSQLConnection;
+import lib.BufferPool;
+import lib.Bytes;
+import lib.CaptureBackend;
+import lib.CaptureFollower;
+import lib.CaptureProcessPool;
+import lib.CapturedPacket;
+import lib.DatagramReceiver;
+import lib.FragmentReassembler;
+import lib.LookbackBuffer;
+import lib.PacketFilter;
+import lib.PayloadIndex;
+import lib.PcapWriter;
+import lib.PooledCaptureBackend;
+import lib.RingBuffer;
+import lib.TransmissionRate;
+import lib.UdpDropMonitor;
+import lib.WaitStrategy;
 
 
 public class CaptureUDP {
 
+    // Receive buffers shared by the in-process captures of this instance (see receive_pool)
+    private BufferPool receivePool = null;
+
+    // Packets buffered per subscriber of stream_udp
+    private static final int STREAM_BUFFER_CAPACITY = 4096;
+
+    // Datagrams handed to the session per receive call
+    private static final int RECEIVE_BATCH_SIZE = 32;
+
+    // What records listen_and_capture_udp: "tshark", "tshark-live", "dumpcap", "in-jvm" or "pool" (default from -Dcapture.backend, else tshark)
+    private String captureBackend = System.getProperty("capture.backend", "tshark");
+
+    /**
+     * Throws IllegalArgumentException for a backend that cannot apply the capture filter set with
+     * set_filter (tshark-live), or whose file cannot be followed with set_follow_listener.
+     */
+    public void set_capture_backend(String capture_backend) {
+        check_filter_support(capture_backend, captureFilter);
+        check_follow_support(capture_backend, followListener);
+        this.captureBackend = capture_backend;
+    }
+
+    public String get_capture_backend() { return captureBackend; }
+
+    // Warm tshark processes used by the "pool" backend; setting a pool selects that backend
+    private CaptureProcessPool capturePool = null;
+
+    public void set_capture_pool(CaptureProcessPool capture_pool) {
+        this.capturePool = capture_pool;
+        if (capture_pool != null) captureBackend = "pool";
+    }
+
+    public CaptureProcessPool get_capture_pool() { return capturePool; }
+
+    // Capture file format of listen_and_capture_udp and the in-process captures: "pcap" or "pcapng" (tshark always writes pcapng)
+    private String captureFormat = "pcap";
+
+    public void set_capture_format(String capture_format) {
+        if (!capture_format.equals("pcap") && !capture_format.equals("pcapng")) throw new IllegalArgumentException("Unknown capture format: " + capture_format);
+        this.captureFormat = capture_format;
+    }
+
+    public String get_capture_format() { return captureFormat; }
+
+    // Ring of capture files for the in-process captures (0 = no limit); segment_listener gets each closed segment
+    private long rotateBytes = 0;
+    private int rotateSeconds = 0;
+    private int rotateFiles = 0;
+    private Consumer<Path> segmentListener = null;
+
+    /**
+     * Rotate the in-process capture file after max_bytes or max_seconds, keeping at most max_files
+     * segments (oldest deleted), so always-on capture runs in bounded disk space. The captures on a
+     * port then write one ring, captures/ring_<port>_NNNNNN.pcap, that every capture continues.
+     */
+    public void set_rotation(long max_bytes, int max_seconds, int max_files) {
+        this.rotateBytes = max_bytes;
+        this.rotateSeconds = max_seconds;
+        this.rotateFiles = max_files;
+    }
+
+    public void set_segment_listener(Consumer<Path> segment_listener) { this.segmentListener = segment_listener; }
+
+    // Capture file of an in-process capture; rotated ones share one ring per port, so max_files bounds all of them
+    private String in_process_output_path(int port, String suffix) {
+        boolean rotating = rotateBytes > 0 || rotateSeconds > 0 || rotateFiles > 0;
+        return rotating ? CaptureSession.ring_base_path(port, suffix, captureFormat) : CaptureSession.default_output_path(suffix, captureFormat);
+    }
+
+    // Payload index of the captures directory, given every capture file once it is closed (null: none)
+    private PayloadIndex payloadIndex = null;
+
+    /**
+     * Add every capture file to the index (see PayloadIndex) once it is closed, on the index's
+     * background thread, so captures are searchable as soon as they end.
+     */
+    public void set_payload_index(PayloadIndex payload_index) { this.payloadIndex = payload_index; }
+
+    public PayloadIndex get_payload_index() { return payloadIndex; }
+
+    // What gets each closed capture file: the segment listener and the payload index
+    private Consumer<Path> closed_file_listener() {
+        if (payloadIndex == null) return segmentListener;
+        PayloadIndex index = payloadIndex;
+        Consumer<Path> indexer = file -> index.submit(file);
+        return segmentListener == null ? indexer : segmentListener.andThen(indexer);
+    }
+
+    // Packets of listen_and_capture_udp read from the capture file while it is being written (null: none)
+    private Consumer<CapturedPacket> followListener = null;
+
+    /**
+     * Give the packets of listen_and_capture_udp to the listener while the capture is still running,
+     * read from the capture file as the backend writes it (see CaptureFollower), signals included.
+     * They arrive on a thread of their own, all of them before onDataReceived, unless the listener
+     * is still behind FLUSH_TIMEOUT_SECONDS after the file is complete: the rest is then skipped.
+     * The in-jvm backend writes through a buffer, so its packets may only reach the file at stop.
+     * Throws IllegalArgumentException for a backend whose file this JVM cannot read (tshark and
+     * dumpcap write through sudo); a follower that fails later is reported through onError.
+     */
+    public void set_follow_listener(Consumer<CapturedPacket> follow_listener) {
+        check_follow_support(captureBackend, follow_listener);
+        this.followListener = follow_listener;
+    }
+
+    // Like filters, checked when set rather than when the capture is already listening
+    private static void check_follow_support(String backend, Consumer<CapturedPacket> follow_listener) {
+        if (follow_listener == null || "pool".equals(backend)) return;
+        if (!CaptureBackend.create(backend, false).supports_follow()) throw new IllegalArgumentException("The " + backend + " capture backend writes a file this JVM cannot read; it cannot be followed");
+    }
+
+    // Capture filter of listen_and_capture_udp and the in-process captures (see PacketFilter), null for none
+    private PacketFilter captureFilter = null;
+
+    /**
+     * Keep only the datagrams matching the filter expression, e.g. "src net 10.0.0.0/8 and len > 0"
+     * or "not prefix \"HEARTBEAT\"". null or "" removes the filter.
+     * Throws IllegalArgumentException for a malformed expression, or when the capture backend
+     * cannot apply filters (tshark-live).
+     */
+    public void set_filter(String filter) {
+        PacketFilter compiled = filter == null || filter.isBlank() ? null : PacketFilter.compile(filter);
+        check_filter_support(captureBackend, compiled);
+        this.captureFilter = compiled;
+    }
+
+    // Filters are checked when they are set, so a capture never fails on one once it is listening
+    private static void check_filter_support(String backend, PacketFilter filter) {
+        if (filter == null || "pool".equals(backend)) return;
+        if (!CaptureBackend.create(backend, false).supports_filter()) throw new IllegalArgumentException("The " + backend + " capture backend does not support capture filters");
+    }
+
+    public PacketFilter get_filter() { return captureFilter; }
+
+    // Receive engine of the in-process capture: "socket" (DatagramChannel) or "recvmmsg" (Linux, JDK 22+)
+    private String receiveEngine = "socket";
+
+    public void set_receive_engine(String receive_engine) { this.receiveEngine = receive_engine; }
+
+    public String get_receive_engine() { return receiveEngine; }
+
+    // Ring between the receive thread and the processing thread of listen_and_capture_udp. Slots hold
+    // the largest datagram: the in-JVM backend records from them and the lookback buffer keeps their
+    // payloads for the armed mode. One slot per datagram the socket buffer can queue (see capture_ring)
+    private static final int RING_SLOT_SIZE = 65536;
+    private RingBuffer spareRing = null;  // Ring of the last capture that ended, for the next one
+    private static final long RECEIVE_POLL_MILLIS = 100;
+
+    // Armed mode (pre-trigger lookback), disabled by default
+    private long preTriggerMillis = 0;
+    private int preTriggerMaxPackets = 1024;
+    private int preTriggerMaxBytes = 1 << 20;
+
+    // How the processing thread waits for datagrams: BUSY_SPIN, YIELD or PARK
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    public void set_wait_strategy(WaitStrategy wait_strategy) { this.waitStrategy = wait_strategy; }
+
+    public WaitStrategy get_wait_strategy() { return waitStrategy; }
+
+    // Socket receive buffer: explicit size, or sized to hold this long at the expected rate (neither set: system default)
+    private static final long RECEIVE_BUFFER_HEADROOM_MILLIS = 100;
+    private int receiveBufferSize = 0;
+    private long expectedRateBits = 0;
+
+    // Receive statistics of every capture, delivered when it ends
+    private Consumer<CaptureStats> statsListener = null;
+
+    public void set_stats_listener(Consumer<CaptureStats> stats_listener) { this.statsListener = stats_listener; }
+
+    // Timestamped lifecycle of every listen_and_capture_udp capture, delivered once it is DONE
+    private Consumer<CaptureLifecycle> lifecycleListener = null;
+
+    public void set_lifecycle_listener(Consumer<CaptureLifecycle> lifecycle_listener) { this.lifecycleListener = lifecycle_listener; }
+
+    // Longest wait for the backend to finish the capture file after STOP
+    private static final long FLUSH_TIMEOUT_SECONDS = 10;
+
     public void listen_and_capture_udp(
         String host,
         int port,
@@ -40,134 +243,238 @@ public class CaptureUDP {
         boolean include_signals_in_message,
         boolean verbose
     ) {
-        boolean isWindows = System.getProperty("os.name").toLowerCase().contains("win");
+        byte[] startBytes = Bytes.signal_bytes(start_signal);
+        byte[] stopBytes = Bytes.signal_bytes(stop_signal);
 
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        // The socket is bound before this returns; its buffer size gives the ring size
+        DatagramReceiver opened = null;
+        int granted;
+        int socketBufferBytes;
+        try {
+            opened = DatagramReceiver.open("socket", host, port);
+            granted = tune_receive_buffer(opened, verbose);
+            socketBufferBytes = opened.get_receive_buffer_size();
+        } catch (IOException e) {
+            if (opened != null) {
+                try {
+                    opened.close();
+                } catch (IOException ignored) {
+                    // Failing already
+                }
+            }
+            if (onError != null) onError.accept(e);
+            if (verbose) System.out.println("Error Occurred: " + e.getMessage());
+            return;
+        }
+
+        DatagramReceiver socket = opened;
+
+        // The receive thread only moves datagrams into the ring; tshark orchestration and callbacks run on the processing thread
+        RingBuffer ring = capture_ring(socketBufferBytes);
+        RingBuffer.Reader ringReader = ring.add_reader(waitStrategy);
+        AtomicBoolean receiving = new AtomicBoolean(true);
+        AtomicReference<Exception> receiveError = new AtomicReference<>();
+        AtomicInteger ringUsers = new AtomicInteger(2);  // The last thread done with the ring hands it back
+
+        // Backend start and stop can block (launching, attaching, catching up): they run here, never on the processing thread
+        ExecutorService backendExecutor = Executors.newSingleThreadExecutor();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
         executorService.submit(() -> {
-            List<String> results = new ArrayList<>();  // To store captured packets
-            String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-            String captures_directory_path = "captures";
-            String outputFilePath = captures_directory_path + "/capture_" + timestamp + ".pcap";
-            Process tsharkProcess = null;
+            ByteBuffer[] slot = new ByteBuffer[1];
+            ByteBuffer overflow = ByteBuffer.allocateDirect(RING_SLOT_SIZE);  // Receives datagrams dropped while the ring is full
+            int[] srcIp = new int[1];
+            int[] srcPort = new int[1];
+            long[] arrival = new long[1];
+
+            try (DatagramReceiver receiver = socket) {
+                UdpDropMonitor dropMonitor = new UdpDropMonitor(receiver.get_local_ip(), receiver.get_local_port());
+                long received = 0;
+                long receivedBytes = 0;
+                long lastDropSample = System.currentTimeMillis();
+
+                while (receiving.get()) {
+                    // Kernel drops while capturing, once a second
+                    if (System.currentTimeMillis() - lastDropSample >= 1000) {
+                        lastDropSample = System.currentTimeMillis();
+                        long drops = dropMonitor.get_drops();
+                        if (dropMonitor.sample() > drops && verbose) System.out.println("Kernel dropped " + (dropMonitor.get_drops() - drops) + " datagrams on port " + port + ".");
+                    }
 
-            try (DatagramSocket socket = new DatagramSocket(port, InetAddress.getByName(host))) {
-                byte[] buffer = new byte[1024];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    ByteBuffer buffer = ring.claim();
+                    slot[0] = buffer != null ? buffer : overflow.clear();
+                    if (receiver.receive_batch(slot, 1, srcIp, srcPort, arrival, RECEIVE_POLL_MILLIS) == 0) continue;
+                    received++;
+                    receivedBytes += slot[0].remaining();
+                    if (buffer != null) {
+                        ring.publish(srcIp[0], srcPort[0], arrival[0]);
+                    } else {
+                        ring.record_drop();
+                    }
+                }
+
+                // Final reading while the socket is still open
+                dropMonitor.sample();
+                CaptureStats stats = new CaptureStats(received, receivedBytes, dropMonitor.get_drops(), ring.get_dropped(), get_receive_buffer_size(), granted);
+                if (verbose) System.out.println("Session stats: " + stats);
+                if (statsListener != null) statsListener.accept(stats);
+            } catch (Exception e) {
+                receiveError.set(e);
+            } finally {
+                if (ringUsers.decrementAndGet() == 0) release_ring(ring);
+            }
+        });
 
+        executorService.submit(() -> {
+            List<String> results = new ArrayList<>();  // To store captured packets
+            String outputFilePath = CaptureSession.default_output_path("", captureFormat);
+            CaptureBackend backend = "pool".equals(captureBackend) && capturePool != null ? new PooledCaptureBackend(capturePool, verbose) : CaptureBackend.create(captureBackend, verbose);
+            LookbackBuffer lookback = new_pre_trigger();  // Armed mode: datagrams the backend may not have seen
+            CaptureLifecycle lifecycle = new CaptureLifecycle(verbose);
+            CaptureFollower follower = null;  // Live packets for the follow listener
+            CompletableFuture<Long> following = null;
+            CompletableFuture<Void> started = null;  // Backend start, running on the backend thread
+            List<CapturedPacket> starting = new ArrayList<>();  // Datagrams that arrived while the backend was starting
+
+            try {
+                if (captureFilter != null) backend.set_filter(captureFilter);
                 boolean listening = false;
                 boolean messageStarted = false;
+                boolean capturing = false;  // The backend has started and has every datagram since the start signal
+                boolean stopped = false;
+                long triggerNanos = Long.MAX_VALUE;  // Receive time of the start signal
+                CompletableFuture<Void> flushed = null;
                 long startTime = System.currentTimeMillis();
 
                 // Check for start signal via UDP
                 while (true) {
                     // Check for timeout
                     if ((System.currentTimeMillis() - startTime) > TimeUnit.SECONDS.toMillis(timeout_seconds)) {
-                        if (auto_stop_after_timeout && messageStarted) {
+                        if (auto_stop_after_timeout && messageStarted && listening) {
                             if (verbose) System.out.println("Auto Closed due to Timeout.");
-                            if (onStop != null) onStop.run();
-                        } else {
-                            if (onError != null) onError.accept(new Exception("Timeout reached after " + timeout_seconds + " seconds"));
-                            if (verbose) System.out.println("Error Occurred: Timeout reached.");
+                            if (!capturing && hand_over(started, starting, backend, true)) lifecycle.transition(CaptureLifecycle.State.CAPTURING);
+                            lifecycle.transition(CaptureLifecycle.State.STOPPING);
+                            flushed = stop_backend(backend, backendExecutor);
+                            break;  // Deliver what was captured
                         }
-                        socket.close();
-                        break;  // Ensure to break after timeout or error
+                        if (onError != null) onError.accept(new Exception("Timeout reached after " + timeout_seconds + " seconds"));
+                        if (verbose) System.out.println("Error Occurred: Timeout reached.");
+                        return;
                     }
 
-                    // Receive UDP packet to check for signals
-                    socket.receive(packet);
-                    String message = new String(packet.getData(), 0, packet.getLength());
+                    // The backend has started meanwhile: hand it what arrived while it was starting
+                    if (listening && !capturing && hand_over(started, starting, backend, false)) {
+                        capturing = true;
+                        lifecycle.transition(CaptureLifecycle.State.CAPTURING);
+                    }
+
+                    // Wait for the next UDP packet to check for signals
+                    if (receiveError.get() != null) throw receiveError.get();
+                    if (!ringReader.await(TimeUnit.MILLISECONDS.toNanos(RECEIVE_POLL_MILLIS))) continue;
+                    ByteBuffer packet = ringReader.data();
 
                     // Start signal detection
-                    if (!listening && start_signal != null && message.equals(start_signal)) {
+                    if (!listening && Bytes.matches_signal(packet, startBytes)) {
+                        triggerNanos = ringReader.timestamp();
+                        ringReader.advance();
                         listening = true;
-                        if (verbose) System.out.println("Start Signal Received. Starting tshark capture...");
+                        if (verbose) System.out.println("Start Signal Received. Starting " + backend.get_name() + " capture...");
 
-                        // Start tshark capture
-                        String tsharkCommand = isWindows ? String.format("tshark -i 1 -f \"host %s and port %d\" -w %s", host, port, outputFilePath) : String.format("echo 'semicolon' | sudo tshark -i lo -f \"host %s and port %d\" -w %s", host, port, outputFilePath);
-                        ProcessBuilder processBuilder = isWindows ? new ProcessBuilder("powershell.exe", "/c", tsharkCommand) : new ProcessBuilder("bash", "-c", tsharkCommand);;
+                        // Start the capture; until it is attached the lookback keeps the datagrams
+                        if (lookback != null) lookback.mark_trigger(PcapWriter.now_nanos());
+                        backend.set_start_signal(startBytes);
+                        started = CompletableFuture.runAsync(() -> {
+                            try {
+                                backend.start(host, port, outputFilePath);
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        }, backendExecutor);
+                        if (followListener != null) {
+                            follower = new CaptureFollower(Paths.get(outputFilePath));
+                            following = follow_capture(follower, port);
+                        }
+                        continue;  // Continue listening for data
+                    }
 
-                        processBuilder.redirectErrorStream(true);  // Combine stdout and stderr
+                    boolean stopSignal = Bytes.matches_signal(packet, stopBytes);
+                    boolean hasData = packet.hasRemaining();
 
-                        tsharkProcess = processBuilder.start();
-                        BufferedReader pidReader = new BufferedReader(new InputStreamReader(tsharkProcess.getInputStream()));
-                        long pid = tsharkProcess.pid();  // Capture the process ID
-                        if (verbose) System.out.println("tshark process started with PID: " + pid);
-                        continue;  // Continue listening for data
+                    // Armed mode: remember datagrams before the trigger and until the backend is attached
+                    if (lookback != null && !stopSignal && !backend.is_attached()) {
+                        lookback.add(packet, ringReader.src_ip(), ringReader.src_port(), ringReader.timestamp());
                     }
+                    if (capturing) {
+                        backend.on_datagram(packet, ringReader.src_ip(), ringReader.src_port(), ringReader.timestamp());
+                    } else if (listening) {
+                        byte[] payload = new byte[packet.remaining()];
+                        packet.duplicate().get(payload);
+                        starting.add(new CapturedPacket(starting.size(), ringReader.timestamp(), ringReader.src_ip(), ringReader.src_port(), 0, port, payload));
+                    }
+                    ringReader.advance();
 
                     // Message handling
-                    if (!message.isEmpty()) {
+                    if (hasData) {
                         messageStarted = true;
                         if (verbose) System.out.println("Message Started.");
                     }
 
                     // Stop signal detection
-                    if (stop_signal != null && message.equals(stop_signal)) {
-                        if (verbose) System.out.println("Stop Signal Received. Stopping tshark...");
-
-                        // Kill the tshark process
-                        if (tsharkProcess != null && tsharkProcess.isAlive()) {
-                            String killCommand = isWindows ? String.format("taskkill /PID %d /F", tsharkProcess.pid()) : String.format("echo 'semicolon' | sudo kill %d", tsharkProcess.pid());
-                            new ProcessBuilder("bash", "-c", killCommand).start();
-                        }
+                    if (stopSignal) {
+                        if (verbose) System.out.println("Stop Signal Received. Stopping " + backend.get_name() + "...");
+                        if (listening && !capturing && hand_over(started, starting, backend, true)) lifecycle.transition(CaptureLifecycle.State.CAPTURING);
+                        lifecycle.transition(CaptureLifecycle.State.STOPPING);
+                        flushed = stop_backend(backend, backendExecutor);
+                        stopped = true;
                         break;  // Ensure to break after receiving the stop signal
                     }
                 }
+                receiving.set(false);
+                if (verbose && ring.get_dropped() > 0) System.out.println("Ring buffer full, dropped " + ring.get_dropped() + " datagrams.");
 
-                // Continuously check if the process is still alive
-                while (tsharkProcess.isAlive()) {
-                    if (verbose) {
-                        System.out.println("Waiting for tshark process to terminate...");
-                    }
+                // Wait for the backend to report the capture complete, then read the payloads back, leaving out the stop signal
+                flushed.get(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                lifecycle.transition(CaptureLifecycle.State.FLUSHED);
+
+                // The file is complete: let the follower read the rest (a failed follower is reported, but does not fail the capture)
+                if (follower != null) {
+                    follower.stop();
                     try {
-                        Thread.sleep(10);  // Check every 500 milliseconds (adjust as needed)
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        if (verbose) {
-                            System.out.println("Sleep interrupted: " + e.getMessage());
-                        }
+                        long followed = following.get(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                        if (verbose) System.out.println("Followed " + followed + " packets while capturing.");
+                    } catch (ExecutionException e) {
+                        if (onError != null) onError.accept(new IOException("Following " + outputFilePath + " failed: " + e.getCause().getMessage(), e.getCause()));
+                        if (verbose) System.out.println("Following " + outputFilePath + " failed: " + e.getCause().getMessage());
+                    } catch (TimeoutException e) {
+                        if (onError != null) onError.accept(new IOException("Follow listener still busy after " + FLUSH_TIMEOUT_SECONDS + " s, the rest of " + outputFilePath + " was not followed"));
+                        if (verbose) System.out.println("Follow listener still busy after " + FLUSH_TIMEOUT_SECONDS + " s, no longer following " + outputFilePath + ".");
+                        follower.close();
                     }
                 }
-
-                // Wait for file creation
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    if (verbose) {
-                        System.out.println("Sleep interrupted: " + e.getMessage());
-                    }
+                for (String payload : backend.read_payloads()) {
+                    if (!payload.equals(stop_signal)) results.add(payload);
                 }
+                lifecycle.transition(CaptureLifecycle.State.DECODED);
 
+                // The capture process lost datagrams the socket saw: the results below are incomplete
+                long missing = backend.get_missing_packets();
+                if (missing > 0 && onError != null) onError.accept(new IOException(backend.get_name() + " missed " + missing + " datagrams seen by the socket; the results are incomplete"));
+                boolean packetReceived = !results.isEmpty();  // Track if any packet data was received
 
-                // Command to parse hex data and convert it to ASCII using echo and xxd directly from tshark output
-                String tsharkReadCommand = isWindows ? String.format("tshark -r %s -Y \"udp\" -T fields -e data", outputFilePath) : String.format("echo 'semicolon' | sudo tshark -r %s -Y \"udp\" -T fields -e data", outputFilePath);
-
-                ProcessBuilder readProcessBuilder = new ProcessBuilder("bash", "-c", tsharkReadCommand);
-
-                // Start the tshark process
-                Process readProcess = readProcessBuilder.start();
-
-                // Read the output from tshark directly
-                BufferedReader reader = new BufferedReader(new InputStreamReader(readProcess.getInputStream()));
-                String line;
-                boolean packetReceived = false;  // Track if any packet data was received
-
-                // Read each line from the tshark output
-                while ((line = reader.readLine()) != null) {
-                    packetReceived = true;  // Set to true if we actually get data
-
-                    // Convert hex to ASCII
-                    StringBuilder output = new StringBuilder();
-                    for (int i = 0; i < line.length(); i += 2) {
-                        String str = line.substring(i, i + 2);
-                        output.append((char) Integer.parseInt(str, 16));
-                    }
-
-                    // Skip 'STOP' signal from tshark output
-                    if (!output.toString().equals(stop_signal)) {
-                        results.add(output.toString());  // Add each packet as a separate result
-                    }
+                // Armed mode: put back what arrived before the backend captured its first packet
+                if (lookback != null) {
+                    List<CapturedPacket> recovered = new ArrayList<>();
+                    int hostIp = PcapWriter.ipv4_to_int(InetAddress.getByName(host).getAddress());
+                    lookback.flush(PcapWriter.now_nanos(), (data, src_ip, src_port, timestamp_nanos) -> {
+                        if (captureFilter != null && !captureFilter.test_payload(src_ip, src_port, hostIp, port, data)) return;
+                        if (!data.hasRemaining()) return;
+                        byte[] payload = new byte[data.remaining()];
+                        data.get(payload);
+                        recovered.add(new CapturedPacket(recovered.size(), timestamp_nanos, src_ip, src_port, hostIp, port, payload));
+                    });
+                    int added = merge_recovered(recovered, triggerNanos, results);
+                    if (added > 0) packetReceived = true;
+                    if (verbose && added > 0) System.out.println("Recovered " + added + " packets from the pre-trigger buffer.");
                 }
 
                 // Check if no packets were received
@@ -179,37 +486,35 @@ public class CaptureUDP {
                     if (start_signal != null) {
                         results.add(0, start_signal);  // Prepend start signal
                     }
-                    if (stop_signal != null) {
+                    if (stop_signal != null && stopped) {
                         results.add(stop_signal);  // Append stop signal
                     }
                 }
 
                 if (onDataReceived != null) onDataReceived.accept(results);  // Pass the results list to onDataReceived
 
-
-                // Check the exit code of the process
-                int readExitCode = readProcess.waitFor();
-                if (readExitCode == 0) {
-                    if (verbose) System.out.println("Hex to ASCII conversion completed successfully.");
-                } else {
-                    if (verbose) System.err.println("Error occurred while parsing the captured file.");
-                }
-
                 if (onStop != null) onStop.run();
+                if (payloadIndex != null) payloadIndex.submit(Paths.get(outputFilePath));
 
             } catch (Exception e) {
-                if (onError != null) onError.accept(e);
-                if (verbose) System.out.println("Error Occurred: " + e.getMessage());
+                Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                if (onError != null) onError.accept(cause instanceof Exception ? (Exception) cause : e);
+                if (verbose) System.out.println("Error Occurred: " + cause.getMessage());
             } finally {
-                if (tsharkProcess != null && tsharkProcess.isAlive()) {
+                receiving.set(false);
+                if (ringUsers.decrementAndGet() == 0) release_ring(ring);
+                backendExecutor.execute(backend::abort);  // After a start or stop that is still running
+                backendExecutor.shutdown();
+                if (follower != null) {
                     try {
-                        String killCommand = isWindows ? String.format("taskkill /PID %d /F", tsharkProcess.pid()) : String.format("echo 'semicolon' | sudo kill %d", tsharkProcess.pid());
-
-                        new ProcessBuilder("bash", "-c", killCommand).start();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                        follower.close();
+                    } catch (IOException ignored) {
+                        // Only the follower's view of the file
                     }
                 }
+                lifecycle.transition(CaptureLifecycle.State.DONE);
+                if (verbose) System.out.println("Capture lifecycle: " + lifecycle);
+                if (lifecycleListener != null) lifecycleListener.accept(lifecycle);
                 executorService.shutdown();  // Ensure executor shuts down
             }
         });
@@ -217,6 +522,63 @@ public class CaptureUDP {
 
 
 
+    /**
+     * Ring for a capture whose socket buffer holds socket_buffer_bytes: one slot per datagram it can
+     * queue (see BufferPool.capacity_for), rounded down to a power of two. The ring of an earlier
+     * capture is reused when it is large enough, so a capture allocates nothing in steady use.
+     */
+    private synchronized RingBuffer capture_ring(int socket_buffer_bytes) {
+        int capacity = Integer.highestOneBit(BufferPool.capacity_for(socket_buffer_bytes));
+        RingBuffer ring = spareRing;
+        spareRing = null;
+        if (ring == null || ring.get_capacity() < capacity) return new RingBuffer(capacity, RING_SLOT_SIZE);
+        ring.reset();
+        return ring;
+    }
+
+    // Keep the ring of a capture that ended for the next one, unless a larger one is kept already
+    private synchronized void release_ring(RingBuffer ring) {
+        if (spareRing == null || spareRing.get_capacity() < ring.get_capacity()) spareRing = ring;
+    }
+
+    /**
+     * Once the backend has started (waiting for it if wait), hand it the datagrams that arrived
+     * while it was starting. Returns false while it is still starting; throws what start threw.
+     */
+    private static boolean hand_over(CompletableFuture<Void> started, List<CapturedPacket> starting, CaptureBackend backend, boolean wait) throws Exception {
+        if (!wait && !started.isDone()) return false;
+        started.get();
+        for (CapturedPacket packet : starting) {
+            backend.on_datagram(ByteBuffer.wrap(packet.get_payload()), packet.get_src_ip(), packet.get_src_port(), packet.get_timestamp_nanos());
+        }
+        starting.clear();
+        return true;
+    }
+
+    // Stop the backend on its own thread; completes once the capture file is complete
+    private static CompletableFuture<Void> stop_backend(CaptureBackend backend, ExecutorService backendExecutor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return backend.stop();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, backendExecutor).thenCompose(flushed -> flushed);
+    }
+
+    // Give the follow listener every datagram to or from port (reassembled) as it reaches the capture file
+    private CompletableFuture<Long> follow_capture(CaptureFollower follower, int port) {
+        Consumer<CapturedPacket> listener = followListener;
+        follower.set_filter(CaptureProcessPool.port_filter(port, captureFilter));
+        follower.set_reassembler(new FragmentReassembler());
+        return follower.follow_async(reader -> {
+            ByteBuffer data = reader.udp_payload();
+            byte[] payload = new byte[data.remaining()];
+            data.get(payload);
+            listener.accept(new CapturedPacket(reader.packet_index(), reader.timestamp_nanos(), reader.src_ip(), reader.src_port(), reader.dst_ip(), reader.dst_port(), payload));
+        });
+    }
+
     // Overloaded method 1: auto_stop_after_timeout default to true
     public void listen_and_capture_udp(String host, int port, Consumer<List<String>> onDataReceived, Consumer<Exception> onError, Runnable onStop, String start_signal, String stop_signal, int timeout_seconds, boolean include_signals_in_message, boolean verbose ) {
         listen_and_capture_udp(host, port, onDataReceived, onError, onStop, start_signal, stop_signal, timeout_seconds, true, include_signals_in_message, verbose);
@@ -278,6 +640,350 @@ public class CaptureUDP {
     }
 
 
+    /**
+     * Same contract as listen_and_capture_udp, but captures inside the JVM.
+     * Every datagram received by the socket after the start signal is written straight
+     * into a libpcap file (synthetic Ethernet/IPv4/UDP headers, nanosecond timestamps),
+     * so no tshark process, no sudo and no second read of the file are needed.
+     */
+    public void listen_and_capture_udp_in_process(
+        String host,
+        int port,
+        Consumer<List<String>> onDataReceived,
+        Consumer<Exception> onError,
+        Runnable onStop,
+        String start_signal,
+        String stop_signal,
+        int timeout_seconds,
+        boolean auto_stop_after_timeout,
+        boolean include_signals_in_message,
+        boolean verbose
+    ) {
+        CaptureSession session = new CaptureSession(
+            host, port, onDataReceived, onError, onStop, start_signal, stop_signal,
+            timeout_seconds, auto_stop_after_timeout, include_signals_in_message, verbose,
+            in_process_output_path(port, "")
+        );
+        run_in_process(session, host, port, verbose);
+    }
+
+    /**
+     * Armed mode: keep the datagrams of the last pre_trigger_millis (at most pre_trigger_max_packets
+     * and pre_trigger_max_bytes) before the start signal, and flush them into the capture when it fires.
+     * listen_and_capture_udp also keeps the datagrams that arrive while tshark is still attaching.
+     * A window of 0 disables it.
+     */
+    public void set_pre_trigger(long pre_trigger_millis, int pre_trigger_max_packets, int pre_trigger_max_bytes) {
+        this.preTriggerMillis = pre_trigger_millis;
+        this.preTriggerMaxPackets = pre_trigger_max_packets;
+        this.preTriggerMaxBytes = pre_trigger_max_bytes;
+    }
+
+    // Overloaded: time window only, default size limits
+    public void set_pre_trigger(long pre_trigger_millis) {
+        set_pre_trigger(pre_trigger_millis, 1024, 1 << 20);
+    }
+
+    private LookbackBuffer new_pre_trigger() {
+        if (preTriggerMillis <= 0) return null;
+        return new LookbackBuffer(preTriggerMaxPackets, preTriggerMaxBytes, TimeUnit.MILLISECONDS.toNanos(preTriggerMillis));
+    }
+
+    /**
+     * Expected sender rate, e.g. the rateOfTransmission of an XML test case ("10gb/s").
+     * SO_RCVBUF is then sized to absorb RECEIVE_BUFFER_HEADROOM_MILLIS of traffic at that rate.
+     */
+    public void set_expected_rate(String rate) {
+        this.expectedRateBits = TransmissionRate.parse_bits_per_second(rate);
+    }
+
+    // Overloaded: value and unit attribute, e.g. ("10", "gb/s")
+    public void set_expected_rate(String rate, String unit) {
+        this.expectedRateBits = TransmissionRate.parse_bits_per_second(rate, unit);
+    }
+
+    // Explicit SO_RCVBUF in bytes, takes precedence over the expected rate (0: back to the rate or the default)
+    public void set_receive_buffer_size(int receive_buffer_size) { this.receiveBufferSize = receive_buffer_size; }
+
+    public int get_receive_buffer_size() {
+        if (receiveBufferSize > 0) return receiveBufferSize;
+        if (expectedRateBits > 0) return TransmissionRate.receive_buffer_size(expectedRateBits, RECEIVE_BUFFER_HEADROOM_MILLIS);
+        return 0;
+    }
+
+    // Apply the configured SO_RCVBUF; returns the size granted, 0 when the default is kept
+    private int tune_receive_buffer(DatagramReceiver receiver, boolean verbose) throws IOException {
+        int requested = get_receive_buffer_size();
+        if (requested <= 0) return 0;
+        int granted = receiver.set_receive_buffer_size(requested);
+        int max = TransmissionRate.max_receive_buffer_size();
+        if (verbose) System.out.println("SO_RCVBUF asked " + requested + " bytes, granted " + granted + ".");
+        if (verbose && max > 0 && requested > max) {
+            System.out.println("SO_RCVBUF is capped by net.core.rmem_max (" + max + "); raise it with: sysctl -w net.core.rmem_max=" + requested);
+        }
+        return granted;
+    }
+
+    /**
+     * Prepend the recovered datagrams the backend did not capture. Those received before the start
+     * signal (trigger_nanos, same receive clock) never reach the backend. Of the later ones, the
+     * longest run at the end that the backend's results begin with was captured by the backend as
+     * well; the ones before it were missed. The capture file is not needed, so this also holds for
+     * files the JVM cannot read.
+     */
+    private static int merge_recovered(List<CapturedPacket> recovered, long trigger_nanos, List<String> results) {
+        int afterTrigger = 0;
+        while (afterTrigger < recovered.size() && recovered.get(afterTrigger).get_timestamp_nanos() < trigger_nanos) afterTrigger++;
+
+        // Recovered datagrams are never empty: compare with the non-empty results only
+        List<String> captured = new ArrayList<>();
+        for (String payload : results) {
+            if (captured.size() == recovered.size() - afterTrigger) break;
+            if (!payload.isEmpty()) captured.add(payload);
+        }
+        int overlap = captured.size();
+        while (overlap > 0 && !overlaps(recovered, overlap, captured)) overlap--;
+
+        int missed = recovered.size() - overlap;
+        for (int i = 0; i < missed; i++) results.add(i, recovered.get(i).get_text());
+        return missed;
+    }
+
+    // The last length recovered payloads are the first length captured ones
+    private static boolean overlaps(List<CapturedPacket> recovered, int length, List<String> captured) {
+        int start = recovered.size() - length;
+        for (int i = 0; i < length; i++) {
+            if (!recovered.get(start + i).get_text().equals(captured.get(i))) return false;
+        }
+        return true;
+    }
+
+    // Receive buffers for a socket buffer of the given size, shared by the captures of this instance; replaced by a larger pool when one needs more
+    private synchronized BufferPool receive_pool(int socket_buffer_bytes) {
+        int capacity = BufferPool.capacity_for(socket_buffer_bytes);
+        if (receivePool == null || receivePool.get_capacity() < capacity) receivePool = new BufferPool(capacity);
+        return receivePool;
+    }
+
+    // Receive loop shared by the in-process capture and the streaming variants
+    private void run_in_process(CaptureSession session, String host, int port, boolean verbose) {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        executorService.submit(() -> {
+            ByteBuffer[] batch = new ByteBuffer[RECEIVE_BATCH_SIZE];
+            int[] srcIps = new int[RECEIVE_BATCH_SIZE];
+            int[] srcPorts = new int[RECEIVE_BATCH_SIZE];
+            long[] arrivals = new long[RECEIVE_BATCH_SIZE];
+
+            try (DatagramReceiver receiver = DatagramReceiver.open(receiveEngine, host, port)) {
+                int granted = tune_receive_buffer(receiver, verbose);
+                BufferPool pool = receive_pool(receiver.get_receive_buffer_size());
+                ByteBuffer scratch = ByteBuffer.allocateDirect(pool.get_buffer_size());  // Used when every pooled buffer is held
+                session.monitor_drops(new UdpDropMonitor(receiver.get_local_ip(), receiver.get_local_port()), get_receive_buffer_size(), granted);
+                if (statsListener != null) session.set_stats_listener(statsListener);
+                session.set_pre_trigger(new_pre_trigger());
+                session.set_rotation(rotateBytes, TimeUnit.SECONDS.toNanos(rotateSeconds), rotateFiles, closed_file_listener());
+                session.set_filter(captureFilter);
+                session.open(receiver.get_local_ip(), pool, pool.get_capacity() / 2);  // The other half for concurrent captures
+                if (verbose) System.out.println("Receiving with the '" + (receiveEngine == null ? "socket" : receiveEngine) + "' engine.");
+
+                boolean stopped = false;
+                while (!stopped) {
+                    if (session.stop_requested()) {
+                        session.finish();
+                        break;
+                    }
+                    session.sample_drops(false);
+
+                    // Check for timeout
+                    long remaining = session.remaining_millis();
+                    if (remaining <= 0) {
+                        session.time_out();
+                        break;
+                    }
+
+                    // Lease a batch of buffers; with the pool drained, receive one datagram into the scratch buffer
+                    int count = 0;
+                    while (count < batch.length && (batch[count] = pool.lease()) != null) count++;
+                    boolean leased = count > 0;
+                    if (!leased) {
+                        batch[0] = scratch.clear();
+                        count = 1;
+                    }
+
+                    // Wait for datagrams, but never past the timeout; wake up regularly to see stop requests
+                    int received = receiver.receive_batch(batch, count, srcIps, srcPorts, arrivals, Math.min(remaining, RECEIVE_POLL_MILLIS));
+
+                    for (int i = 0; i < count; i++) {
+                        if (i < received && !stopped) {
+                            stopped = session.on_datagram(batch[i], leased, srcIps[i], srcPorts[i], arrivals[i]);
+                        } else if (leased) {
+                            pool.release(batch[i]);
+                        }
+                    }
+                }
+                if (stopped) session.finish();
+
+            } catch (Exception e) {
+                session.fail(e);
+            } finally {
+                executorService.shutdown();  // Ensure executor shuts down
+            }
+        });
+    }
+
+    // Overloaded in-process method 1: With start_signal and stop_signal (All Callbacks)
+    public void listen_and_capture_udp_in_process(String host, int port, Consumer<List<String>> onDataReceived, Consumer<Exception> onError, Runnable onStop, String start_signal, String stop_signal ) {
+        listen_and_capture_udp_in_process(host, port, onDataReceived, onError, onStop, start_signal, stop_signal, 30, true, false, false);
+    }
+
+    // Overloaded in-process method 2: With start_signal, stop_signal, and verbose option (No onStop callback)
+    public void listen_and_capture_udp_in_process(String host, int port, Consumer<List<String>> onDataReceived, Consumer<Exception> onError, String start_signal, String stop_signal, boolean verbose ) {
+        listen_and_capture_udp_in_process(host, port, onDataReceived, onError, null, start_signal, stop_signal, 30, true, false, verbose);
+    }
+
+
+
+    /**
+     * Continuous variant of the in-process capture: one socket, one receive thread and one pcap file
+     * serve every START/STOP window the sender emits. Each window is handed to onWindow with its own
+     * sequence number and the session re-arms right away. The session ends after idle_timeout_seconds
+     * without any datagram (0 or less: never) or when the returned handle is run; onStop is called then.
+     */
+    public Runnable listen_and_capture_udp_continuous(
+        String host,
+        int port,
+        Consumer<CaptureWindow> onWindow,
+        Consumer<Exception> onError,
+        Runnable onStop,
+        String start_signal,
+        String stop_signal,
+        int idle_timeout_seconds,
+        boolean include_signals_in_message,
+        boolean verbose
+    ) {
+        CaptureSession session = new CaptureSession(
+            host, port, null, onError, onStop, start_signal, stop_signal,
+            idle_timeout_seconds, true, include_signals_in_message, verbose,
+            in_process_output_path(port, "_continuous")
+        );
+        session.set_continuous(onWindow);
+        run_in_process(session, host, port, verbose);
+        return session::request_stop;
+    }
+
+    // Overloaded continuous method 1: no idle timeout, signals left out, quiet
+    public Runnable listen_and_capture_udp_continuous(String host, int port, Consumer<CaptureWindow> onWindow, Consumer<Exception> onError, String start_signal, String stop_signal) {
+        return listen_and_capture_udp_continuous(host, port, onWindow, onError, null, start_signal, stop_signal, 0, false, false);
+    }
+
+
+    /**
+     * Per-packet variant of the in-process capture: onMessage gets every message between the
+     * start and stop signals as soon as it arrives, nothing is accumulated.
+     * onMessage runs in capture order on a delivery thread of its own, so a slow consumer (a
+     * database insert) never holds up the receive loop. Up to STREAM_BUFFER_CAPACITY messages wait
+     * for it; messages beyond that are dropped and reported through onError. onStop runs once the
+     * last message has been delivered.
+     * e.g. udpCapture.listen_and_capture_udp_per_packet(host, port, udpCapture::save_message_to_db, ...)
+     */
+    public void listen_and_capture_udp_per_packet(
+        String host,
+        int port,
+        Consumer<String> onMessage,
+        Consumer<Exception> onError,
+        Runnable onStop,
+        String start_signal,
+        String stop_signal,
+        int timeout_seconds,
+        boolean verbose
+    ) {
+        ExecutorService deliveryExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "capture-delivery-" + port);
+            thread.setDaemon(true);
+            return thread;
+        });
+        SubmissionPublisher<CapturedPacket> publisher = new SubmissionPublisher<>(deliveryExecutor, STREAM_BUFFER_CAPACITY);
+        AtomicLong dropped = new AtomicLong();
+
+        // Completes once every message offered before the stop has been delivered, or with the capture error
+        publisher.consume(packet -> onMessage.accept(packet.get_text())).whenComplete((ignored, error) -> {
+            deliveryExecutor.shutdown();
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (onError != null) onError.accept(cause instanceof Exception ? (Exception) cause : new Exception(cause));
+                return;
+            }
+            if (dropped.get() > 0 && onError != null) {
+                onError.accept(new IOException("onMessage fell behind, dropped " + dropped.get() + " messages"));
+            }
+            if (onStop != null) onStop.run();
+        });
+
+        CaptureSession session = new CaptureSession(
+            host, port, null,
+            error -> publisher.closeExceptionally(error),
+            publisher::close,
+            start_signal, stop_signal, timeout_seconds, true, false, verbose,
+            in_process_output_path(port, "")
+        );
+        session.stream_packets(packet -> publisher.offer(packet, (subscriber, item) -> {
+            dropped.incrementAndGet();
+            return false;  // Never wait for a slow consumer
+        }), false);
+        run_in_process(session, host, port, verbose);
+    }
+
+    // Overloaded per-packet method 1: With start_signal and stop_signal (No onStop Callback)
+    public void listen_and_capture_udp_per_packet(String host, int port, Consumer<String> onMessage, Consumer<Exception> onError, String start_signal, String stop_signal) {
+        listen_and_capture_udp_per_packet(host, port, onMessage, onError, null, start_signal, stop_signal, 30, false);
+    }
+
+
+    /**
+     * Streaming variant of the in-process capture as a Flow.Publisher.
+     * Capture starts with the first subscription; each subscriber receives packets as they arrive,
+     * paced by its own request(n) demand. Packets beyond a subscriber's buffer are dropped rather than
+     * stalling the receive loop. The stream completes on the stop signal (or auto stop after timeout)
+     * and fails with the capture error otherwise.
+     */
+    public Flow.Publisher<CapturedPacket> stream_udp(
+        String host,
+        int port,
+        String start_signal,
+        String stop_signal,
+        int timeout_seconds,
+        boolean verbose
+    ) {
+        SubmissionPublisher<CapturedPacket> publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), STREAM_BUFFER_CAPACITY);
+        AtomicBoolean started = new AtomicBoolean(false);
+        AtomicLong dropped = new AtomicLong();
+
+        CaptureSession session = new CaptureSession(
+            host, port, null,
+            error -> publisher.closeExceptionally(error),
+            () -> {
+                if (verbose && dropped.get() > 0) System.out.println("Stream dropped " + dropped.get() + " packets for slow subscribers.");
+                publisher.close();
+            },
+            start_signal, stop_signal, timeout_seconds, true, false, verbose,
+            in_process_output_path(port, "")
+        );
+        session.stream_packets(packet -> publisher.offer(packet, (subscriber, item) -> {
+            dropped.incrementAndGet();
+            return false;  // Never wait for a slow subscriber
+        }), false);
+
+        return subscriber -> {
+            publisher.subscribe(subscriber);
+            if (started.compareAndSet(false, true)) run_in_process(session, host, port, verbose);
+        };
+    }
+
+    // Overloaded stream method 1: default timeout, quiet
+    public Flow.Publisher<CapturedPacket> stream_udp(String host, int port, String start_signal, String stop_signal) {
+        return stream_udp(host, port, start_signal, stop_signal, 30, false);
+    }
+
     // Method to save the message to the PostgreSQL database
     public void save_message_to_db(String packetData) {
         Connection conn = null;
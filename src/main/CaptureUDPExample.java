@@ -69,8 +69,8 @@ public class CaptureUDPExample extends Application {
             true
         );
 
-        // // Save to DB
-        // udpCapture.listen_and_capture_udp(
+        // // Save to DB, one message at a time as they arrive
+        // udpCapture.listen_and_capture_udp_per_packet(
         //     "127.0.0.1", 5555, 
         //     message -> udpCapture.save_message_to_db(message),  // Save to DB
         //     error -> System.err.println("Error: " + error.getMessage()),
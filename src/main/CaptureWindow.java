@@ -0,0 +1,52 @@
+package main;
+
+import java.util.List;
+
+
+/**
+ * One START/STOP window of a continuous capture.
+ */
+public class CaptureWindow {
+
+    private final long sequence;
+    private final List<String> messages;
+    private final long startNanos;
+    private final long stopNanos;
+    private final long firstPacket;
+    private final long packetCount;
+    private final boolean complete;
+
+    public CaptureWindow(long sequence, List<String> messages, long start_nanos, long stop_nanos, long first_packet, long packet_count, boolean complete) {
+        this.sequence = sequence;
+        this.messages = messages;
+        this.startNanos = start_nanos;
+        this.stopNanos = stop_nanos;
+        this.firstPacket = first_packet;
+        this.packetCount = packet_count;
+        this.complete = complete;
+    }
+
+    // Window number within the session, starting at 0
+    public long get_sequence() { return sequence; }
+
+    // Messages of the window, same shape as the onDataReceived results
+    public List<String> get_messages() { return messages; }
+
+    // Start and stop signal arrival times, nanoseconds since the epoch
+    public long get_start_nanos() { return startNanos; }
+
+    public long get_stop_nanos() { return stopNanos; }
+
+    // Packet numbers of the window in the session's pcap file (0 based)
+    public long get_first_packet() { return firstPacket; }
+
+    public long get_packet_count() { return packetCount; }
+
+    // False when the session ended before the stop signal of this window
+    public boolean is_complete() { return complete; }
+
+    @Override
+    public String toString() {
+        return "Window #" + sequence + " (" + messages.size() + " messages, " + (stopNanos - startNanos) / 1000 + " us" + (complete ? "" : ", incomplete") + ")";
+    }
+}
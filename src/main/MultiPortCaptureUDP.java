@@ -0,0 +1,274 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lib.BufferPool;
+import lib.PcapWriter;
+import lib.UdpDropMonitor;
+
+
+/**
+ * Watches many UDP ports from a few threads.
+ * Each (host, port) registration gets a non-blocking DatagramChannel and its own
+ * CaptureSession (START/STOP state machine, pcap file and result callbacks), while
+ * one Selector per loop thread serves all the channels assigned to it.
+ */
+public class MultiPortCaptureUDP {
+
+    // Datagrams read from one channel before moving on to the next ready one
+    private static final int MAX_BURST = 64;
+
+    // How many receive buffers one session may hold
+    private static final int MAX_RETAINED_PER_SESSION = 64;
+
+    private final SelectorLoop[] loops;
+    private BufferPool sharedPool = null;  // Receive buffers of all selector threads
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final boolean verbose;
+
+    public MultiPortCaptureUDP(int threads, boolean verbose) throws IOException {
+        this.verbose = verbose;
+        loops = new SelectorLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(i);
+            loops[i].start();
+        }
+    }
+
+    // Overloaded constructor: single selector thread, quiet
+    public MultiPortCaptureUDP() throws IOException {
+        this(1, false);
+    }
+
+
+    /**
+     * Register one (host, port) to be captured.
+     * Parameters mirror CaptureUDP.listen_and_capture_udp; callbacks run on the selector thread.
+     */
+    public void listen_and_capture_udp(
+        String host,
+        int port,
+        Consumer<List<String>> onDataReceived,
+        Consumer<Exception> onError,
+        Runnable onStop,
+        String start_signal,
+        String stop_signal,
+        int timeout_seconds,
+        boolean auto_stop_after_timeout,
+        boolean include_signals_in_message
+    ) {
+        CaptureSession session = new CaptureSession(
+            host, port, onDataReceived, onError, onStop, start_signal, stop_signal,
+            timeout_seconds, auto_stop_after_timeout, include_signals_in_message, verbose,
+            CaptureSession.default_output_path("_" + port)
+        );
+        SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        loop.pending.add(session);
+        loop.selector.wakeup();
+    }
+
+    // Overloaded method 1: With start_signal and stop_signal (All Callbacks)
+    public void listen_and_capture_udp(String host, int port, Consumer<List<String>> onDataReceived, Consumer<Exception> onError, Runnable onStop, String start_signal, String stop_signal) {
+        listen_and_capture_udp(host, port, onDataReceived, onError, onStop, start_signal, stop_signal, 30, true, false);
+    }
+
+    // Overloaded method 2: With start_signal and stop_signal (No onStop Callback)
+    public void listen_and_capture_udp(String host, int port, Consumer<List<String>> onDataReceived, Consumer<Exception> onError, String start_signal, String stop_signal) {
+        listen_and_capture_udp(host, port, onDataReceived, onError, null, start_signal, stop_signal, 30, true, false);
+    }
+
+
+    /**
+     * Number of registrations that are still capturing.
+     */
+    public int active_sessions() {
+        int count = 0;
+        for (SelectorLoop loop : loops) count += loop.active.get();
+        return count;
+    }
+
+    /**
+     * Stop all selector threads. Sessions that are still open are failed.
+     */
+    public void shutdown() {
+        for (SelectorLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+
+    // Receive buffers of all selector threads, created for the socket buffer size of the first channel
+    private synchronized BufferPool shared_pool(int socket_buffer_bytes) {
+        if (sharedPool == null) sharedPool = new BufferPool(BufferPool.capacity_for(socket_buffer_bytes));
+        return sharedPool;
+    }
+
+    // One selector and the thread that drives it
+    private class SelectorLoop extends Thread {
+
+        final Selector selector;
+        final Queue<CaptureSession> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger active = new AtomicInteger();
+        BufferPool pool = null;  // The shared pool, once a channel is registered
+        final ByteBuffer scratch = ByteBuffer.allocateDirect(65535);  // Used when every pooled buffer is held
+        SocketAddress lastSender = null;
+        int lastSenderIp = 0;
+        int lastSenderPort = 0;
+        volatile boolean running = true;
+
+        SelectorLoop(int index) throws IOException {
+            super("udp-selector-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    register_pending();
+                    selector.select(next_deadline_millis());
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) drain(key);
+                    }
+
+                    expire_timed_out();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (verbose) System.out.println("Error Occurred: " + e.getMessage());
+            } finally {
+                close_all();
+            }
+        }
+
+        private void register_pending() {
+            CaptureSession session;
+            while ((session = pending.poll()) != null) {
+                DatagramChannel channel = null;
+                try {
+                    channel = DatagramChannel.open();
+                    channel.configureBlocking(false);
+                    channel.bind(new InetSocketAddress(session.get_host(), session.get_port()));
+                    InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+                    int localIp = PcapWriter.ipv4_to_int(local.getAddress().getAddress());
+                    if (pool == null) pool = shared_pool(channel.getOption(StandardSocketOptions.SO_RCVBUF));
+                    session.monitor_drops(new UdpDropMonitor(localIp, local.getPort()), 0, 0);
+                    session.open(localIp, pool, MAX_RETAINED_PER_SESSION);
+                    channel.register(selector, SelectionKey.OP_READ, session);
+                    active.incrementAndGet();
+                    if (verbose) System.out.println("Listening on " + session.get_host() + ":" + session.get_port());
+                } catch (IOException e) {
+                    close_quietly(channel);
+                    session.fail(e);
+                }
+            }
+        }
+
+        // Read the queued datagrams of a ready channel, a bounded burst at a time so one hot port cannot starve the others
+        private void drain(SelectionKey key) {
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            CaptureSession session = (CaptureSession) key.attachment();
+            try {
+                for (int i = 0; i < MAX_BURST; i++) {
+                    ByteBuffer buffer = pool.lease();
+                    boolean leased = buffer != null;
+                    if (!leased) buffer = scratch.clear();
+
+                    SocketAddress source = channel.receive(buffer);
+                    if (source == null) {
+                        if (leased) pool.release(buffer);
+                        return;
+                    }
+                    long packetTime = PcapWriter.now_nanos();
+                    buffer.flip();
+
+                    if (source != lastSender) {
+                        InetSocketAddress sender = (InetSocketAddress) source;
+                        lastSender = source;
+                        lastSenderIp = PcapWriter.ipv4_to_int(sender.getAddress().getAddress());
+                        lastSenderPort = sender.getPort();
+                    }
+                    if (session.on_datagram(buffer, leased, lastSenderIp, lastSenderPort, packetTime)) {
+                        close(key);
+                        session.finish();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close(key);
+                session.fail(e);
+            }
+        }
+
+        private void expire_timed_out() {
+            for (SelectionKey key : selector.keys()) {
+                CaptureSession session = (CaptureSession) key.attachment();
+                if (key.isValid() && session.remaining_millis() <= 0) {
+                    close(key);
+                    session.time_out();
+                }
+            }
+        }
+
+        // Selector timeout: wake up for the closest session deadline
+        private long next_deadline_millis() {
+            long next = Long.MAX_VALUE;
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) next = Math.min(next, ((CaptureSession) key.attachment()).remaining_millis());
+            }
+            return next == Long.MAX_VALUE ? 0 : Math.max(1, next);
+        }
+
+        private void close(SelectionKey key) {
+            ((CaptureSession) key.attachment()).sample_drops(true);  // Last kernel drop count before the socket goes away
+            key.cancel();
+            close_quietly(key.channel());
+            active.decrementAndGet();
+        }
+
+        private void close_all() {
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid()) continue;
+                close(key);
+                ((CaptureSession) key.attachment()).fail(new Exception("Capture shut down"));
+            }
+            CaptureSession session;
+            while ((session = pending.poll()) != null) session.fail(new Exception("Capture shut down"));
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+        }
+
+        private void close_quietly(Channel channel) {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+}
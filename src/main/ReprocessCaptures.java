@@ -0,0 +1,52 @@
+package main;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Consumer;
+
+import lib.CaptureBatch;
+import lib.CaptureBatchReport;
+import lib.CaptureCatalog;
+import lib.PacketFilter;
+
+
+/**
+ * Decodes every capture of a directory in parallel and prints one line per file, in file name
+ * order, followed by the totals and throughput.
+ *
+ *   java -cp . main.ReprocessCaptures [directory] [threads] [filter]
+ *
+ * Defaults: the captures directory, one thread per core, no filter (see PacketFilter). When the
+ * directory has a catalog (captures.catalog), it is refreshed and files with the same content are
+ * decoded once.
+ */
+public class ReprocessCaptures {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "captures");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        PacketFilter filter = args.length > 2 ? PacketFilter.compile(args[2]) : null;
+
+        List<Path> files = CaptureBatch.list_captures(directory);
+        System.out.println("Reprocessing " + files.size() + " captures in " + directory + " with " + threads + " threads");
+        CaptureBatch batch = new CaptureBatch(threads, false);
+        Consumer<CaptureBatch.FileResult<List<String>>> print = result -> {
+            if (result.get_copy_of() >= 0) {
+                System.out.println(String.format("%-50s same as %s", directory.relativize(result.get_file()), directory.relativize(files.get(result.get_copy_of()))));
+            } else if (result.failed()) {
+                System.out.println(String.format("%-50s failed: %s", directory.relativize(result.get_file()), result.get_error().getMessage()));
+            } else {
+                System.out.println(String.format("%-50s %8d packets %8d payloads %8.1f ms", directory.relativize(result.get_file()), result.get_packets(), result.get_result().size(), result.get_nanos() / 1e6));
+            }
+        };
+        CaptureBatchReport report;
+        if (Files.exists(directory.resolve(CaptureCatalog.FILE_NAME))) {
+            report = batch.run(files, CaptureCatalog.open(directory), CaptureBatch.payloads(filter), print);
+        } else {
+            report = batch.run(files, filter, print);
+        }
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,57 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import lib.Bytes;
+import lib.FragmentReassembler;
+import lib.PayloadIndex;
+import lib.PcapReader;
+
+
+/**
+ * Finds the packets of a captures directory whose payload holds a text, through the payload
+ * index (payloads.index, brought up to date first), and prints each with its payload.
+ *
+ *   java -cp . main.SearchCaptures [directory] <text>
+ *   java -cp . main.SearchCaptures [directory] -words <words>
+ *
+ * The text is matched exactly; with -words every word must be in the payload, in any case and order.
+ */
+public class SearchCaptures {
+
+    private static final int MAX_PRINTED = 100;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java -cp . main.SearchCaptures [directory] [-words] <text>");
+            return;
+        }
+        int next = 0;
+        Path directory = Paths.get(args.length > 1 && !args[0].equals("-words") ? args[next++] : "captures");
+        boolean words = args[next].equals("-words");
+        if (words) next++;
+        String text = String.join(" ", Arrays.asList(args).subList(next, args.length));
+
+        try (PayloadIndex index = new PayloadIndex(directory, Runtime.getRuntime().availableProcessors(), true)) {
+            int indexed = index.refresh();
+            if (indexed > 0) System.out.println("Indexed " + indexed + " captures (" + index.size() + " in all, " + index.get_stored_bytes() + " bytes of index)");
+
+            long start = System.nanoTime();
+            List<PayloadIndex.Hit> hits = words ? index.search_words(text) : index.search(text);
+            System.out.println(String.format("%d packets hold \"%s\" (%.2f ms)", hits.size(), text, (System.nanoTime() - start) / 1e6));
+
+            for (PayloadIndex.Hit hit : hits.subList(0, Math.min(MAX_PRINTED, hits.size()))) {
+                try (PcapReader reader = new PcapReader(hit.get_file())) {
+                    reader.set_reassembler(new FragmentReassembler());  // Hits of fragmented datagrams point at their last fragment
+                    ByteBuffer payload = reader.seek_packet(hit.get_packet_index()) && reader.next() ? reader.udp_payload() : null;
+                    System.out.println(index.get_directory().relativize(hit.get_file()) + " #" + hit.get_packet_index() + ": " + (payload == null ? "" : Bytes.to_string(payload)));
+                }
+            }
+            if (hits.size() > MAX_PRINTED) System.out.println("... and " + (hits.size() - MAX_PRINTED) + " more");
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lib.Bytes;
+import lib.PcapWriter;
+
+
+/**
+ * Captures one hot UDP port with N sockets bound through SO_REUSEPORT.
+ * The kernel hashes every flow (source address and port) onto one of the sockets,
+ * and each socket has its own worker thread. Workers share one START/STOP view:
+ * the first worker to see START opens the session for all of them, the first one to
+ * see STOP ends it, and the packets of all workers are merged by arrival time.
+ * Until START every worker keeps its last few datagrams, since another worker may already
+ * hold START; the merge leaves out those received before it. After STOP the other workers
+ * still take what their sockets have queued before closing them.
+ */
+public class ShardedCaptureUDP {
+
+    private static final int ARMED = 0;
+    private static final int CAPTURING = 1;
+    private static final int STOPPED = 2;
+
+    // Datagrams each worker keeps while armed: longer than any worker takes to see the START of another
+    private static final long ARMED_KEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final int workers;
+
+    // Most recently started capture, for the per-worker counters
+    private volatile Session lastSession = null;
+
+    public ShardedCaptureUDP(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    // Overloaded constructor: one worker per core
+    public ShardedCaptureUDP() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * Same contract as CaptureUDP.listen_and_capture_udp_in_process, spread over the workers.
+     */
+    public void listen_and_capture_udp(
+        String host,
+        int port,
+        Consumer<List<String>> onDataReceived,
+        Consumer<Exception> onError,
+        Runnable onStop,
+        String start_signal,
+        String stop_signal,
+        int timeout_seconds,
+        boolean auto_stop_after_timeout,
+        boolean include_signals_in_message,
+        boolean verbose
+    ) {
+        Session session = new Session(host, port, onDataReceived, onError, onStop, start_signal, stop_signal,
+            auto_stop_after_timeout, include_signals_in_message, verbose);
+        lastSession = session;
+
+        try {
+            for (int i = 0; i < workers; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                session.channels.add(channel);
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(host, port));
+                channel.configureBlocking(false);
+                Selector selector = Selector.open();
+                session.selectors.add(selector);
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+        } catch (Exception e) {
+            session.close_channels();
+            if (onError != null) onError.accept(e);
+            if (verbose) System.out.println("Error Occurred: " + e.getMessage());
+            return;
+        }
+
+        session.timer.schedule(() -> session.time_out(timeout_seconds), timeout_seconds, TimeUnit.SECONDS);
+        for (int i = 0; i < workers; i++) {
+            final int worker = i;
+            Thread thread = new Thread(() -> session.receive(worker), "udp-shard-" + port + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (verbose) System.out.println("Listening on " + host + ":" + port + " with " + workers + " SO_REUSEPORT workers");
+    }
+
+    // Overloaded method 1: With start_signal and stop_signal (All Callbacks)
+    public void listen_and_capture_udp(String host, int port, Consumer<List<String>> onDataReceived, Consumer<Exception> onError, Runnable onStop, String start_signal, String stop_signal) {
+        listen_and_capture_udp(host, port, onDataReceived, onError, onStop, start_signal, stop_signal, 30, true, false, false);
+    }
+
+
+    public int get_workers() { return workers; }
+
+    /**
+     * Datagrams received by each worker (index = worker) during the most recent capture,
+     * signals included. All zero before the first capture.
+     */
+    public long[] get_worker_packet_counts() {
+        Session session = lastSession;
+        return session == null ? new long[workers] : to_array(session.packetCounts);
+    }
+
+    /**
+     * Payload bytes received by each worker (index = worker) during the most recent capture.
+     */
+    public long[] get_worker_byte_counts() {
+        Session session = lastSession;
+        return session == null ? new long[workers] : to_array(session.byteCounts);
+    }
+
+    private static long[] to_array(AtomicLongArray values) {
+        long[] counts = new long[values.length()];
+        for (int i = 0; i < counts.length; i++) counts[i] = values.get(i);
+        return counts;
+    }
+
+
+    // One captured datagram, kept until the shards are merged
+    private static class ShardPacket {
+        final long timestamp;
+        final int srcIp;
+        final int srcPort;
+        final byte[] payload;
+
+        ShardPacket(long timestamp, int srcIp, int srcPort, byte[] payload) {
+            this.timestamp = timestamp;
+            this.srcIp = srcIp;
+            this.srcPort = srcPort;
+            this.payload = payload;
+        }
+    }
+
+
+    // Shared state of one sharded capture
+    private class Session {
+
+        final String host;
+        final int port;
+        final Consumer<List<String>> onDataReceived;
+        final Consumer<Exception> onError;
+        final Runnable onStop;
+        final byte[] startBytes;
+        final byte[] stopBytes;
+        final String startSignal;
+        final String stopSignal;
+        final boolean autoStopAfterTimeout;
+        final boolean includeSignalsInMessage;
+        final boolean verbose;
+
+        final List<DatagramChannel> channels = new ArrayList<>();
+        final List<Selector> selectors = new ArrayList<>();  // One per worker, woken by stop()
+        final List<ArrayDeque<ShardPacket>> shards = new ArrayList<>();
+        final AtomicLongArray packetCounts = new AtomicLongArray(workers);  // Per-worker counters of this capture
+        final AtomicLongArray byteCounts = new AtomicLongArray(workers);
+        final AtomicInteger state;
+        final AtomicInteger running = new AtomicInteger(workers);
+        final AtomicLong startTimestamp = new AtomicLong(Long.MIN_VALUE);
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        volatile boolean messageStarted = false;
+        volatile boolean stopped = false;
+        volatile Exception failure = null;
+
+        Session(String host, int port, Consumer<List<String>> onDataReceived, Consumer<Exception> onError, Runnable onStop,
+                String start_signal, String stop_signal, boolean auto_stop_after_timeout, boolean include_signals_in_message, boolean verbose) {
+            this.host = host;
+            this.port = port;
+            this.onDataReceived = onDataReceived;
+            this.onError = onError;
+            this.onStop = onStop;
+            this.startSignal = start_signal;
+            this.stopSignal = stop_signal;
+            this.startBytes = Bytes.signal_bytes(start_signal);
+            this.stopBytes = Bytes.signal_bytes(stop_signal);
+            this.autoStopAfterTimeout = auto_stop_after_timeout;
+            this.includeSignalsInMessage = include_signals_in_message;
+            this.verbose = verbose;
+            this.state = new AtomicInteger(start_signal == null ? CAPTURING : ARMED);
+            if (start_signal == null) startTimestamp.set(PcapWriter.now_nanos());
+            for (int i = 0; i < workers; i++) shards.add(new ArrayDeque<>());
+        }
+
+        // Worker loop: one socket, one shard
+        void receive(int worker) {
+            DatagramChannel channel = channels.get(worker);
+            Selector selector = selectors.get(worker);
+            ArrayDeque<ShardPacket> shard = shards.get(worker);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(65535);
+
+            try {
+                boolean sawStop = false;
+                while (!sawStop && state.get() != STOPPED) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    SocketAddress source;
+                    while (!sawStop && state.get() != STOPPED && (source = channel.receive(buffer.clear())) != null) {
+                        sawStop = on_datagram(worker, shard, buffer.flip(), source);
+                    }
+                }
+
+                // Stopped by another worker or the timeout: what this socket holds was queued before its STOP was read
+                SocketAddress source;
+                while (!sawStop && (source = channel.receive(buffer.clear())) != null) {
+                    sawStop = on_datagram(worker, shard, buffer.flip(), source);
+                }
+            } catch (IOException e) {
+                failure = e;
+                stop();
+            } finally {
+                close_worker(worker);
+                if (running.decrementAndGet() == 0) finish();
+            }
+        }
+
+        // Keep one datagram in the shard; returns true for the stop signal
+        boolean on_datagram(int worker, ArrayDeque<ShardPacket> shard, ByteBuffer buffer, SocketAddress source) {
+            long timestamp = PcapWriter.now_nanos();
+            packetCounts.incrementAndGet(worker);
+            byteCounts.addAndGet(worker, buffer.remaining());
+            int current = state.get();
+
+            // Start signal: first worker to see it opens the session for everyone
+            if (startBytes != null && current == ARMED && Bytes.matches_signal(buffer, startBytes)) {
+                if (state.compareAndSet(ARMED, CAPTURING)) {
+                    startTimestamp.set(timestamp);
+                    if (verbose) System.out.println("Start Signal Received by worker " + worker + ".");
+                }
+                return false;
+            }
+
+            InetSocketAddress sender = (InetSocketAddress) source;
+            byte[] payload = new byte[buffer.remaining()];
+            buffer.get(payload);
+            ShardPacket packet = new ShardPacket(timestamp, PcapWriter.ipv4_to_int(sender.getAddress().getAddress()), sender.getPort(), payload);
+
+            // Armed: START may already be with another worker, finish() leaves out what came before it
+            if (current == ARMED) {
+                while (!shard.isEmpty() && timestamp - shard.peekFirst().timestamp > ARMED_KEEP_NANOS) shard.pollFirst();
+                shard.addLast(packet);
+                return false;
+            }
+            shard.addLast(packet);
+            if (payload.length > 0) messageStarted = true;
+
+            // Stop signal: first worker to see it ends the session for everyone
+            if (stopBytes != null && Bytes.matches_signal(payload, 0, payload.length, stopBytes)) {
+                stopped = true;
+                if (verbose) System.out.println("Stop Signal Received by worker " + worker + ".");
+                stop();
+                return true;
+            }
+            return false;
+        }
+
+        void time_out(int timeout_seconds) {
+            if (state.get() == STOPPED) return;
+            if (!(autoStopAfterTimeout && messageStarted)) {
+                failure = new Exception("Timeout reached after " + timeout_seconds + " seconds");
+            } else if (verbose) {
+                System.out.println("Auto Closed due to Timeout.");
+            }
+            stop();
+        }
+
+        // Every worker leaves its loop, takes what its socket holds and closes it
+        synchronized void stop() {
+            state.set(STOPPED);
+            for (Selector selector : selectors) {
+                if (selector.isOpen()) selector.wakeup();
+            }
+        }
+
+        synchronized void close_worker(int worker) {
+            close_quietly(selectors.get(worker));
+            close_quietly(channels.get(worker));
+        }
+
+        synchronized void close_channels() {
+            for (Selector selector : selectors) close_quietly(selector);
+            for (DatagramChannel channel : channels) close_quietly(channel);
+        }
+
+        private void close_quietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+
+        // Last worker out merges the shards and reports
+        void finish() {
+            timer.shutdownNow();
+            if (failure != null) {
+                if (onError != null) onError.accept(failure);
+                if (verbose) System.out.println("Error Occurred: " + failure.getMessage());
+                return;
+            }
+
+            // From START on; datagrams taken from the sockets after STOP have later timestamps, but were queued before it
+            List<ShardPacket> merged = new ArrayList<>();
+            long from = startTimestamp.get();
+            for (ArrayDeque<ShardPacket> shard : shards) {
+                for (ShardPacket packet : shard) {
+                    if (packet.timestamp >= from) merged.add(packet);
+                }
+            }
+            merged.sort(Comparator.comparingLong(packet -> packet.timestamp));
+
+            String outputFilePath = CaptureSession.default_output_path("_" + port);
+            List<String> results = new ArrayList<>();
+            try (PcapWriter pcapWriter = new PcapWriter(Paths.get(outputFilePath))) {
+                int localIp = PcapWriter.ipv4_to_int(new InetSocketAddress(host, port).getAddress().getAddress());
+                for (ShardPacket packet : merged) {
+                    pcapWriter.write_udp_packet(packet.srcIp, packet.srcPort, localIp, port, packet.payload, 0, packet.payload.length, packet.timestamp);
+                    if (stopBytes != null && Bytes.matches_signal(packet.payload, 0, packet.payload.length, stopBytes)) continue;
+                    results.add(new String(packet.payload, StandardCharsets.ISO_8859_1));
+                }
+            } catch (IOException e) {
+                if (onError != null) onError.accept(e);
+                return;
+            }
+
+            if (verbose) {
+                System.out.println("Captured " + merged.size() + " packets into " + outputFilePath);
+                for (int i = 0; i < workers; i++) {
+                    System.out.println("Worker " + i + ": " + packetCounts.get(i) + " packets, " + byteCounts.get(i) + " bytes");
+                }
+            }
+
+            if (includeSignalsInMessage) {
+                if (startSignal != null) results.add(0, startSignal);
+                if (stopSignal != null && stopped) results.add(stopSignal);
+            }
+
+            try {
+                if (onDataReceived != null) onDataReceived.accept(results);
+                if (onStop != null) onStop.run();
+            } catch (Exception e) {
+                if (onError != null) onError.accept(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package main;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import lib.CaptureCatalog;
+import lib.CaptureStore;
+
+
+/**
+ * Copies every capture of a directory into a content-addressed CaptureStore (each content once,
+ * repeated payloads once) and prints the space it takes against the files themselves.
+ *
+ *   java -cp . main.StoreCaptures [directory] [store]
+ *
+ * Defaults: the captures directory, and a store named capture-store next to it.
+ */
+public class StoreCaptures {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "captures").toAbsolutePath().normalize();
+        Path root = args.length > 1 ? Paths.get(args[1]) : directory.resolveSibling("capture-store");
+
+        CaptureCatalog catalog = CaptureCatalog.open(directory);
+        try (CaptureStore store = new CaptureStore(root)) {
+            int stored = store.put_all(catalog);
+            System.out.println("Stored " + stored + " new captures of " + catalog.size() + " in " + store.get_root());
+            System.out.println(store);
+        }
+    }
+}
@@ -12,11 +12,20 @@ MAIN_CLASS=AppLauncher
 # Collect all JavaFX JAR files
 JAVAFX_JARS=$(echo $JAVAFX_LIB/*.jar | tr ' ' ':')
 
+# The optional recvmmsg receive engine (lib/linux) uses java.lang.foreign, so it is only built on JDK 22+
+JAVAC_VERSION=$(javac -version 2>&1 | sed -E 's/^javac ([0-9]+).*/\1/')
+OPTIONAL_SOURCES=""
+JAVA_OPTIONS=""
+if [ "$JAVAC_VERSION" -ge 22 ] 2>/dev/null; then
+    OPTIONAL_SOURCES="lib/linux/*.java"
+    JAVA_OPTIONS="--enable-native-access=ALL-UNNAMED"
+fi
+
 # Compile the Java source files, adding both the JavaFX SDK and PostgreSQL JDBC driver to the classpath
-javac -cp "$JAVAFX_JARS:$POSTGRESQL_JAR" -d . lib/*.java main/*.java *.java # -Xlint:unchecked 
+javac -cp "$JAVAFX_JARS:$POSTGRESQL_JAR" -d . lib/*.java main/*.java $OPTIONAL_SOURCES *.java # -Xlint:unchecked 
 
 # Run the JavaFX application with the necessary modules and PostgreSQL driver
-java --module-path "$JAVAFX_LIB" --add-modules=javafx.controls,javafx.fxml -cp ".:$POSTGRESQL_JAR:main" "$MAIN_CLASS"
+java $JAVA_OPTIONS --module-path "$JAVAFX_LIB" --add-modules=javafx.controls,javafx.fxml -cp ".:$POSTGRESQL_JAR:main" "$MAIN_CLASS"
 
 # 
 # Note:
@@ -0,0 +1,225 @@
+package lib;
+
+import static lib.Checks.check;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Round trips of CaptureIndex through encode/decode, the sidecar file and the block PcapNgWriter
+ * embeds, and the entries it gives for packet numbers and times, against a scan of all packets,
+ * with timestamps out of order. Run as described in Checks.
+ */
+public class CaptureIndexTest {
+
+    private static final long START = 1_700_000_000_000_000_000L;
+
+    public static void main(String[] args) {
+        Checks.run_tests(CaptureIndexTest.class);
+    }
+
+    static void run() throws IOException {
+        encode_and_decode();
+        entries_for_times();
+        entries_for_packets();
+        Path directory = Checks.temporary_directory("capture-index-test");
+        sidecar(directory.resolve("sidecar.pcap"));
+        embedded(directory.resolve("embedded.pcapng"));
+    }
+
+    private static void encode_and_decode() throws IOException {
+        CaptureIndex index = index(1000, 16, 1_000_000, timestamps(1000, 42));
+        ByteBuffer buffer = ByteBuffer.allocate(index.encoded_length() + 8).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(0x12345678);
+        index.encode(buffer);
+        check(buffer.position() == 4 + index.encoded_length(), "encode writes encoded_length() bytes");
+        check(buffer.order() == ByteOrder.BIG_ENDIAN, "encode leaves the buffer's byte order");
+        buffer.flip().position(4);
+        CaptureIndex decoded = CaptureIndex.decode(buffer);
+        check(same(index, decoded), "decode gives back the encoded index");
+        check(buffer.position() == 4, "decode leaves the buffer position");
+
+        CaptureIndex empty = new CaptureIndex();
+        ByteBuffer emptyBuffer = ByteBuffer.allocate(empty.encoded_length());
+        empty.encode(emptyBuffer);
+        CaptureIndex emptyDecoded = CaptureIndex.decode(emptyBuffer.flip());
+        check(emptyDecoded.get_entry_count() == 0 && emptyDecoded.get_packet_count() == 0, "an empty index round trips");
+        check(emptyDecoded.entry_for_time(START) == -1 && emptyDecoded.entry_for_packet(0) == -1, "an empty index has no entries to give");
+
+        ByteBuffer corrupt = ByteBuffer.allocate(index.encoded_length());
+        index.encode(corrupt);
+        corrupt.putInt(0, 0);
+        check(!decodes(corrupt.flip()), "a wrong magic is rejected");
+        ByteBuffer truncated = ByteBuffer.allocate(index.encoded_length());
+        index.encode(truncated);
+        check(!decodes(truncated.flip().limit(index.encoded_length() - 1)), "a truncated index is rejected");
+    }
+
+    // Starting at entry_for_time and stopping at entry_after_time finds every packet of a range
+    private static void entries_for_times() {
+        long[] times = timestamps(5000, 7);
+        for (long bucket : new long[] { 0, 1_000_000 }) {
+            CaptureIndex index = index(times.length, 64, bucket, times);
+            Random random = new Random(bucket);
+            boolean found = true;
+            boolean earliest = true;
+            for (int query = 0; query < 500; query++) {
+                long from = START + random.nextInt(6_000_000) - 500_000;
+                long to = from + random.nextInt(200_000);
+                int first = index.entry_for_time(from);
+                int after = index.entry_after_time(to);
+                long firstPacket = index.get_entry_ordinal(first);
+                long endPacket = after == index.get_entry_count() ? times.length : index.get_entry_ordinal(after);
+                for (int packet = 0; packet < times.length; packet++) {
+                    boolean inRange = times[packet] >= from && times[packet] <= to;
+                    if (inRange && (packet < firstPacket || packet >= endPacket)) found = false;
+                }
+                // Nothing before the entry is at or after the start of the range
+                if (first + 1 < index.get_entry_count() && max(times, 0, (int) index.get_entry_ordinal(first + 1)) < from) earliest = false;
+            }
+            check(found, "the entries around a time range hold all of its packets (bucket " + bucket + ")");
+            check(earliest, "entry_for_time gives the last entry it can (bucket " + bucket + ")");
+        }
+        CaptureIndex index = index(times.length, 64, 0, times);
+        check(index.entry_for_time(Long.MIN_VALUE) == 0, "a time before the file starts at entry 0");
+        check(index.entry_after_time(Long.MAX_VALUE) == index.get_entry_count(), "a time after the file scans to the end");
+        check(index.get_min_timestamp() == min(times) && index.get_max_timestamp() == max(times, 0, times.length), "first and last capture times");
+    }
+
+    private static void entries_for_packets() {
+        CaptureIndex index = index(1000, 100, 0, timestamps(1000, 3));
+        check(index.get_entry_count() == 10, "one entry per stride");
+        boolean right = true;
+        for (int packet = 0; packet < 1000; packet++) {
+            int entry = index.entry_for_packet(packet);
+            if (entry != packet / 100 || index.get_entry_ordinal(entry) != packet / 100 * 100 || index.get_entry_offset(entry) != offset(packet / 100 * 100)) right = false;
+        }
+        check(right, "entry_for_packet gives the entry at or before every packet");
+        check(index.entry_for_packet(1000) == -1 && index.entry_for_packet(-1) == -1, "no entry for packets outside the file");
+    }
+
+    private static void sidecar(Path capture) throws IOException {
+        long[] times = timestamps(3000, 11);
+        CaptureIndex written;
+        try (PcapWriter writer = new PcapWriter(capture)) {
+            for (long time : times) writer.write_udp_packet(0x0A000001, 4000, 0x0A000002, 5000, new byte[] { 1, 2, 3 }, 0, 3, time);
+            written = writer.get_index();
+        }
+        check(same(written, CaptureIndex.read_sidecar(capture)), "PcapWriter leaves its index as the sidecar");
+        Files.delete(CaptureIndex.sidecar_path(capture));
+        check(CaptureIndex.read_sidecar(capture) == null, "no sidecar, no index");
+
+        CaptureIndex built = CaptureIndex.build(capture, 128, CaptureIndex.DEFAULT_BUCKET_NANOS);
+        check(built.get_packet_count() == times.length, "build counts every packet");
+        built.write_sidecar(capture);
+        check(same(built, CaptureIndex.read_sidecar(capture)), "the sidecar gives back the index");
+        check(same(built, CaptureIndex.load(capture)), "load uses the sidecar rather than building its own");
+
+        try (PcapReader reader = new PcapReader(capture)) {
+            boolean right = true;
+            for (long packet : new long[] { 0, 1, 127, 128, 1500, 2999 }) {
+                if (!reader.seek_packet(packet) || !reader.next() || reader.packet_index() != packet || reader.timestamp_nanos() != times[(int) packet]) right = false;
+            }
+            check(right, "seek_packet through the sidecar reaches the packets");
+            check(!reader.seek_packet(times.length), "seek_packet past the last packet");
+
+            long from = START + 1_000_000;
+            long to = START + 1_200_000;
+            List<Long> read = new ArrayList<>();
+            reader.read_time_range(from, to, packet -> read.add(packet.timestamp_nanos()));
+            List<Long> expected = new ArrayList<>();
+            for (long time : times) if (time >= from && time <= to) expected.add(time);
+            check(read.equals(expected), "read_time_range gives the packets of the range in file order");
+        }
+
+        Files.setLastModifiedTime(capture, FileTime.fromMillis(Files.getLastModifiedTime(capture).toMillis() - 60_000));
+        check(CaptureIndex.read_sidecar(capture) == null, "a capture changed after its sidecar makes it stale");
+    }
+
+    private static void embedded(Path capture) throws IOException {
+        long[] times = timestamps(1000, 5);
+        CaptureIndex written;
+        try (PcapNgWriter writer = new PcapNgWriter(capture, PacketDecoder.LINKTYPE_ETHERNET, 64)) {
+            for (long time : times) writer.write_udp_packet(0x0A000001, 4000, 0x0A000002, 5000, new byte[] { 1, 2, 3 }, 0, 3, time);
+            written = writer.get_index();
+        }
+        try (PcapReader reader = new PcapReader(capture)) {
+            check(same(written, reader.index()), "the index block of a pcapng file gives back the writer's index");
+            check(reader.seek_packet(777) && reader.next() && reader.packet_index() == 777 && reader.timestamp_nanos() == times[777], "seek_packet through the index block");
+        }
+
+        // Another tool's block with the same enterprise number: skipped, the packets still read
+        byte[] bytes = Files.readAllBytes(capture);
+        ByteBuffer file = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int block = bytes.length - file.getInt(bytes.length - 4);
+        check(file.getInt(block + 8) == PcapNgWriter.INDEX_ENTERPRISE_NUMBER && file.getInt(block + 12) == CaptureIndex.MAGIC, "the index block starts with the index magic");
+        file.putInt(block + 12, 0x12345678);
+        Files.write(capture, bytes);
+        try (PcapReader reader = new PcapReader(capture)) {
+            check(reader.index() == null, "a block without the index magic is not taken for an index");
+            int packets = 0;
+            while (reader.next()) packets++;
+            check(packets == times.length, "the packets of a file with a foreign custom block are all read");
+        }
+    }
+
+    // Timestamps a microsecond apart on average, some of them up to 50 microseconds out of order
+    private static long[] timestamps(int count, long seed) {
+        Random random = new Random(seed);
+        long[] times = new long[count];
+        for (int i = 0; i < count; i++) times[i] = START + i * 1000L + (random.nextInt(10) == 0 ? -random.nextInt(50_000) : random.nextInt(1000));
+        return times;
+    }
+
+    private static CaptureIndex index(int count, int stride, long bucket_nanos, long[] times) {
+        CaptureIndex index = new CaptureIndex(stride, bucket_nanos);
+        for (int i = 0; i < count; i++) index.add(offset(i), times[i]);
+        return index;
+    }
+
+    private static long offset(long packet) {
+        return 24 + packet * 100;
+    }
+
+    private static boolean same(CaptureIndex a, CaptureIndex b) {
+        if (a == null || b == null) return false;
+        if (a.get_entry_count() != b.get_entry_count() || a.get_packet_count() != b.get_packet_count() || a.get_stride() != b.get_stride()) return false;
+        if (a.get_bucket_nanos() != b.get_bucket_nanos() || a.get_min_timestamp() != b.get_min_timestamp() || a.get_max_timestamp() != b.get_max_timestamp()) return false;
+        for (int i = 0; i < a.get_entry_count(); i++) {
+            if (a.get_entry_ordinal(i) != b.get_entry_ordinal(i) || a.get_entry_offset(i) != b.get_entry_offset(i)) return false;
+        }
+        for (long time = START - 100_000; time < START + a.get_packet_count() * 1000 + 100_000; time += 3333) {
+            if (a.entry_for_time(time) != b.entry_for_time(time) || a.entry_after_time(time) != b.entry_after_time(time)) return false;
+        }
+        return true;
+    }
+
+    private static boolean decodes(ByteBuffer buffer) {
+        try {
+            CaptureIndex.decode(buffer);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long min(long[] times) {
+        long min = Long.MAX_VALUE;
+        for (long time : times) min = Math.min(min, time);
+        return min;
+    }
+
+    private static long max(long[] times, int from, int to) {
+        long max = Long.MIN_VALUE;
+        for (int i = from; i < to; i++) max = Math.max(max, times[i]);
+        return max;
+    }
+}
@@ -0,0 +1,95 @@
+package lib;
+
+import static lib.Checks.check;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Round trips through CaptureStore: captures restored byte for byte, also after the store is
+ * reopened, with payload blocks shared between captures and names sharing a content. Run as
+ * described in Checks.
+ */
+public class CaptureStoreTest {
+
+    public static void main(String[] args) {
+        Checks.run_tests(CaptureStoreTest.class);
+    }
+
+    static void run() throws IOException {
+        Path directory = Checks.temporary_directory("capture-store-test");
+        Path first = directory.resolve("first.pcap");
+        Path second = directory.resolve("second.pcapng");
+        Path other = directory.resolve("notes.txt");
+        write_capture(first, 1, 0);
+        write_capture(second, 2, 500);  // Same payloads, other headers and times
+        Files.write(other, "not a capture file".getBytes(StandardCharsets.ISO_8859_1));
+        Path root = directory.resolve("store");
+
+        String firstHash;
+        try (CaptureStore store = new CaptureStore(root)) {
+            firstHash = store.put(first, "session-1");
+            int blocks = store.get_block_count();
+            check(blocks > 0, "payloads of a capture are kept as blocks");
+            store.put(second, "session-2");
+            check(store.get_block_count() == blocks, "a capture with the same payloads adds no blocks");
+            check(store.put(first, "session-1-again").equals(firstHash), "the same content under another name has the same hash");
+            check(store.get_capture_count() == 2, "the same content is stored once");
+            store.put(other);
+            check(store.names().equals(List.of("notes.txt", "session-1", "session-1-again", "session-2")), "every name is listed");
+            check(store.get_stored_bytes() < store.get_logical_bytes(), "the store takes less space than the files");
+
+            check(restores(store, "session-1", first, directory), "a pcap file is restored byte for byte");
+            check(restores(store, "session-2", second, directory), "a pcapng file is restored byte for byte");
+            check(restores(store, "notes.txt", other, directory), "a file that is not a capture is restored byte for byte");
+            check(restores(store, firstHash, first, directory), "a content hash restores like a name");
+        }
+
+        try (CaptureStore store = new CaptureStore(root)) {
+            check(store.names().size() == 4 && store.resolve("session-1").equals(firstHash), "names survive reopening the store");
+            check(restores(store, "session-2", second, directory), "captures restore after reopening the store");
+
+            check(store.remove("session-1") && store.contains("session-1-again"), "removing a name keeps its content for the other name");
+            check(restores(store, "session-1-again", first, directory), "the other name still restores");
+            check(store.remove("session-1-again") && store.resolve(firstHash) == null, "the content goes with its last name");
+            check(!store.remove("session-1"), "a name is removed once");
+            check(restores(store, "session-2", second, directory), "blocks shared with a removed capture are kept");
+
+            boolean missing = false;
+            try {
+                store.restore("no-such-session", directory.resolve("missing"));
+            } catch (NoSuchFileException e) {
+                missing = true;
+            }
+            check(missing && !Files.exists(directory.resolve("missing")), "restoring an unknown name fails and leaves no file");
+        }
+    }
+
+    // Payloads longer than a block, some repeated, from a fixed seed so both captures hold the same
+    private static void write_capture(Path file, int port_offset, long time_offset) throws IOException {
+        Random random = new Random(1);
+        try (CaptureWriter writer = CaptureWriter.open(file)) {
+            for (int i = 0; i < 200; i++) {
+                byte[] payload = new byte[random.nextInt(3) == 0 ? 10 : 100 + random.nextInt(9000)];
+                random.nextBytes(payload);
+                if (i % 10 == 0) Arrays.fill(payload, (byte) 'a');
+                writer.write_udp_packet(0x0A000001, 4000 + port_offset, 0x0A000002, 5000, payload, 0, payload.length, 1_700_000_000_000_000_000L + time_offset + i * 1000L);
+            }
+        }
+    }
+
+    private static boolean restores(CaptureStore store, String name, Path original, Path directory) throws IOException {
+        Path restored = directory.resolve("restored");
+        store.restore(name, restored);
+        boolean same = Arrays.equals(Files.readAllBytes(restored), Files.readAllBytes(original));
+        Files.delete(restored);
+        return same;
+    }
+}
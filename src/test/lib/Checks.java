@@ -0,0 +1,92 @@
+package lib;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+/**
+ * The checks shared by the tests under src/test. There is no test framework: a test is a class
+ * named *Test with a static run() that calls check(), and a main that hands itself to run_tests().
+ * From the src directory, to run every test or one:
+ *
+ *   javac -d /tmp/test -sourcepath . test/lib/*.java
+ *   java -cp /tmp/test lib.Checks
+ *   java -cp /tmp/test lib.FragmentReassemblerTest
+ *
+ * Exits with status 1 if a check fails or a test throws.
+ */
+final class Checks {
+
+    private static int checks = 0;
+    private static int failures = 0;
+    private static final List<Path> temporaryDirectories = new ArrayList<>();
+
+    private Checks() {}
+
+    // Every *Test class next to this one
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(Checks.class.getResource("Checks.class").toURI()).getParent();
+        List<Class<?>> tests = new ArrayList<>();
+        try (Stream<Path> classes = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) classes.sorted()::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith("Test.class")) tests.add(Class.forName("lib." + name.substring(0, name.length() - ".class".length())));
+            }
+        }
+        run_tests(tests.toArray(new Class<?>[0]));
+    }
+
+    /**
+     * Call run() of every test, report the checks and exit with status 1 if any failed.
+     */
+    static void run_tests(Class<?>... tests) {
+        for (Class<?> test : tests) {
+            int failuresBefore = failures;
+            try {
+                test.getDeclaredMethod("run").invoke(null);
+            } catch (InvocationTargetException e) {
+                failures++;
+                System.out.println("FAILED: " + test.getSimpleName() + " threw");
+                e.getCause().printStackTrace(System.out);
+            } catch (ReflectiveOperationException e) {
+                failures++;
+                System.out.println("FAILED: " + test.getSimpleName() + " has no static run()");
+            }
+            System.out.println(test.getSimpleName() + (failures == failuresBefore ? ": passed" : ": " + (failures - failuresBefore) + " failed"));
+        }
+        for (Path directory : temporaryDirectories) delete(directory);
+        System.out.println(checks + " checks, " + failures + " failed");
+        if (failures > 0) System.exit(1);
+    }
+
+    static void check(boolean passed, String description) {
+        checks++;
+        if (passed) return;
+        failures++;
+        System.out.println("FAILED: " + description);
+    }
+
+    /**
+     * An empty directory, deleted with everything in it once the tests have run.
+     */
+    static Path temporary_directory(String prefix) throws IOException {
+        Path directory = Files.createTempDirectory(prefix);
+        temporaryDirectories.add(directory);
+        return directory;
+    }
+
+    private static void delete(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package lib;
+
+import static lib.Checks.check;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Checks of FragmentReassembler: fragments in and out of order, overlapping and repeated
+ * fragments, the timeout, eviction by flow, datagram count and bytes, and malformed fragments.
+ * Frames are raw IPv4 (LINKTYPE_RAW). Run as described in Checks.
+ */
+public class FragmentReassemblerTest {
+
+    private static final int RAW = PacketDecoder.LINKTYPE_RAW;
+    private static final int MORE_FRAGMENTS = 0x2000;
+    private static final int SRC = 0x0A000001;
+    private static final int DST = 0x0A000002;
+
+    public static void main(String[] args) {
+        Checks.run_tests(FragmentReassemblerTest.class);
+    }
+
+    static void run() {
+        in_order();
+        out_of_order();
+        overlapping_and_repeated();
+        timeout();
+        eviction();
+        byte_cap();
+        malformed();
+    }
+
+    private static void in_order() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] datagram = udp_datagram(100);
+        check(reassembler.add(fragment(1, datagram, 0, 64, true), RAW, 0) == null, "first fragment alone is incomplete");
+        ByteBuffer packet = reassembler.add(fragment(1, datagram, 64, datagram.length, false), RAW, 1);
+        check(whole(packet, datagram), "two fragments in order make the datagram");
+        check(packet != null && (packet.getShort(6) & 0xFFFF) == 0, "the reassembled packet has no fragment flags or offset");
+        check(packet != null && (packet.getShort(2) & 0xFFFF) == packet.limit(), "the total length covers the whole datagram");
+        check(packet != null && !PacketDecoder.is_udp_fragment(packet, RAW), "the reassembled packet is not a fragment");
+        check(reassembler.get_reassembled_count() == 1 && reassembler.get_pending_count() == 0 && reassembler.get_pending_bytes() == 0, "nothing left pending");
+        check(reassembler.add(ByteBuffer.wrap(ip_packet(2, 0, datagram)), RAW, 2) == null, "a packet that is not a fragment is ignored");
+    }
+
+    private static void out_of_order() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] datagram = udp_datagram(200);
+        check(reassembler.add(fragment(1, datagram, 128, datagram.length, false), RAW, 0) == null, "last fragment first");
+        check(reassembler.add(fragment(1, datagram, 64, 128, true), RAW, 1) == null, "middle fragment second");
+        check(whole(reassembler.add(fragment(1, datagram, 0, 64, true), RAW, 2), datagram), "first fragment last completes the datagram");
+
+        // Two datagrams of the same flow interleaved, told apart by their identification
+        byte[] other = udp_datagram(150);
+        check(reassembler.add(fragment(7, datagram, 0, 64, true), RAW, 3) == null, "datagram 7 begins");
+        check(reassembler.add(fragment(8, other, 64, other.length, false), RAW, 4) == null, "datagram 8 ends first");
+        check(whole(reassembler.add(fragment(8, other, 0, 64, true), RAW, 5), other), "datagram 8 completes with its own fragments");
+        check(whole(reassembler.add(fragment(7, datagram, 64, datagram.length, false), RAW, 6), datagram), "datagram 7 completes with its own fragments");
+    }
+
+    private static void overlapping_and_repeated() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] datagram = udp_datagram(100);
+        check(reassembler.add(fragment(1, datagram, 0, 64, true), RAW, 0) == null, "first fragment");
+        check(reassembler.add(fragment(1, datagram, 0, 64, true), RAW, 1) == null, "the same fragment again");
+        check(reassembler.add(fragment(1, datagram, 32, 96, true), RAW, 2) == null, "a fragment overlapping the first");
+        check(whole(reassembler.add(fragment(1, datagram, 88, datagram.length, false), RAW, 3), datagram), "overlaps and repeats still make the datagram");
+        check(reassembler.get_reassembled_count() == 1 && reassembler.get_pending_count() == 0, "one datagram, nothing pending");
+
+        // A hole is not filled by fragments around it
+        reassembler.add(fragment(2, datagram, 0, 32, true), RAW, 4);
+        check(reassembler.add(fragment(2, datagram, 64, datagram.length, false), RAW, 5) == null, "a hole keeps the datagram incomplete");
+        check(reassembler.get_pending_count() == 1, "the datagram with a hole stays pending");
+    }
+
+    private static void timeout() {
+        FragmentReassembler reassembler = new FragmentReassembler(1000, 16, 16, 1 << 20);
+        check(reassembler.get_timeout_nanos() == 1000, "timeout as given");
+        byte[] datagram = udp_datagram(100);
+        reassembler.add(fragment(1, datagram, 0, 64, true), RAW, 0);
+        check(whole(reassembler.add(fragment(1, datagram, 64, datagram.length, false), RAW, 1000), datagram), "complete at exactly the timeout");
+
+        reassembler.add(fragment(2, datagram, 0, 64, true), RAW, 5000);
+        check(reassembler.add(fragment(2, datagram, 64, datagram.length, false), RAW, 6001) == null, "the first fragment expired before the last arrived");
+        check(reassembler.get_timed_out_count() == 1, "one datagram timed out");
+        check(reassembler.get_pending_count() == 1, "the late fragment starts a datagram of its own");
+
+        // Expiry happens on any add, even of a packet that is not a fragment
+        reassembler.add(ByteBuffer.wrap(ip_packet(3, 0, datagram)), RAW, 9000);
+        check(reassembler.get_pending_count() == 0 && reassembler.get_timed_out_count() == 2 && reassembler.get_pending_bytes() == 0, "expired on a later packet");
+    }
+
+    private static void eviction() {
+        byte[] datagram = udp_datagram(100);
+
+        // At most two datagrams in progress per flow: the oldest of the flow goes
+        FragmentReassembler perFlow = new FragmentReassembler(FragmentReassembler.DEFAULT_TIMEOUT_NANOS, 16, 2, 1 << 20);
+        for (int id = 1; id <= 3; id++) perFlow.add(fragment(id, datagram, 0, 64, true), RAW, id);
+        check(perFlow.get_evicted_count() == 1 && perFlow.get_pending_count() == 2, "a third datagram of the flow evicts the first");
+        check(whole(perFlow.add(fragment(3, datagram, 64, datagram.length, false), RAW, 4), datagram), "the newest datagram still completes");
+        check(perFlow.add(fragment(1, datagram, 64, datagram.length, false), RAW, 5) == null, "the evicted datagram cannot complete");
+        check(perFlow.get_evicted_count() == 1 && perFlow.get_pending_count() == 2, "its late fragment starts over within the limit");
+        perFlow.add(fragment(9, datagram, 0, 64, true, SRC + 1, DST), RAW, 6);
+        perFlow.add(fragment(10, datagram, 0, 64, true, SRC + 1, DST), RAW, 7);
+        check(perFlow.get_evicted_count() == 1 && perFlow.get_pending_count() == 4, "another flow has its own limit");
+
+        // At most two datagrams in progress in all: the oldest goes, whatever its flow
+        FragmentReassembler total = new FragmentReassembler(FragmentReassembler.DEFAULT_TIMEOUT_NANOS, 2, 16, 1 << 20);
+        for (int flow = 0; flow < 3; flow++) total.add(fragment(1, datagram, 0, 64, true, SRC + flow, DST), RAW, flow);
+        check(total.get_evicted_count() == 1 && total.get_pending_count() == 2, "a third datagram evicts the oldest");
+        check(total.add(fragment(1, datagram, 64, datagram.length, false, SRC, DST), RAW, 3) == null, "the oldest datagram is gone");
+        check(whole(total.add(fragment(1, datagram, 64, datagram.length, false, SRC + 2, DST), RAW, 4), datagram), "the newest datagram completes");
+    }
+
+    private static void byte_cap() {
+        // Fragments far into a datagram make it hold that much; two of them exceed 64 KB
+        FragmentReassembler reassembler = new FragmentReassembler(FragmentReassembler.DEFAULT_TIMEOUT_NANOS, 16, 16, 65535);
+        byte[] datagram = udp_datagram(40100);
+        reassembler.add(fragment(1, datagram, 40000, 40008, true), RAW, 0);
+        check(reassembler.get_evicted_count() == 0 && reassembler.get_pending_bytes() > 40000, "one large datagram fits");
+        reassembler.add(fragment(2, datagram, 40000, 40008, true), RAW, 1);
+        check(reassembler.get_evicted_count() == 1 && reassembler.get_pending_count() == 1, "a second one evicts the first");
+        check(reassembler.get_pending_bytes() <= 65535, "pending bytes within the cap");
+
+        // The cap never drops the datagram being added to, even if it alone is near the limit
+        check(whole(complete(reassembler, 2, datagram, 40000), datagram), "the datagram being added to survives and completes");
+        check(reassembler.get_pending_bytes() == 0, "nothing pending after it completed");
+    }
+
+    private static void malformed() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] datagram = udp_datagram(100);
+        check(reassembler.add(fragment(1, datagram, 0, 60, true), RAW, 0) == null, "a non-final fragment must be a multiple of 8 bytes");
+        check(reassembler.get_malformed_count() == 1 && reassembler.get_pending_count() == 0, "counted as malformed, nothing pending");
+
+        // Offset plus length beyond the largest IP packet
+        byte[] body = new byte[16];
+        ByteBuffer beyond = ByteBuffer.wrap(ip_packet(2, (65528 / 8) | MORE_FRAGMENTS, body));
+        check(reassembler.add(beyond, RAW, 1) == null && reassembler.get_malformed_count() == 2, "a fragment past 65535 bytes is malformed");
+    }
+
+    // Feed the rest of a datagram whose fragment at from is already in: the tail, then [0, from) in 8 KB steps
+    private static ByteBuffer complete(FragmentReassembler reassembler, int id, byte[] datagram, int from) {
+        ByteBuffer packet = reassembler.add(fragment(id, datagram, 40008, datagram.length, false), RAW, 2);
+        for (int start = 0; start < from && packet == null; start += 8192) {
+            packet = reassembler.add(fragment(id, datagram, start, Math.min(start + 8192, from), true), RAW, 3);
+        }
+        return packet;
+    }
+
+    // UDP header and payload of the given payload length
+    private static byte[] udp_datagram(int payload_length) {
+        ByteBuffer datagram = ByteBuffer.allocate(8 + payload_length);
+        datagram.putShort((short) 4000).putShort((short) 5000).putShort((short) (8 + payload_length)).putShort((short) 0);
+        for (int i = 0; i < payload_length; i++) datagram.put((byte) (i * 7 + 3));
+        return datagram.array();
+    }
+
+    private static ByteBuffer fragment(int id, byte[] datagram, int start, int end, boolean more) {
+        return fragment(id, datagram, start, end, more, SRC, DST);
+    }
+
+    // Bytes [start, end) of the UDP datagram as one IPv4 fragment
+    private static ByteBuffer fragment(int id, byte[] datagram, int start, int end, boolean more, int src_ip, int dst_ip) {
+        int flagsAndOffset = (start / 8) | (more ? MORE_FRAGMENTS : 0);
+        return ByteBuffer.wrap(ip_packet(id, flagsAndOffset, Arrays.copyOfRange(datagram, start, end), src_ip, dst_ip));
+    }
+
+    private static byte[] ip_packet(int id, int flags_and_offset, byte[] body) {
+        return ip_packet(id, flags_and_offset, body, SRC, DST);
+    }
+
+    private static byte[] ip_packet(int id, int flags_and_offset, byte[] body, int src_ip, int dst_ip) {
+        ByteBuffer packet = ByteBuffer.allocate(20 + body.length);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) (20 + body.length)).putShort((short) id).putShort((short) flags_and_offset);
+        packet.put((byte) 64).put((byte) 17).putShort((short) 0).putInt(src_ip).putInt(dst_ip).put(body);
+        return packet.array();
+    }
+
+    // The reassembled packet is an IPv4 header followed by exactly the datagram
+    private static boolean whole(ByteBuffer packet, byte[] datagram) {
+        if (packet == null || packet.remaining() != 20 + datagram.length) return false;
+        byte[] body = new byte[datagram.length];
+        packet.get(packet.position() + 20, body);
+        return Arrays.equals(body, datagram);
+    }
+}
@@ -0,0 +1,157 @@
+package lib;
+
+import static lib.Checks.check;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Checks of the PacketFilter expression compiler: operator precedence, "!" against "!=", port
+ * range bounds, payload prefixes in both buffer byte orders and the positions named by errors.
+ * Run as described in Checks.
+ */
+public class PacketFilterCompilerTest {
+
+    public static void main(String[] args) {
+        Checks.run_tests(PacketFilterCompilerTest.class);
+    }
+
+    static void run() {
+        precedence();
+        negation_and_not_equal();
+        port_ranges();
+        prefixes();
+        error_positions();
+    }
+
+    private static void precedence() {
+        // and binds tighter than or
+        PacketFilter filter = PacketFilter.compile("port 1 or port 2 and port 3");
+        check(ports(filter, 1, 9), "port 1 or (port 2 and port 3) passes port 1");
+        check(!ports(filter, 2, 9), "port 1 or (port 2 and port 3) rejects port 2 alone");
+        check(ports(filter, 2, 3), "port 1 or (port 2 and port 3) passes ports 2 and 3");
+
+        // not binds tighter than and
+        filter = PacketFilter.compile("not port 1 and port 2");
+        check(!ports(filter, 1, 2), "(not port 1) and port 2 rejects port 1");
+        check(ports(filter, 5, 2), "(not port 1) and port 2 passes port 2");
+
+        // Parentheses override
+        filter = PacketFilter.compile("(port 1 or port 2) and port 3");
+        check(!ports(filter, 1, 9), "(port 1 or port 2) and port 3 rejects port 1 alone");
+        check(ports(filter, 1, 3), "(port 1 or port 2) and port 3 passes ports 1 and 3");
+
+        // Symbol and word operators mean the same
+        check(ports(PacketFilter.compile("port 1 || port 2 && port 3"), 1, 9), "|| and && follow the same precedence");
+        check(!ports(PacketFilter.compile("! port 1 && port 2"), 1, 2), "! binds tighter than &&");
+    }
+
+    private static void negation_and_not_equal() {
+        check(!length(PacketFilter.compile("len != 5"), 5), "len != 5 rejects length 5");
+        check(length(PacketFilter.compile("len != 5"), 6), "len != 5 passes length 6");
+        check(length(PacketFilter.compile("len!=5"), 6), "len!=5 without spaces");
+        check(!length(PacketFilter.compile("!len = 5"), 5), "!len = 5 negates len = 5");
+        check(length(PacketFilter.compile("!len = 5"), 4), "!len = 5 passes length 4");
+        check(length(PacketFilter.compile("! len != 5"), 5), "! len != 5 passes length 5");
+        check(!ports(PacketFilter.compile("!port 7"), 7, 8), "!port 7 rejects port 7");
+        check(ports(PacketFilter.compile("not not port 7"), 7, 8), "double negation");
+        check(rejected("notport 7"), "not needs a word boundary");
+    }
+
+    private static void port_ranges() {
+        PacketFilter filter = PacketFilter.compile("portrange 5000-5999");
+        check(!ports(filter, 4999, 1), "portrange rejects one below the low bound");
+        check(ports(filter, 5000, 1), "portrange passes its low bound");
+        check(ports(filter, 5999, 1), "portrange passes its high bound");
+        check(!ports(filter, 6000, 1), "portrange rejects one above the high bound");
+        check(ports(filter, 1, 5500), "portrange matches the destination port too");
+
+        filter = PacketFilter.compile("src portrange 0-65535");
+        check(ports(filter, 0, 1) && ports(filter, 65535, 1), "the full range passes ports 0 and 65535");
+
+        filter = PacketFilter.compile("dst portrange 7-7");
+        check(ports(filter, 1, 7) && !ports(filter, 7, 8) && !ports(filter, 1, 6) && !ports(filter, 1, 8), "a one port range is that port only");
+
+        filter = PacketFilter.compile("portrange 1-3");
+        check(!ports(filter, 0, 0), "the unsigned range check rejects ports below the low bound");
+
+        check(rejected("portrange 10-5"), "an empty range is an error");
+        check(rejected("portrange 1-65536"), "a port above 65535 is an error");
+        check(rejected("portrange 1"), "a range needs '-'");
+    }
+
+    private static void prefixes() {
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+            String name = " (" + order + ")";
+            check(payload(PacketFilter.compile("prefix \"START\""), "START 1", order), "text prefix of five bytes matches" + name);
+            check(!payload(PacketFilter.compile("prefix \"START\""), "STARX 1", order), "a difference after the first word is seen" + name);
+            check(!payload(PacketFilter.compile("prefix \"START\""), "XTART 1", order), "a difference in the first word is seen" + name);
+            check(payload(PacketFilter.compile("prefix \"STA\""), "STAY", order), "prefix shorter than a word" + name);
+            check(!payload(PacketFilter.compile("prefix \"STA\""), "SXA", order), "prefix shorter than a word mismatch" + name);
+            check(payload(PacketFilter.compile("prefix 0x53544152"), "START", order), "hex prefix of one word" + name);
+            check(payload(PacketFilter.compile("prefix 0X5354"), "ST", order), "upper case 0X and a payload as long as the prefix" + name);
+            check(!payload(PacketFilter.compile("prefix \"START\""), "STAR", order), "a payload shorter than the prefix never matches" + name);
+            check(payload(PacketFilter.compile("prefix \"a\\\"b\""), "a\"bc", order), "escaped quote in a text prefix" + name);
+            check(payload(PacketFilter.compile("prefix \"\""), "", order), "an empty prefix passes everything" + name);
+        }
+
+        // The payload need not start at the beginning of the buffer
+        ByteBuffer data = ByteBuffer.wrap("xxSTART".getBytes(StandardCharsets.ISO_8859_1)).order(ByteOrder.LITTLE_ENDIAN);
+        check(PacketFilter.compile("prefix \"START\"").test(0, 1, 0, 2, data, 2, 5), "prefix at a non-zero offset");
+        check(!PacketFilter.compile("prefix \"xxSTA\"").test(0, 1, 0, 2, data, 2, 5), "prefix compares from the offset");
+    }
+
+    private static void error_positions() {
+        check(error_at("port", 4), "missing port number");
+        check(error_at("port 1 or", 9), "missing operand at the end");
+        check(error_at("port 1 foo", 7), "trailing text");
+        check(error_at("(port 1", 7), "missing ')'");
+        check(error_at("host 1.2.3", 10), "short address");
+        check(error_at("host 1.2.3.256", 14), "address byte above 255");
+        check(error_at("net 10.0.0.0/33", 15), "prefix length above 32");
+        check(error_at("prefix 0x123", 7), "odd number of hex digits points at 0x");
+        check(error_at("prefix \"abc", 11), "unterminated string");
+        check(error_at("len ~ 5", 4), "unknown comparison operator");
+        check(error_at("src len > 5", 4), "src before something that is not an address or port");
+        check(error_at("bogus", 0), "unknown primitive");
+        check(error_at("port 99999999999", 5), "number too large points at the number");
+        check(!rejected("") && !rejected("   "), "an empty filter compiles");
+    }
+
+    private static boolean ports(PacketFilter filter, int src_port, int dst_port) {
+        return filter.test(0x0A000001, src_port, 0x0A000002, dst_port, ByteBuffer.allocate(0), 0, 0);
+    }
+
+    private static boolean length(PacketFilter filter, int length) {
+        return filter.test(0, 1, 0, 2, ByteBuffer.allocate(length), 0, length);
+    }
+
+    private static boolean payload(PacketFilter filter, String text, ByteOrder order) {
+        ByteBuffer data = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)).order(order);
+        return filter.test_payload(0, 1, 0, 2, data);
+    }
+
+    private static boolean rejected(String expression) {
+        try {
+            PacketFilter.compile(expression);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    // The compiler rejects the expression and names the given position
+    private static boolean error_at(String expression, int position) {
+        try {
+            PacketFilter.compile(expression);
+            System.out.println("  compiled: " + expression);
+            return false;
+        } catch (IllegalArgumentException e) {
+            boolean matches = e.getMessage().contains(" at position " + position + " of filter");
+            if (!matches) System.out.println("  " + e.getMessage());
+            return matches;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package lib;
+
+import static lib.Checks.check;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+
+/**
+ * Round trips through PayloadIndex: searches after segments are merged, after files are deleted
+ * or replaced and after the index is reopened, against a scan of every payload. Run as described
+ * in Checks.
+ */
+public class PayloadIndexTest {
+
+    private static final int FILES = 12;  // Each added on its own: more segments than are kept
+    private static final int PACKETS = 50;
+
+    public static void main(String[] args) {
+        Checks.run_tests(PayloadIndexTest.class);
+    }
+
+    static void run() throws IOException {
+        Path directory = Checks.temporary_directory("payload-index-test");
+        TreeMap<String, List<byte[]>> captures = new TreeMap<>();  // Payloads by file name
+        for (int file = 0; file < FILES; file++) write_capture(directory, "capture-" + (char) ('a' + file) + ".pcap", file, captures);
+
+        try (PayloadIndex index = new PayloadIndex(directory, 2, false)) {
+            for (String name : captures.keySet()) index.add(directory.resolve(name));
+            check(index.size() == FILES, "every capture is indexed");
+            check(index.get_segment_count() <= 8, "segments are merged as they pile up");
+            check(index.search("marker-3!").toString().equals("[" + directory.resolve("capture-d.pcap") + " #7]"), "a unique payload is found in its file and packet");
+            check(index.search_words("ALPHA").size() == FILES * PACKETS, "a word in every packet, case-insensitive");
+            check(index.search_words("marker 5").size() == 1, "every word of the text must be in the packet");
+            check(index.search("no such payload").isEmpty(), "text that was never sent is not found");
+            check(matches_scan(index, captures, 1), "searches after merging give what a scan of the payloads gives");
+
+            Files.delete(directory.resolve("capture-c.pcap"));
+            captures.remove("capture-c.pcap");
+            write_capture(directory, "capture-e.pcap", 100, captures);  // Replaced: other payloads, other size
+            index.refresh();
+            check(index.size() == FILES - 1, "a deleted capture is forgotten");
+            check(index.search("marker-2!").isEmpty(), "the payloads of a deleted capture are not found");
+            check(index.search("marker-4!").isEmpty() && index.search("marker-100!").size() == 1, "a replaced capture is found by its new payloads only");
+
+            // More segments: merges now leave the forgotten files out
+            for (int file = FILES; file < FILES + 10; file++) {
+                String name = write_capture(directory, "capture-" + (char) ('a' + file) + ".pcap", file, captures);
+                index.add(directory.resolve(name));
+            }
+            check(index.get_segment_count() <= 8, "segments stay merged");
+            check(matches_scan(index, captures, 2), "searches after merging out forgotten files give what a scan gives");
+        }
+
+        try (PayloadIndex index = new PayloadIndex(directory)) {
+            check(index.size() == captures.size(), "the files survive reopening the index");
+            check(index.refresh() == 0, "nothing to index again after reopening");
+            check(matches_scan(index, captures, 3), "searches after reopening give what a scan gives");
+        }
+    }
+
+    // Words shared by all packets, a marker in packet 7 and random bytes; returns the file name
+    private static String write_capture(Path directory, String name, int file, TreeMap<String, List<byte[]>> captures) throws IOException {
+        Random random = new Random(file);
+        List<byte[]> payloads = new ArrayList<>();
+        try (PcapWriter writer = new PcapWriter(directory.resolve(name))) {
+            for (int packet = 0; packet < PACKETS; packet++) {
+                String text = "alpha packet " + packet + (packet == 7 ? " marker-" + file + "! marker " + file : "") + " ";
+                byte[] head = text.getBytes(StandardCharsets.ISO_8859_1);
+                byte[] payload = new byte[head.length + 20 + random.nextInt(200)];
+                System.arraycopy(head, 0, payload, 0, head.length);
+                for (int i = head.length; i < payload.length; i++) payload[i] = (byte) random.nextInt(random.nextBoolean() ? 256 : 8);
+                writer.write_udp_packet(0x0A000001, 4000, 0x0A000002, 5000, payload, 0, payload.length, 1_700_000_000_000_000_000L + packet * 1000L);
+                payloads.add(payload);
+            }
+        }
+        captures.put(name, payloads);
+        return name;
+    }
+
+    // Needles cut from the payloads, and some random ones, found where a scan finds them
+    private static boolean matches_scan(PayloadIndex index, TreeMap<String, List<byte[]>> captures, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<String> names = new ArrayList<>(captures.keySet());
+        for (int search = 0; search < 200; search++) {
+            byte[] needle;
+            if (search % 4 == 0) {
+                needle = new byte[3 + random.nextInt(3)];
+                for (int i = 0; i < needle.length; i++) needle[i] = (byte) random.nextInt(8);
+            } else {
+                byte[] payload = captures.get(names.get(random.nextInt(names.size()))).get(random.nextInt(PACKETS));
+                int length = 3 + random.nextInt(10);
+                int start = random.nextInt(payload.length - length);
+                needle = Arrays.copyOfRange(payload, start, start + length);
+            }
+            List<String> expected = new ArrayList<>();
+            for (String name : names) {
+                List<byte[]> payloads = captures.get(name);
+                for (int packet = 0; packet < payloads.size(); packet++) {
+                    if (contains(payloads.get(packet), needle)) expected.add(name + " #" + packet);
+                }
+            }
+            List<String> found = new ArrayList<>();
+            for (PayloadIndex.Hit hit : index.search_bytes(needle)) found.add(hit.get_file().getFileName() + " #" + hit.get_packet_index());
+            Collections.sort(expected);  // Files come in the order they were indexed, not by name
+            Collections.sort(found);
+            if (!found.equals(expected)) {
+                System.out.println("  searching " + Arrays.toString(needle) + ": found " + found.size() + ", a scan finds " + expected.size());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(byte[] payload, byte[] needle) {
+        for (int start = 0; start + needle.length <= payload.length; start++) {
+            int i = 0;
+            while (i < needle.length && payload[start + i] == needle[i]) i++;
+            if (i == needle.length) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,178 @@
+package lib;
+
+import static lib.Checks.check;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Round trips through PcapReader: files of PcapWriter, and classic pcap and pcapng files built
+ * byte by byte in both byte orders, with microsecond and nanosecond timestamps. Run as described
+ * in Checks.
+ */
+public class PcapReaderTest {
+
+    private static final int SRC = 0x0A000001;
+    private static final int DST = 0x0A000002;
+    private static final long SECOND = 1_000_000_000L;
+    private static final String[] PAYLOADS = { "first", "", "third packet", "x".repeat(1500) };
+
+    public static void main(String[] args) {
+        Checks.run_tests(PcapReaderTest.class);
+    }
+
+    static void run() throws IOException {
+        Path directory = Checks.temporary_directory("pcap-reader-test");
+        pcap_writer(directory.resolve("writer.pcap"));
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+            classic_pcap(directory.resolve("classic-" + order + ".pcap"), order, false);
+            classic_pcap(directory.resolve("classic-nanos-" + order + ".pcap"), order, true);
+            pcapng(directory.resolve("capture-" + order + ".pcapng"), order);
+        }
+        not_a_capture(directory.resolve("text.pcap"));
+    }
+
+    private static void pcap_writer(Path file) throws IOException {
+        try (PcapWriter writer = new PcapWriter(file)) {
+            for (int i = 0; i < PAYLOADS.length; i++) {
+                byte[] data = PAYLOADS[i].getBytes(StandardCharsets.ISO_8859_1);
+                writer.write_udp_packet(SRC, 4000 + i, DST, 5000, data, 0, data.length, 1_700_000_000L * SECOND + i * 1001);
+            }
+        }
+        check(PcapReader.read_udp_payloads(file).equals(List.of(PAYLOADS)), "PcapWriter payloads read back in order");
+
+        try (PcapReader reader = new PcapReader(file)) {
+            check(!reader.is_pcapng(), "PcapWriter writes classic pcap");
+            for (int i = 0; i < PAYLOADS.length; i++) {
+                check(reader.next(), "PcapWriter packet " + i + " is there");
+                check(reader.timestamp_nanos() == 1_700_000_000L * SECOND + i * 1001, "PcapWriter packet " + i + " keeps its nanoseconds");
+                check(reader.src_ip() == SRC && reader.src_port() == 4000 + i && reader.dst_ip() == DST && reader.dst_port() == 5000, "PcapWriter packet " + i + " addresses and ports");
+                check(reader.packet_index() == i, "PcapWriter packet " + i + " ordinal");
+            }
+            check(!reader.next(), "nothing after the last PcapWriter packet");
+            reader.rewind();
+            check(reader.next() && text(reader.udp_payload()).equals(PAYLOADS[0]) && reader.packet_index() == 0, "rewind goes back to the first packet");
+        }
+    }
+
+    private static void classic_pcap(Path file, ByteOrder order, boolean nanos) throws IOException {
+        String name = " (" + order + (nanos ? ", ns)" : ", us)");
+        ByteBuffer out = ByteBuffer.allocate(1 << 16).order(order);
+        out.putInt(nanos ? PcapWriter.MAGIC_NANOSECONDS : PcapReader.MAGIC_MICROSECONDS);
+        out.putShort((short) 2).putShort((short) 4).putInt(0).putInt(0).putInt(65535).putInt(PacketDecoder.LINKTYPE_ETHERNET);
+        for (int i = 0; i < PAYLOADS.length; i++) {
+            byte[] frame = udp_frame(PAYLOADS[i], 4000 + i);
+            out.putInt(1_700_000_000 + i).putInt(nanos ? 123_456_789 : 123_456).putInt(frame.length).putInt(frame.length).put(frame);
+        }
+        Files.write(file, Arrays.copyOf(out.array(), out.position()));
+
+        check(PcapReader.read_udp_payloads(file).equals(List.of(PAYLOADS)), "classic pcap payloads" + name);
+        try (PcapReader reader = new PcapReader(file)) {
+            check(reader.next() && reader.linktype() == PacketDecoder.LINKTYPE_ETHERNET, "classic pcap link type" + name);
+            check(reader.timestamp_nanos() == 1_700_000_000L * SECOND + 123_456_789L - (nanos ? 0 : 789), "classic pcap timestamp" + name);
+            check(reader.src_port() == 4000 && reader.dst_port() == 5000 && reader.src_ip() == SRC, "classic pcap ports" + name);
+            check(reader.record_offset() == PcapWriter.GLOBAL_HEADER_LENGTH, "classic pcap first record offset" + name);
+        }
+    }
+
+    // Section header, an interface with if_tsresol 9 (nanoseconds), enhanced packet blocks (the
+    // first with a comment option), a simple packet block, and a custom block the reader skips
+    private static void pcapng(Path file, ByteOrder order) throws IOException {
+        String name = " (" + order + ")";
+        ByteBuffer out = ByteBuffer.allocate(1 << 16).order(order);
+        int start = block_start(out, PcapReader.BLOCK_SECTION_HEADER);
+        out.putInt(0x1A2B3C4D).putShort((short) 1).putShort((short) 0).putLong(-1);
+        block_end(out, start);
+
+        start = block_start(out, PcapReader.BLOCK_INTERFACE_DESCRIPTION);
+        out.putShort((short) PacketDecoder.LINKTYPE_ETHERNET).putShort((short) 0).putInt(65535);
+        out.putShort((short) 9).putShort((short) 1).put((byte) 9).put(new byte[3]);  // if_tsresol
+        out.putShort((short) 0).putShort((short) 0);
+        block_end(out, start);
+
+        start = block_start(out, 0x40000BAD);  // Custom block, to be skipped
+        out.putInt(32473).putInt(0x12345678);
+        block_end(out, start);
+
+        for (int i = 0; i < PAYLOADS.length; i++) {
+            byte[] frame = udp_frame(PAYLOADS[i], 4000 + i);
+            long timestamp = 1_700_000_000L * SECOND + i;
+            start = block_start(out, PcapReader.BLOCK_ENHANCED_PACKET);
+            out.putInt(0).putInt((int) (timestamp >>> 32)).putInt((int) timestamp).putInt(frame.length).putInt(frame.length);
+            out.put(frame).put(new byte[(4 - frame.length % 4) % 4]);
+            if (i == 0) {
+                byte[] comment = "a comment".getBytes(StandardCharsets.UTF_8);
+                out.putShort((short) 1).putShort((short) comment.length).put(comment).put(new byte[(4 - comment.length % 4) % 4]);
+                out.putShort((short) 0).putShort((short) 0);
+            }
+            block_end(out, start);
+        }
+
+        byte[] simple = udp_frame("simple", 4100);
+        start = block_start(out, PcapReader.BLOCK_SIMPLE_PACKET);
+        out.putInt(simple.length).put(simple).put(new byte[(4 - simple.length % 4) % 4]);
+        block_end(out, start);
+        Files.write(file, Arrays.copyOf(out.array(), out.position()));
+
+        try (PcapReader reader = new PcapReader(file)) {
+            check(reader.is_pcapng(), "pcapng recognised" + name);
+            for (int i = 0; i < PAYLOADS.length; i++) {
+                check(reader.next(), "pcapng packet " + i + " is there" + name);
+                check(text(reader.udp_payload()).equals(PAYLOADS[i]), "pcapng packet " + i + " payload" + name);
+                check(reader.timestamp_nanos() == 1_700_000_000L * SECOND + i, "pcapng packet " + i + " if_tsresol 9 timestamp" + name);
+                check(reader.src_port() == 4000 + i && reader.dst_ip() == DST, "pcapng packet " + i + " addresses" + name);
+            }
+            check(reader.next() && text(reader.udp_payload()).equals("simple") && reader.src_port() == 4100, "pcapng simple packet block" + name);
+            check(!reader.next(), "nothing after the last block" + name);
+            reader.rewind();
+            check(reader.next() && "a comment".equals(reader.comment()), "pcapng packet comment" + name);
+            check(reader.next() && reader.comment() == null, "pcapng packet without a comment" + name);
+        }
+    }
+
+    private static void not_a_capture(Path file) throws IOException {
+        Files.write(file, "not a capture file at all".getBytes(StandardCharsets.ISO_8859_1));
+        boolean rejected = false;
+        try {
+            new PcapReader(file).close();
+        } catch (IOException e) {
+            rejected = true;
+        }
+        check(rejected, "a text file is not a capture");
+    }
+
+    private static int block_start(ByteBuffer out, int type) {
+        int start = out.position();
+        out.putInt(type).putInt(0);  // Length, filled in by block_end
+        return start;
+    }
+
+    private static void block_end(ByteBuffer out, int start) {
+        int length = out.position() - start + 4;
+        out.putInt(start + 4, length).putInt(length);
+    }
+
+    // Ethernet, IPv4 and UDP headers (network order whatever the file's) and the payload
+    private static byte[] udp_frame(String payload, int src_port) {
+        byte[] data = payload.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer frame = ByteBuffer.allocate(14 + 20 + 8 + data.length);
+        frame.putShort((short) 0x0200).putInt(1).putShort((short) 0x0200).putInt(2).putShort((short) 0x0800);
+        frame.put((byte) 0x45).put((byte) 0).putShort((short) (28 + data.length)).putShort((short) 0).putShort((short) 0x4000);
+        frame.put((byte) 64).put((byte) 17).putShort((short) 0).putInt(SRC).putInt(DST);
+        frame.putShort((short) src_port).putShort((short) 5000).putShort((short) (8 + data.length)).putShort((short) 0);
+        return frame.put(data).array();
+    }
+
+    private static String text(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}